@@ -28,18 +28,30 @@ import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.api.IndexIterator;
 import ch.ethz.globis.distindex.mapping.KeyMapping;
+import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.response.ResultResponse;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * Implements an iterator for entries over a distributed index.
  *
+ * The next batch is requested as soon as the current one is received, so it is transferred while the
+ * current batch is consumed. The batch size starts small, to keep short iterations cheap, and doubles
+ * with every batch until the encoded batches reach the batch byte budget.
+ *
  * @param <K>                                   The class of the keys.
  * @param <V>                                   The class of the values.
  */
 public class DistIndexIterator<K, V> implements IndexIterator<K, V> {
 
+    /** The number of entries requested in the first batch. */
+    public static final int INITIAL_BATCH_SIZE = 16;
+
+    /** The default number of bytes the batches grow to. */
+    public static final int DEFAULT_BATCH_BYTES = 1 << 20;
+
     /** The index over which the iterator is running. */
     IndexProxy<K, V> indexProxy;
 
@@ -47,7 +59,10 @@ public class DistIndexIterator<K, V> implements IndexIterator<K, V> {
     IndexEntryList<K, V> entryBuffer;
 
     /** The number of entries to bring in a batch request */
-    private int batchSize = 2;
+    private int batchSize = INITIAL_BATCH_SIZE;
+
+    /** The number of encoded bytes up to which the batch size grows. */
+    private int batchBytes = DEFAULT_BATCH_BYTES;
 
     /** The id of the host from which batches are currently brought. */
     private String currentHostId;
@@ -70,6 +85,15 @@ public class DistIndexIterator<K, V> implements IndexIterator<K, V> {
     /** the position within the entry buffer */
     private int position = -1;
 
+    /** Is true if the batches are requested after the last key received, without remote iterators. */
+    private boolean stateless = false;
+
+    /** The last key received by a stateless iterator. */
+    private K lastKey;
+
+    /** The request for the next batch, sent before the current batch is consumed. */
+    private CompletableFuture<ResultResponse<K, V>> prefetched;
+
     /**
      * Constructor for a non-ranged iterator.
      *
@@ -102,6 +126,27 @@ public class DistIndexIterator<K, V> implements IndexIterator<K, V> {
         getRemoteEntries();
     }
 
+    /**
+     * Constructor for an iterator that can be stateless. A stateless iterator requests every batch using
+     * the last key it received, so the hosts do not keep any iterator.
+     *
+     * @param indexProxy                            The index proxy instance which created the iterator
+     * @param keyMapping                            The mapping between the keys and the index hosts.
+     * @param start                                 The start key for the iterator, or null.
+     * @param end                                   The end key for the iterator, or null.
+     * @param stateless                             Whether the iterator is stateless.
+     */
+    public DistIndexIterator(IndexProxy<K, V> indexProxy, KeyMapping<K> keyMapping, K start, K end, boolean stateless) {
+        this.indexProxy = indexProxy;
+        this.keyMapping = keyMapping;
+        this.currentHostId = keyMapping.getFirst();
+        this.start = start;
+        this.end = end;
+        this.isRanged = (start != null) && (end != null);
+        this.stateless = stateless;
+        getRemoteEntries();
+    }
+
     @Override
     public boolean hasNext() {
         if (position < entryBuffer.size()) {
@@ -134,48 +179,124 @@ public class DistIndexIterator<K, V> implements IndexIterator<K, V> {
      * The iterator cycles through all of the hosts holding data. Once it has retrieved all batches from a host,
      * it will find the next host in the key ordering and will query that one.
      * Once a host sends the last batch of entries, it sets the iteratorId to "" to let the iterator know it has to
-     * query a different host for the next batch.
+     * query a different host for the next batch. The request for the following batch, possibly the first batch
+     * of the next host, is sent before the entries are returned.
+     *
+     * A stateless iterator resumes after the last key it received. If the mapping changed since the previous
+     * batch, the iteration continues on the host that now holds the last key.
      */
     private void getRemoteEntries() {
+        //this loop ends when all of the entries for all of the hosts have been queried
+        while (currentHostId != null) {
+            CompletableFuture<ResultResponse<K, V>> future = (prefetched == null) ? requestBatch() : prefetched;
+            prefetched = null;
+            ResultResponse<K, V> response = await(future);
 
-        //this means all of the entries for all of the hosts have been queried
-        if (currentHostId == null) {
-            return;
-        }
+            if (stateless && response.getStatus() == OpStatus.OUTDATED_VERSION) {
+                keyMapping = indexProxy.getMapping();
+                currentHostId = (lastKey == null) ? keyMapping.getFirst() : keyMapping.get(lastKey);
+                continue;
+            }
+            adaptBatchSize(response);
 
-        ResultResponse<K, V> response;
-        if (isRanged) {
-            response = indexProxy.getNextBatch(currentHostId, iteratorId, batchSize, start, end);
-        } else {
-            response = indexProxy.getNextBatch(currentHostId, iteratorId, batchSize);
-        }
-        if (response != null) {
             //if the remote index set the iteratorId to "", it has just sent us the last batch and
             //we can change to the next host.
             if (response.getIteratorId().equals("")) {
                 currentHostId = keyMapping.getNext(currentHostId);
             }
-            iteratorId = response.getIteratorId();
-            entryBuffer = response.getEntries();
-            if (entryBuffer == null || entryBuffer.size() == 0) {
-                getRemoteEntries();
+            iteratorId = stateless ? "" : response.getIteratorId();
+            IndexEntryList<K, V> entries = response.getEntries();
+            if (entries != null && entries.size() > 0) {
+                lastKey = entries.get(entries.size() - 1).getKey();
+            }
+            if (currentHostId != null) {
+                prefetched = requestBatch();
+            }
+            if (entries != null && entries.size() > 0) {
+                entryBuffer = entries;
+                position = 0;
+                return;
             }
-        } else {
-            entryBuffer = new IndexEntryList<>();
         }
+        entryBuffer = new IndexEntryList<>();
         position = 0;
     }
 
+    /**
+     * Send the request for the next batch of the current host.
+     */
+    private CompletableFuture<ResultResponse<K, V>> requestBatch() {
+        if (stateless) {
+            return indexProxy.getBatchAfterAsync(currentHostId, batchSize, lastKey,
+                    isRanged ? start : null, isRanged ? end : null);
+        }
+        if (isRanged) {
+            return indexProxy.getNextBatchAsync(currentHostId, iteratorId, batchSize, start, end);
+        }
+        return indexProxy.getNextBatchAsync(currentHostId, iteratorId, batchSize);
+    }
+
+    /**
+     * Double the batch size, unless the batches would exceed the byte budget given the average size of
+     * the entries received.
+     */
+    private void adaptBatchSize(ResultResponse<K, V> response) {
+        int nrEntries = response.getNrEntries();
+        int encodedSize = response.getEncodedSize();
+        if (nrEntries == 0 || encodedSize == 0) {
+            return;
+        }
+        long entrySize = Math.max(1, encodedSize / nrEntries);
+        long budgetSize = Math.max(1, batchBytes / entrySize);
+        batchSize = (int) Math.min(2L * batchSize, budgetSize);
+    }
+
+    private ResultResponse<K, V> await(CompletableFuture<ResultResponse<K, V>> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     @Override
     public void close() {
-        if (currentHostId != null) {
-            indexProxy.closeIterator(currentHostId, iteratorId, this);
+        //the prefetched batch may have opened a new iterator, which needs to be closed instead
+        String openIteratorId = iteratorId;
+        if (prefetched != null) {
+            try {
+                openIteratorId = await(prefetched).getIteratorId();
+            } catch (RuntimeException e) {
+                //the request failed, so the iterator on the host is still the last one we know of
+            }
+            prefetched = null;
+        }
+        if (!stateless && currentHostId != null) {
+            indexProxy.closeIterator(currentHostId, openIteratorId, this);
         }
         entryBuffer = null;
     }
 
+    /**
+     * Set the number of entries requested in the next batch. The size still grows with the following batches,
+     * up to the batch byte budget.
+     *
+     * @param batchSize                             The number of entries.
+     */
     public void setBatchSize(int batchSize) {
         this.batchSize = batchSize;
     }
 
-}
\ No newline at end of file
+    /**
+     * Set the number of encoded bytes up to which the batch size grows.
+     *
+     * @param batchBytes                            The number of bytes.
+     */
+    public void setBatchBytes(int batchBytes) {
+        this.batchBytes = batchBytes;
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.client;
+
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.mapping.KeyMapping;
+import ch.ethz.globis.distindex.operation.OpStatus;
+import ch.ethz.globis.distindex.operation.response.ResultResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the entries of a range of a distributed index.
+ *
+ * The spliterator first splits along the hosts holding keys in the range. A spliterator left with a single
+ * host can further split the range into z-ordered sub-ranges, if a {@link RangeSplitter} is available.
+ * The batches are requested using the last key received, so no iterators are kept on the hosts and a
+ * traversal that ends early does not need to be closed.
+ *
+ * The spliterator is bound to the mapping it was created with. If the mapping changes during the
+ * traversal, a ConcurrentModificationException is thrown.
+ *
+ * @param <K>                                   The class of the keys.
+ * @param <V>                                   The class of the values.
+ */
+public class DistIndexSpliterator<K, V> implements Spliterator<IndexEntry<K, V>> {
+
+    /**
+     * Splits a range into two consecutive ranges.
+     *
+     * @param <K>                               The class of the keys.
+     */
+    public interface RangeSplitter<K> {
+
+        /**
+         * @param start                         The start of the range.
+         * @param end                           The end of the range.
+         * @return                              The start and end of the first range, followed by the start and end of
+         *                                      the second range, or null if the range can not be split.
+         */
+        List<K> split(K start, K end);
+    }
+
+    /** The default number of entries to bring in a batch request. */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /** The default number of times the range of a single host can be split. */
+    public static final int DEFAULT_RANGE_SPLITS = 3;
+
+    /** The index over which the spliterator is running. */
+    private final IndexProxy<K, V> indexProxy;
+
+    /** The hosts covered by this spliterator, in z-order. */
+    private final List<String> hosts;
+
+    /** The splitter for the range, or null. */
+    private final RangeSplitter<K> splitter;
+
+    /** The number of entries to bring in a batch request. */
+    private final int batchSize;
+
+    /** The index of the host from which batches are currently brought. */
+    private int hostIndex = 0;
+
+    /** The start of the range. */
+    private K start;
+
+    /** The end of the range. */
+    private K end;
+
+    /** The number of times the range can still be split. */
+    private int rangeSplits;
+
+    /** The entries that are currently buffered, null before the first batch. */
+    private IndexEntryList<K, V> entryBuffer;
+
+    /** the position within the entry buffer */
+    private int position = 0;
+
+    /** The last key received from the current host. */
+    private K lastKey;
+
+    /**
+     * Create a spliterator over the range [start, end].
+     *
+     * @param indexProxy                        The index proxy instance which created the spliterator.
+     * @param keyMapping                        The mapping between the keys and the index hosts.
+     * @param start                             The start key of the range.
+     * @param end                               The end key of the range.
+     * @param splitter                          The splitter for the range of a single host, or null.
+     */
+    public DistIndexSpliterator(IndexProxy<K, V> indexProxy, KeyMapping<K> keyMapping, K start, K end,
+                                RangeSplitter<K> splitter) {
+        this(indexProxy, orderedHosts(keyMapping, start, end), start, end, splitter, DEFAULT_RANGE_SPLITS,
+                DEFAULT_BATCH_SIZE);
+    }
+
+    private DistIndexSpliterator(IndexProxy<K, V> indexProxy, List<String> hosts, K start, K end,
+                                 RangeSplitter<K> splitter, int rangeSplits, int batchSize) {
+        this.indexProxy = indexProxy;
+        this.hosts = hosts;
+        this.start = start;
+        this.end = end;
+        this.splitter = splitter;
+        this.rangeSplits = rangeSplits;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return                                  The hosts holding keys in the range, in z-order.
+     */
+    private static <K> List<String> orderedHosts(KeyMapping<K> keyMapping, K start, K end) {
+        Set<String> selected = new HashSet<>(keyMapping.get(start, end));
+        List<String> hosts = new ArrayList<>();
+        for (String hostId = keyMapping.getFirst(); hostId != null; hostId = keyMapping.getNext(hostId)) {
+            if (selected.contains(hostId)) {
+                hosts.add(hostId);
+            }
+        }
+        return hosts;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super IndexEntry<K, V>> action) {
+        while (entryBuffer == null || position >= entryBuffer.size()) {
+            if (!getRemoteEntries()) {
+                return false;
+            }
+        }
+        action.accept(entryBuffer.get(position++));
+        return true;
+    }
+
+    /**
+     * Get the next batch of the current host.
+     *
+     * @return                                  False if all hosts were traversed.
+     */
+    private boolean getRemoteEntries() {
+        if (hostIndex >= hosts.size()) {
+            return false;
+        }
+        ResultResponse<K, V> response = indexProxy.getBatchAfter(hosts.get(hostIndex), batchSize, lastKey, start, end);
+        if (response.getStatus() == OpStatus.OUTDATED_VERSION) {
+            throw new ConcurrentModificationException("The mapping of the index changed during the traversal.");
+        }
+        entryBuffer = response.getEntries();
+        position = 0;
+        if (entryBuffer.size() > 0) {
+            lastKey = entryBuffer.get(entryBuffer.size() - 1).getKey();
+        }
+        if ("".equals(response.getIteratorId())) {
+            hostIndex++;
+            lastKey = null;
+        }
+        return true;
+    }
+
+    @Override
+    public Spliterator<IndexEntry<K, V>> trySplit() {
+        if (entryBuffer != null) {
+            //the traversal started
+            return null;
+        }
+        int remainingHosts = hosts.size() - hostIndex;
+        if (remainingHosts > 1) {
+            int middle = hostIndex + remainingHosts / 2;
+            List<String> prefix = new ArrayList<>(hosts.subList(hostIndex, middle));
+            hostIndex = middle;
+            return new DistIndexSpliterator<>(indexProxy, prefix, start, end, splitter, rangeSplits, batchSize);
+        }
+        if (remainingHosts == 0 || splitter == null || rangeSplits <= 0) {
+            return null;
+        }
+        List<K> ranges = splitter.split(start, end);
+        if (ranges == null) {
+            return null;
+        }
+        rangeSplits--;
+        List<String> host = Collections.singletonList(hosts.get(hostIndex));
+        start = ranges.get(2);
+        end = ranges.get(3);
+        return new DistIndexSpliterator<>(indexProxy, host, ranges.get(0), ranges.get(1), splitter, rangeSplits, batchSize);
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
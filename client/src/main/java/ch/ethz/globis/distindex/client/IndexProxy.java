@@ -26,11 +26,25 @@ package ch.ethz.globis.distindex.client;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,12 +55,14 @@ import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.api.IndexIterator;
 import ch.ethz.globis.distindex.client.exception.InvalidResponseException;
+import ch.ethz.globis.distindex.client.exception.RetryLimitExceededException;
 import ch.ethz.globis.distindex.client.exception.ServerErrorException;
 import ch.ethz.globis.distindex.mapping.KeyMapping;
 import ch.ethz.globis.distindex.operation.OpCode;
 import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.ContainsRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteRangeRequest;
 import ch.ethz.globis.distindex.operation.request.DeleteRequest;
 import ch.ethz.globis.distindex.operation.request.GetIteratorBatchRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeRequest;
@@ -75,6 +91,19 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(IndexProxy.class);
 
+    /** The time waited before sending again a request that a host asked to retry later, in milliseconds. */
+    private static final long RETRY_DELAY_MS = 50;
+
+    /** The number of times an asynchronous request is sent before its future fails. */
+    public static final int MAX_ASYNC_ATTEMPTS = 100;
+
+    /** Sends again the asynchronous requests that a host asked to retry later, once their delay is over. */
+    private static final ScheduledExecutorService RETRY_SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "index-proxy-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /** The request dispatcher for the messages to the index servers */
     protected RequestDispatcher<K, V> requestDispatcher;
 
@@ -85,6 +114,10 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
     private Set<IndexIterator<K, V>> openIterators;
 
     protected Requests<K, V> requests;
+
+    /** Whether the iterators page through the results using continuation keys instead of remote iterators. */
+    private volatile boolean statelessIterators = false;
+
     protected IndexProxy() {
         this.openIterators = new HashSet<>();
     }
@@ -121,7 +154,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
 
             PutRequest<K, V> request = requests.newPut(key, value);
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
         return getSingleEntryValue(response);
     }
@@ -135,7 +168,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
                 String hostId = keyMapping.get(key);
                 ContainsRequest<K> request = requests.newContains(key);
                 response = requestDispatcher.send(hostId, request, IntegerResponse.class);
-                versionOutdated = check(request, response);
+                versionOutdated = checkAndWait(request, response);
             } while (versionOutdated);
         return ((int) response.getContent() == 1);
     }
@@ -152,7 +185,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             GetRequest<K> request = requests.newGet(key);
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
 
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
 
         return getSingleEntryValue(response);
@@ -168,11 +201,246 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
 
             DeleteRequest<K> request = requests.newDelete(key);
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
         return getSingleEntryValue(response);
     }
 
+    /**
+     * Insert all of the entries of the map received as an argument.
+     *
+     * The entries are grouped by the host responsible for their key and a single request is sent to
+     * each of these hosts.
+     *
+     * @param entries                       The entries to be inserted.
+     */
+    public void putAll(Map<K, V> entries) {
+        List<K> keys = new ArrayList<>(entries.size());
+        List<V> values = new ArrayList<>(entries.size());
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            keys.add(entry.getKey());
+            values.add(entry.getValue());
+        }
+        sendBatch(OpCode.PUT_ALL, keys, values);
+    }
+
+    /**
+     * Retrieve the values associated with all of the keys received as an argument.
+     *
+     * @param keys                          The keys.
+     * @return                              The values associated with the keys, in the same order as the keys.
+     *                                      The value is null for keys that are not in the index.
+     */
+    public List<V> getAll(List<K> keys) {
+        return sendBatch(OpCode.GET_ALL, keys, null);
+    }
+
+    /**
+     * Remove all of the keys received as an argument.
+     *
+     * @param keys                          The keys.
+     * @return                              The values removed, in the same order as the keys.
+     */
+    public List<V> removeAll(List<K> keys) {
+        return sendBatch(OpCode.DELETE_ALL, keys, null);
+    }
+
+    /**
+     * Send a batch operation to the hosts holding the keys received as argument. The requests to the
+     * different hosts are all sent before waiting for the first response.
+     *
+     * The keys sent to a host whose mapping version is outdated are regrouped according to the new
+     * mapping and sent again. Every host answers with one entry per key, in the order of the keys.
+     *
+     * @param opCode                        The op code of the batch operation.
+     * @param keys                          The keys.
+     * @param values                        The values to be inserted, or null if the operation only needs the keys.
+     * @return                              The value of the entry returned for each key, in the order of the keys.
+     */
+    @SuppressWarnings("unchecked")
+    private List<V> sendBatch(byte opCode, List<K> keys, List<V> values) {
+        List<V> results = new ArrayList<>(Collections.<V>nCopies(keys.size(), null));
+        List<Integer> pending = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            pending.add(i);
+        }
+        while (!pending.isEmpty()) {
+            KeyMapping<K> keyMapping = clusterService.getMapping();
+            Map<String, List<Integer>> positionsByHost = new LinkedHashMap<>();
+            for (int position : pending) {
+                String hostId = keyMapping.get(keys.get(position));
+                List<Integer> positions = positionsByHost.get(hostId);
+                if (positions == null) {
+                    positions = new ArrayList<>();
+                    positionsByHost.put(hostId, positions);
+                }
+                positions.add(position);
+            }
+
+            List<Request> batchRequests = new ArrayList<>();
+            List<CompletableFuture<ResultResponse>> futures = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> hostPositions : positionsByHost.entrySet()) {
+                Request request = newBatchRequest(opCode, hostPositions.getValue(), keys, values);
+                batchRequests.add(request);
+                futures.add(requestDispatcher.sendAsync(hostPositions.getKey(), request, ResultResponse.class));
+            }
+
+            // wait for every host before looking at any reply, so no request is left behind on a failure
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).join();
+            } catch (CompletionException e) {
+                throw unwrap(e);
+            }
+
+            List<Integer> outdated = new ArrayList<>();
+            boolean later = false;
+            int batch = 0;
+            for (List<Integer> positions : positionsByHost.values()) {
+                ResultResponse<K, V> response = futures.get(batch).join();
+                if (check(batchRequests.get(batch), response)) {
+                    later |= response.getStatus() == OpStatus.RETRY_LATER;
+                    outdated.addAll(positions);
+                } else {
+                    IndexEntryList<K, V> entries = response.getEntries();
+                    if (entries.size() != positions.size()) {
+                        throw new InvalidResponseException("Batch response holds " + entries.size()
+                                + " entries for " + positions.size() + " keys. Response id: " + response.getRequestId());
+                    }
+                    for (int i = 0; i < positions.size(); i++) {
+                        results.set(positions.get(i), entries.get(i).getValue());
+                    }
+                }
+                batch++;
+            }
+            if (later) {
+                backOff();
+            }
+            pending = outdated;
+        }
+        return results;
+    }
+
+    /**
+     * Rethrow the cause of a failed request the way the synchronous requests report it.
+     */
+    private static RuntimeException unwrap(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof IOException) {
+            return new UncheckedIOException((IOException) cause);
+        }
+        return e;
+    }
+
+    private Request newBatchRequest(byte opCode, List<Integer> positions, List<K> keys, List<V> values) {
+        switch (opCode) {
+            case OpCode.PUT_ALL:
+                IndexEntryList<K, V> entries = new IndexEntryList<>(positions.size());
+                for (int position : positions) {
+                    entries.add(keys.get(position), values.get(position));
+                }
+                return requests.newPutAll(entries);
+            case OpCode.GET_ALL:
+                return requests.newGetAll(select(keys, positions));
+            case OpCode.DELETE_ALL:
+                return requests.newDeleteAll(select(keys, positions));
+            default:
+                throw new IllegalArgumentException("Not a batch operation: " + opCode);
+        }
+    }
+
+    private List<K> select(List<K> keys, List<Integer> positions) {
+        List<K> selected = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            selected.add(keys.get(position));
+        }
+        return selected;
+    }
+
+    /**
+     * Asynchronous version of {@link #put(Object, Object)}.
+     *
+     * The request is re-sent with a fresh mapping whenever the remote host reports that the mapping
+     * version of the client is outdated.
+     *
+     * @param key                           The key.
+     * @param value                         The value.
+     * @return                              A future completed with the previous value associated with the key.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> putAsync(final K key, final V value) {
+        return sendAsync(key, () -> requests.newPut(key, value), ResultResponse.class)
+                .thenApply(response -> getSingleEntryValue((ResultResponse<K, V>) response));
+    }
+
+    /**
+     * Asynchronous version of {@link #get(Object)}.
+     *
+     * @param key                           The key.
+     * @return                              A future completed with the value associated with the key.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> getAsync(final K key) {
+        return sendAsync(key, () -> requests.newGet(key), ResultResponse.class)
+                .thenApply(response -> getSingleEntryValue((ResultResponse<K, V>) response));
+    }
+
+    /**
+     * Asynchronous version of {@link #remove(Object)}.
+     *
+     * @param key                           The key.
+     * @return                              A future completed with the value removed.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<V> removeAsync(final K key) {
+        return sendAsync(key, () -> requests.newDelete(key), ResultResponse.class)
+                .thenApply(response -> getSingleEntryValue((ResultResponse<K, V>) response));
+    }
+
+    /**
+     * Asynchronous version of {@link #contains(Object)}.
+     *
+     * @param key                           The key.
+     * @return                              A future completed with true if the index contains the key.
+     */
+    public CompletableFuture<Boolean> containsAsync(final K key) {
+        return sendAsync(key, () -> requests.newContains(key), IntegerResponse.class)
+                .thenApply(response -> response.getContent() == 1);
+    }
+
+    /**
+     * Send a request to the host holding the key without blocking the calling thread.
+     *
+     * A new request is created for every attempt, because the request carries the mapping version.
+     *
+     * @param key                           The key determining the remote host.
+     * @param requestFactory                Creates the request to be sent.
+     * @param clazz                         The expected response type.
+     * @return                              A future completed with the response for the current mapping, or
+     *                                      failed with a {@link RetryLimitExceededException} once the request
+     *                                      was sent {@link #MAX_ASYNC_ATTEMPTS} times.
+     */
+    protected <R extends Response> CompletableFuture<R> sendAsync(final K key, final Supplier<Request> requestFactory,
+                                                                final Class<R> clazz) {
+        return sendAsync(key, requestFactory, clazz, 1);
+    }
+
+    private <R extends Response> CompletableFuture<R> sendAsync(final K key, final Supplier<Request> requestFactory,
+                                                              final Class<R> clazz, final int attempt) {
+        KeyMapping<K> keyMapping = clusterService.getMapping();
+        String hostId = keyMapping.get(key);
+        final Request request = requestFactory.get();
+        return requestDispatcher.sendAsync(hostId, request, clazz).thenCompose(response -> {
+            if (check(request, response)) {
+                return retryAsync(request, response, attempt,
+                        nextAttempt -> sendAsync(key, requestFactory, clazz, nextAttempt));
+            }
+            return CompletableFuture.completedFuture(response);
+        });
+    }
+
     public V update(K oldKey, K newKey) {
         boolean versionOutdated;
         ResultResponse<K, V> response;
@@ -187,7 +455,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             if (hostIdNew.equals(hostIdOld)) {
                 UpdateKeyRequest<K> request = requests.newUpdateKeyRequest(oldKey, newKey);
                 response = requestDispatcher.send(hostIdNew, request, ResultResponse.class);
-                versionOutdated = check(request, response);
+                versionOutdated = checkAndWait(request, response);
                 value = getSingleEntryValue(response);
             } else {
                 value = remove(oldKey);
@@ -198,18 +466,120 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
         return value;
     }
 
+    /**
+     * Ask the servers to send the keys of range queries and iterator batches in the compact, delta
+     * encoded format. The key decoder of the dispatcher needs to support delta encoded keys.
+     *
+     * @param compactKeys                   Whether the compact format should be requested.
+     */
+    public void setCompactKeys(boolean compactKeys) {
+        requests.setCompactKeys(compactKeys);
+    }
+
+    /**
+     * Ask the servers to stream the results of range queries as a sequence of bounded frames, instead
+     * of a single frame holding the whole result. The frames are then handled as they are received. The
+     * transport of the dispatcher needs to support streamed replies, as the
+     * {@link ch.ethz.globis.disindex.codec.io.NettyTCPClient} does.
+     *
+     * @param streamedRanges                Whether the range results should be streamed.
+     */
+    public void setStreamedRanges(boolean streamedRanges) {
+        requests.setStreamedRanges(streamedRanges);
+    }
+
+    /**
+     * Set whether the iterators page through the results using the last key of each batch, instead
+     * of iterators kept by the hosts. Stateless iterators hold no resources on the hosts and resume
+     * on the host holding their last key if the mapping changes during the iteration.
+     *
+     * @param statelessIterators            Whether the iterators should be stateless.
+     */
+    public void setStatelessIterators(boolean statelessIterators) {
+        this.statelessIterators = statelessIterators;
+    }
+
     @Override
     public IndexEntryList<K, V> getRange(K start, K end) {
         boolean versionOutdated;
-        List<ResultResponse> responses;
+        IndexEntryList<K, V> results;
         do {
             KeyMapping<K> keyMapping = clusterService.getMapping();
             List<String> hostIds = keyMapping.get(start, end);
             GetRangeRequest<K> request = requests.newGetRange(start, end);
-            responses = requestDispatcher.send(hostIds, request, ResultResponse.class);
-            versionOutdated = check(request, responses);
+            final IndexEntryList<K, V> entries = new IndexEntryList<>();
+            List<ResultResponse> responses = requestDispatcher.sendStreamed(hostIds, request, ResultResponse.class,
+                    frame -> collect(frame, entries));
+            versionOutdated = checkAndWait(request, responses);
+            results = entries;
+        } while (versionOutdated);
+        return results;
+    }
+
+    /**
+     * Add the entries of a frame of a range result to the entries received so far. Only successful frames
+     * hold entries, the status of the last frame of every host is checked once all of them were received.
+     */
+    @SuppressWarnings("unchecked")
+    private void collect(ResultResponse frame, IndexEntryList<K, V> entries) {
+        if (frame.getStatus() == OpStatus.PARTIAL || frame.getStatus() == OpStatus.SUCCESS) {
+            entries.addAll(frame.getEntries());
+        }
+    }
+
+    /**
+     * Remove all of the entries inside the range [start, end]. Every host holding a part of the range
+     * removes its entries locally and only returns their number.
+     *
+     * If the mapping changed, the request is re-sent to the hosts of the new mapping. The hosts that
+     * accepted an earlier request already removed their entries, so their counts are kept.
+     *
+     * @param start                         The lower corner of the range.
+     * @param end                           The upper corner of the range.
+     * @return                              The number of removed entries.
+     */
+    public int deleteRange(K start, K end) {
+        int removed = 0;
+        boolean versionOutdated;
+        do {
+            KeyMapping<K> keyMapping = clusterService.getMapping();
+            List<String> hostIds = keyMapping.get(start, end);
+            DeleteRangeRequest<K> request = requests.newDeleteRange(start, end);
+            List<IntegerResponse> responses = requestDispatcher.send(hostIds, request, IntegerResponse.class);
+            versionOutdated = checkAndWait(request, responses);
+            for (IntegerResponse response : responses) {
+                if (response.getStatus() == OpStatus.SUCCESS) {
+                    removed += response.getContent();
+                }
+            }
+        } while (versionOutdated);
+        return removed;
+    }
+
+    /**
+     * Count the entries inside the range [start, end]. Every host holding a part of the range counts
+     * its entries locally and only returns their number.
+     *
+     * @param start                         The lower corner of the range.
+     * @param end                           The upper corner of the range.
+     * @return                              The number of entries inside the range.
+     */
+    public int countRange(K start, K end) {
+        boolean versionOutdated;
+        List<IntegerResponse> responses;
+        do {
+            KeyMapping<K> keyMapping = clusterService.getMapping();
+            List<String> hostIds = keyMapping.get(start, end);
+            GetRangeRequest<K> request = requests.newCountRange(start, end);
+            responses = requestDispatcher.send(hostIds, request, IntegerResponse.class);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
-        return combine(responses);
+
+        int count = 0;
+        for (IntegerResponse response : responses) {
+            count += response.getContent();
+        }
+        return count;
     }
 
     public ResultResponse<K, V> getNextBatch(String hostId, String iteratorId, int size, K start, K end) {
@@ -218,7 +588,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
         do {
             GetIteratorBatchRequest<K> request = requests.newGetBatch(iteratorId, size, start, end);
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
         return response;
     }
@@ -230,11 +600,85 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             GetIteratorBatchRequest<K> request = requests.newGetBatch(iteratorId, size);
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
 
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
         return response;
     }
 
+    /**
+     * Asynchronous version of {@link #getNextBatch(String, String, int, Object, Object)}.
+     */
+    public CompletableFuture<ResultResponse<K, V>> getNextBatchAsync(final String hostId, final String iteratorId,
+                                                                     final int size, final K start, final K end) {
+        return sendToHostAsync(hostId, () -> requests.newGetBatch(iteratorId, size, start, end), 1);
+    }
+
+    /**
+     * Asynchronous version of {@link #getNextBatch(String, String, int)}.
+     */
+    public CompletableFuture<ResultResponse<K, V>> getNextBatchAsync(final String hostId, final String iteratorId,
+                                                                     final int size) {
+        return sendToHostAsync(hostId, () -> requests.newGetBatch(iteratorId, size), 1);
+    }
+
+    /**
+     * Send a request for a result to a host, without blocking the calling thread. The request is re-sent
+     * to the same host while the host reports that the mapping version of the client is outdated.
+     *
+     * @param hostId                        The host.
+     * @param requestFactory                Creates the request to be sent.
+     * @param attempt                       The number of times the request was sent, including this one.
+     * @return                              A future completed with the response.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<ResultResponse<K, V>> sendToHostAsync(final String hostId,
+                                                                    final Supplier<Request> requestFactory,
+                                                                    final int attempt) {
+        final Request request = requestFactory.get();
+        return requestDispatcher.sendAsync(hostId, request, ResultResponse.class).thenCompose(response -> {
+            if (check(request, response)) {
+                return retryAsync(request, response, attempt,
+                        nextAttempt -> sendToHostAsync(hostId, requestFactory, nextAttempt));
+            }
+            return CompletableFuture.completedFuture((ResultResponse<K, V>) response);
+        });
+    }
+
+    /**
+     * Request the batch of entries following a continuation key from a host. No iterator is opened on the
+     * host, and an outdated version is not retried, as the caller needs to find the host now holding
+     * the continuation key.
+     *
+     * @param hostId                        The host.
+     * @param size                          The batch size.
+     * @param after                         The continuation key, or null for the first batch.
+     * @param start                         The start of the range, or null for a non-ranged iterator.
+     * @param end                           The end of the range, or null for a non-ranged iterator.
+     * @return                              The response of the host.
+     */
+    public ResultResponse<K, V> getBatchAfter(String hostId, int size, K after, K start, K end) {
+        GetIteratorBatchRequest<K> request = requests.newGetBatchAfter(size, after, start, end);
+        ResultResponse<K, V> response = requestDispatcher.send(hostId, request, ResultResponse.class);
+        check(request, response);
+        return response;
+    }
+
+    /**
+     * Asynchronous version of {@link #getBatchAfter(String, int, Object, Object, Object)}.
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<ResultResponse<K, V>> getBatchAfterAsync(String hostId, int size, K after, K start, K end) {
+        final GetIteratorBatchRequest<K> request = requests.newGetBatchAfter(size, after, start, end);
+        return requestDispatcher.sendAsync(hostId, request, ResultResponse.class).thenApply(response -> {
+            check(request, response);
+            return (ResultResponse<K, V>) response;
+        });
+    }
+
+    public KeyMapping<K> getMapping() {
+        return clusterService.getMapping();
+    }
+
     public void closeIterator(String hostId, String iteratorId, IndexIterator<K, V> it) {
         try {
             MapRequest request = requests.newMap(OpCode.CLOSE_ITERATOR);
@@ -246,9 +690,52 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
         }
     }
 
+    /**
+     * Create an iterator over the entries in the range that scans all hosts holding keys in the range at the
+     * same time, while still returning the entries in z-order.
+     *
+     * @param start                         The start of the range, or null to iterate over all entries.
+     * @param end                           The end of the range, or null to iterate over all entries.
+     * @return                              The iterator.
+     */
+    public IndexIterator<K, V> queryParallel(K start, K end) {
+        KeyMapping<K> keyMapping = clusterService.getMapping();
+        IndexIterator<K, V> it = new ParallelDistIndexIterator<>(this, keyMapping, start, end,
+                ParallelDistIndexIterator.DEFAULT_BATCH_SIZE, ParallelDistIndexIterator.DEFAULT_MAX_BUFFERED_BATCHES);
+        openIterators.add(it);
+        return it;
+    }
+
+    /**
+     * Create a stream over the entries in the range. A parallel stream reads from the hosts holding keys
+     * in the range concurrently.
+     *
+     * @param start                         The start of the range.
+     * @param end                           The end of the range.
+     * @return                              The stream of entries, in z-order.
+     */
+    public Stream<IndexEntry<K, V>> stream(K start, K end) {
+        return StreamSupport.stream(spliterator(start, end), false);
+    }
+
+    /**
+     * Create the spliterator backing {@link #stream(Object, Object)}. The spliterator only splits along the
+     * hosts, as the ranges of generic keys can not be split further.
+     */
+    protected Spliterator<IndexEntry<K, V>> spliterator(K start, K end) {
+        return new DistIndexSpliterator<>(this, clusterService.getMapping(), start, end, null);
+    }
+
+    void releaseIterator(IndexIterator<K, V> it) {
+        openIterators.remove(it);
+    }
+
     @Override
     public IndexIterator<K, V> iterator() {
         KeyMapping<K> keyMapping = clusterService.getMapping();
+        if (statelessIterators) {
+            return new DistIndexIterator<>(this, keyMapping, null, null, true);
+        }
         IndexIterator<K, V> it = new DistIndexIterator<>(this, keyMapping);
         openIterators.add(it);
         return it;
@@ -256,7 +743,9 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
 
     public IndexIterator<K, V> query(K start, K end) {
         KeyMapping<K> keyMapping = clusterService.getMapping();
-
+        if (statelessIterators) {
+            return new DistIndexIterator<>(this, keyMapping, start, end, true);
+        }
         IndexIterator<K, V> it = new DistIndexIterator<>(this, keyMapping, start, end);
         openIterators.add(it);
         return it;
@@ -271,7 +760,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             BaseRequest request = requests.newGetSize();
 
             responses = requestDispatcher.send(hostIds, request, IntegerResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
 
         int size = 0;
@@ -289,7 +778,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             BaseRequest request = requests.newGetDim();
 
             responses = requestDispatcher.send(hostIds, request, IntegerResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
 
         int dim = -1;
@@ -313,7 +802,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             BaseRequest request = requests.newGetDepth();
 
             responses = requestDispatcher.send(hostIds, request, IntegerResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
 
         int depth = -1;
@@ -366,7 +855,7 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
     protected boolean check(Request request, List<? extends Response> responses) {
         boolean versionOutdated;
         for (Response response : responses) {
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
             if (versionOutdated) {
                 return true;
             }
@@ -375,9 +864,6 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
     }
 
     protected boolean check(Request request, Response response) {
-        if (response == null) {
-            throw new NullPointerException("Response should not be null");
-        }
         if (request.getId() != response.getRequestId()) {
             throw new InvalidResponseException("Response received was not intended for this request." +
                     "Response id: " + response.getRequestId() + " Request id: " + request.getId());
@@ -389,9 +875,87 @@ public class IndexProxy<K, V> implements Index<K, V>, Closeable, AutoCloseable {
             LOG.debug("Current mapping version is outdated.");
             return true;
         }
+        if (response.getStatus() == OpStatus.RETRY_LATER) {
+            LOG.debug("The request overlaps entries moved between hosts, retrying later.");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check the responses of a request sent from the calling thread. If the request has to be sent again
+     * because a host asked for it to be retried later, the calling thread waits before returning.
+     */
+    protected boolean checkAndWait(Request request, List<? extends Response> responses) {
+        boolean retry = check(request, responses);
+        if (retry && retryLater(responses)) {
+            backOff();
+        }
+        return retry;
+    }
+
+    protected boolean checkAndWait(Request request, Response response) {
+        return checkAndWait(request, Collections.singletonList(response));
+    }
+
+    /**
+     * Check if any of the hosts asked for the request to be sent again later.
+     */
+    protected boolean retryLater(List<? extends Response> responses) {
+        for (Response response : responses) {
+            if (response.getStatus() == OpStatus.RETRY_LATER) {
+                return true;
+            }
+        }
         return false;
     }
 
+    /**
+     * Send again an asynchronous request. If a host asked for the request to be retried later, the request
+     * is sent from the retry scheduler once the delay is over, so the thread completing the response is
+     * never blocked.
+     *
+     * @param request                       The request to be sent again.
+     * @param responses                     The responses that caused the retry.
+     * @param attempt                       The number of times the request was already sent.
+     * @param retry                         Sends the request again, given the number of the next attempt.
+     * @return                              The future of the request sent again, or a future failed with a
+     *                                      {@link RetryLimitExceededException} if the request was already sent
+     *                                      {@link #MAX_ASYNC_ATTEMPTS} times.
+     */
+    protected <T> CompletableFuture<T> retryAsync(Request request, List<? extends Response> responses, int attempt,
+                                                  IntFunction<CompletableFuture<T>> retry) {
+        if (attempt >= MAX_ASYNC_ATTEMPTS) {
+            CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new RetryLimitExceededException("Request with op code "
+                    + request.getOpCode() + " was sent " + attempt + " times and the hosts still asked for a retry."));
+            return failed;
+        }
+        if (!retryLater(responses)) {
+            return retry.apply(attempt + 1);
+        }
+        CompletableFuture<Void> delay = new CompletableFuture<>();
+        RETRY_SCHEDULER.schedule(() -> delay.complete(null), RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+        return delay.thenCompose(ignored -> retry.apply(attempt + 1));
+    }
+
+    protected <T> CompletableFuture<T> retryAsync(Request request, Response response, int attempt,
+                                                  IntFunction<CompletableFuture<T>> retry) {
+        return retryAsync(request, Collections.singletonList(response), attempt, retry);
+    }
+
+    /**
+     * Block the calling thread before sending again a request that a host asked to retry later.
+     */
+    protected void backOff() {
+        try {
+            Thread.sleep(RETRY_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting to retry the request.");
+        }
+    }
+
     private V getSingleEntryValue(ResultResponse<K, V> response) {
         return (response.getNrEntries() == 0) ? null :  response.singleEntry().getValue();
     }
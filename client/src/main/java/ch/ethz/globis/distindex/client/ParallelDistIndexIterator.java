@@ -0,0 +1,373 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.client;
+
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.api.IndexIterator;
+import ch.ethz.globis.distindex.mapping.KeyMapping;
+import ch.ethz.globis.distindex.operation.response.ResultResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implements an iterator over a distributed index that scans all of the hosts holding data at the same time.
+ *
+ * Every host is scanned by its own remote iterator, which keeps fetching batches until a bounded number of
+ * batches are buffered. The hosts hold z-contiguous ranges of keys, so the entries are still returned in
+ * global z-order by consuming the buffers host after host.
+ *
+ * While the buffer of a host is full, the remote iterator of the host is idle. So that the host does not drop
+ * it once its lease expires, an empty batch is requested every renew interval, which renews the lease. The
+ * renew interval needs to be shorter than the lease timeout of the hosts.
+ *
+ * The responses are handled, and the following requests sent, by a thread of the iterator rather than by the
+ * transport thread completing the response.
+ *
+ * @param <K>                                   The class of the keys.
+ * @param <V>                                   The class of the values.
+ */
+public class ParallelDistIndexIterator<K, V> implements IndexIterator<K, V> {
+
+    /** The default number of entries to bring in a batch request. */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    /** The default number of batches buffered for each host. */
+    public static final int DEFAULT_MAX_BUFFERED_BATCHES = 4;
+
+    /** The default time after which an idle remote iterator is renewed, in milliseconds. */
+    public static final long DEFAULT_RENEW_INTERVAL = 20000L;
+
+    /** Handles the responses of the hosts and renews the idle remote iterators. */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "parallel-iterator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** The index over which the iterator is running. */
+    private final IndexProxy<K, V> indexProxy;
+
+    /** The start of the iterator range, or null. */
+    private final K start;
+
+    /** The end of the iterator range, or null. */
+    private final K end;
+
+    /** Is true if the iterator is ranged (start and end are not null), false otherwise*/
+    private final boolean isRanged;
+
+    /** The number of entries to bring in a batch request */
+    private final int batchSize;
+
+    /** The maximum number of batches buffered for a host. */
+    private final int maxBufferedBatches;
+
+    /** The time after which an idle remote iterator is renewed, in milliseconds. */
+    private final long renewInterval;
+
+    /** The scans of the hosts, in z-order. */
+    private final List<HostScan> scans;
+
+    /** The index of the scan the entries are currently taken from. */
+    private int current = 0;
+
+    /** The entries that are currently consumed. */
+    private IndexEntryList<K, V> entryBuffer = new IndexEntryList<>();
+
+    /** the position within the entry buffer */
+    private int position = 0;
+
+    /**
+     * Create the iterator and start the scans of all hosts holding keys in the range.
+     *
+     * @param indexProxy                            The index proxy instance which created the iterator
+     * @param keyMapping                            The mapping between the keys and the index hosts.
+     * @param start                                 The start key for the iterator, or null.
+     * @param end                                   The end key for the iterator, or null.
+     * @param batchSize                             The number of entries to bring in a batch request.
+     * @param maxBufferedBatches                    The maximum number of batches buffered for a host.
+     */
+    public ParallelDistIndexIterator(IndexProxy<K, V> indexProxy, KeyMapping<K> keyMapping, K start, K end,
+                                     int batchSize, int maxBufferedBatches) {
+        this(indexProxy, keyMapping, start, end, batchSize, maxBufferedBatches, DEFAULT_RENEW_INTERVAL);
+    }
+
+    /**
+     * Create the iterator and start the scans of all hosts holding keys in the range.
+     *
+     * @param indexProxy                            The index proxy instance which created the iterator
+     * @param keyMapping                            The mapping between the keys and the index hosts.
+     * @param start                                 The start key for the iterator, or null.
+     * @param end                                   The end key for the iterator, or null.
+     * @param batchSize                             The number of entries to bring in a batch request.
+     * @param maxBufferedBatches                    The maximum number of batches buffered for a host.
+     * @param renewInterval                         The time after which an idle remote iterator is renewed,
+     *                                              in milliseconds.
+     */
+    public ParallelDistIndexIterator(IndexProxy<K, V> indexProxy, KeyMapping<K> keyMapping, K start, K end,
+                                     int batchSize, int maxBufferedBatches, long renewInterval) {
+        if (batchSize <= 0 || maxBufferedBatches <= 0 || renewInterval <= 0) {
+            throw new IllegalArgumentException(
+                    "The batch size, the number of buffered batches and the renew interval need to be positive.");
+        }
+        this.indexProxy = indexProxy;
+        this.start = start;
+        this.end = end;
+        this.isRanged = (start != null) && (end != null);
+        this.batchSize = batchSize;
+        this.maxBufferedBatches = maxBufferedBatches;
+        this.renewInterval = renewInterval;
+
+        this.scans = new ArrayList<>();
+        for (String hostId : orderedHosts(keyMapping)) {
+            scans.add(new HostScan(hostId));
+        }
+        for (HostScan scan : scans) {
+            scan.fetch();
+        }
+    }
+
+    /**
+     * @return                                      The hosts holding keys in the range, in z-order.
+     */
+    private List<String> orderedHosts(KeyMapping<K> keyMapping) {
+        Set<String> selected = isRanged ? new HashSet<>(keyMapping.get(start, end)) : null;
+        List<String> hosts = new ArrayList<>();
+        for (String hostId = keyMapping.getFirst(); hostId != null; hostId = keyMapping.getNext(hostId)) {
+            if (selected == null || selected.contains(hostId)) {
+                hosts.add(hostId);
+            }
+        }
+        return hosts;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= entryBuffer.size()) {
+            if (current >= scans.size()) {
+                return false;
+            }
+            IndexEntryList<K, V> batch = scans.get(current).take();
+            if (batch == null) {
+                current++;
+            } else {
+                entryBuffer = batch;
+                position = 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public IndexEntry<K, V> next() {
+        if (!hasNext()) {
+            return null;
+        }
+        return entryBuffer.get(position++);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Remove operation not currently supported.");
+    }
+
+    @Override
+    public void close() {
+        for (HostScan scan : scans) {
+            scan.close();
+        }
+        indexProxy.releaseIterator(this);
+        entryBuffer = new IndexEntryList<>();
+        current = scans.size();
+    }
+
+    /**
+     * The scan of a single host. The responses are handled by the scheduler of the iterators, while the
+     * batches are taken by the thread consuming the iterator.
+     */
+    private class HostScan {
+
+        private final String hostId;
+
+        /** The batches received and not yet consumed. */
+        private final Deque<IndexEntryList<K, V>> batches = new ArrayDeque<>();
+
+        /** The id of the remote iterator, "" before the first batch and after the last one. */
+        private String iteratorId = "";
+
+        /** Whether a batch request was sent and is not yet answered. */
+        private boolean pending = false;
+
+        /** Whether the last batch was received. */
+        private boolean done = false;
+
+        /** Whether the scan was closed by the consumer. */
+        private boolean closed = false;
+
+        /** The failure of the last request, if any. */
+        private RuntimeException failure;
+
+        /** The pending renewal of the remote iterator, or null. */
+        private ScheduledFuture<?> renewal;
+
+        HostScan(String hostId) {
+            this.hostId = hostId;
+        }
+
+        /**
+         * Send the request for the next batch, unless a request is pending or the scan is over. If the buffer
+         * is full, the remote iterator is renewed after the renew interval instead.
+         */
+        void fetch() {
+            String id;
+            synchronized (this) {
+                if (pending || done || closed) {
+                    return;
+                }
+                if (batches.size() >= maxBufferedBatches) {
+                    if (renewal == null) {
+                        renewal = SCHEDULER.schedule(this::renew, renewInterval, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                pending = true;
+                id = iteratorId;
+            }
+            request(id, batchSize);
+        }
+
+        /**
+         * Request an empty batch, which renews the lease of the remote iterator, if the iterator is still idle.
+         */
+        private void renew() {
+            String id;
+            synchronized (this) {
+                renewal = null;
+                if (pending || done || closed || batches.size() < maxBufferedBatches) {
+                    return;
+                }
+                pending = true;
+                id = iteratorId;
+            }
+            request(id, 0);
+        }
+
+        private void request(String id, int size) {
+            CompletableFuture<ResultResponse<K, V>> future;
+            if (isRanged) {
+                future = indexProxy.getNextBatchAsync(hostId, id, size, start, end);
+            } else {
+                future = indexProxy.getNextBatchAsync(hostId, id, size);
+            }
+            future.whenCompleteAsync((response, error) -> received(response, error), SCHEDULER);
+        }
+
+        private void received(ResultResponse<K, V> response, Throwable error) {
+            synchronized (this) {
+                pending = false;
+                if (error != null) {
+                    Throwable cause = (error instanceof CompletionException && error.getCause() != null)
+                            ? error.getCause() : error;
+                    failure = (cause instanceof RuntimeException)
+                            ? (RuntimeException) cause : new CompletionException(cause);
+                    done = true;
+                } else {
+                    iteratorId = response.getIteratorId();
+                    done = "".equals(iteratorId);
+                    IndexEntryList<K, V> entries = response.getEntries();
+                    if (entries != null && entries.size() > 0) {
+                        batches.add(entries);
+                    }
+                }
+                notifyAll();
+            }
+            fetch();
+        }
+
+        /**
+         * Wait for the next batch of the host.
+         *
+         * @return                                  The next batch, or null if the host has no more entries.
+         */
+        IndexEntryList<K, V> take() {
+            IndexEntryList<K, V> batch;
+            synchronized (this) {
+                while (batches.isEmpty() && !done) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while waiting for a batch from " + hostId, e);
+                    }
+                }
+                if (batches.isEmpty() && failure != null) {
+                    throw failure;
+                }
+                batch = batches.poll();
+            }
+            fetch();
+            return batch;
+        }
+
+        /**
+         * Stop fetching batches and close the remote iterator, if it is still open.
+         */
+        void close() {
+            String openIteratorId;
+            synchronized (this) {
+                closed = true;
+                if (renewal != null) {
+                    renewal.cancel(false);
+                    renewal = null;
+                }
+                while (pending) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                openIteratorId = (done || pending) ? "" : iteratorId;
+                batches.clear();
+            }
+            if (!"".equals(openIteratorId)) {
+                indexProxy.closeIterator(hostId, openIteratorId, ParallelDistIndexIterator.this);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.client.exception;
+
+/**
+ * Thrown when a request was sent again as many times as allowed and the remote servers still
+ * asked for it to be retried.
+ */
+public class RetryLimitExceededException extends IllegalStateException {
+
+    public RetryLimitExceededException(String s) {
+        super(s);
+    }
+}
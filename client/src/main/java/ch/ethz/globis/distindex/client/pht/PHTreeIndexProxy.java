@@ -30,7 +30,11 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,14 +45,16 @@ import ch.ethz.globis.disindex.codec.api.RequestEncoder;
 import ch.ethz.globis.disindex.codec.api.ResponseDecoder;
 import ch.ethz.globis.disindex.codec.field.MultiLongEncoderDecoder;
 import ch.ethz.globis.disindex.codec.field.SerializingEncoderDecoder;
-import ch.ethz.globis.disindex.codec.io.AsyncTCPClient;
 import ch.ethz.globis.disindex.codec.io.ClientRequestDispatcher;
+import ch.ethz.globis.disindex.codec.io.NettyTCPClient;
 import ch.ethz.globis.disindex.codec.io.RequestDispatcher;
 import ch.ethz.globis.disindex.codec.io.Transport;
 import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.PointIndex;
+import ch.ethz.globis.distindex.client.DistIndexSpliterator;
 import ch.ethz.globis.distindex.client.IndexProxy;
 import ch.ethz.globis.distindex.mapping.KeyMapping;
+import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.GetKNNRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeFilterMapperRequest;
@@ -86,6 +92,8 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         this.requestDispatcher = setupDispatcher();
         this.clusterService.connect();
         this.requests = new Requests<>(this.clusterService);
+        this.requests.setCompactKeys(true);
+        this.requests.setStreamedRanges(true);
     }
 
     public PHTreeIndexProxy(String host, int port) {
@@ -93,6 +101,8 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         clusterService = setupClusterService(host, port);
         clusterService.connect();
         this.requests = new Requests<>(clusterService);
+        this.requests.setCompactKeys(true);
+        this.requests.setStreamedRanges(true);
     }
 
     private RequestDispatcher<long[], V> setupDispatcher() {
@@ -100,7 +110,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         FieldEncoderDecoder<V> valueEncoder = new SerializingEncoderDecoder<>();
         RequestEncoder encoder = new ByteRequestEncoder<>(keyEncoder, valueEncoder);
         ResponseDecoder<long[], V> decoder = new ByteResponseDecoder<>(keyEncoder, valueEncoder);
-        Transport transport = new AsyncTCPClient();
+        Transport transport = new NettyTCPClient();
 
         return new ClientRequestDispatcher<>(transport, encoder, decoder);
     }
@@ -125,7 +135,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
      */
     public List<long[]> getRange(String initialHost, long[] start, long[] end, double distance) {
         boolean versionOutdated;
-        List<ResultResponse> responses;
+        List<long[]> keys;
         do {
             LOG.debug("Get Range request started on interval {} and distance {}",
                     Arrays.toString(start) + "-" + Arrays.toString(end), distance);
@@ -140,13 +150,16 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
                 return new ArrayList<>();
             }
             GetRangeRequest<long[]> request = requests.newGetRange(start, end, distance);
-            responses = requestDispatcher.send(hostIds, request, ResultResponse.class);
-            versionOutdated = check(request, responses);
+            final List<long[]> received = new ArrayList<>();
+            List<ResultResponse> responses = requestDispatcher.sendStreamed(hostIds, request, ResultResponse.class,
+                    frame -> collect(frame, PhMapper.<V>PVENTRY(), entry -> received.add(entry.getKey())));
+            versionOutdated = checkAndWait(request, responses);
+            keys = received;
             LOG.debug("Get Range request ended on interval {} and distance {}",
                     Arrays.toString(start) + "-" + Arrays.toString(end), distance);
         } while (versionOutdated);
 
-        return combineKeys(responses);
+        return keys;
     }
 
     /**
@@ -176,7 +189,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
             GetKNNRequest<long[]> request = requests.newGetKNN(key, k);
             RequestDispatcher<long[], V> requestDispatcher = getRequestDispatcher();
             response = requestDispatcher.send(hostId, request, ResultResponse.class);
-            versionOutdated = check(request, response);
+            versionOutdated = checkAndWait(request, response);
         } while (versionOutdated);
 
         return extractKeys(response);
@@ -198,7 +211,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         do {
             GetKNNRequest<long[]> request = requests.newGetKNN(key, k);
             responses = getRequestDispatcher().send(hostIds, request, ResultResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
 
         return MultidimUtil.nearestNeighbours(key, k, combineKeys(responses));
@@ -214,7 +227,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
             BaseRequest request = requests.newStats();
             List<String> hostIds = clusterService.getMapping().get();
             responses = requestDispatcher.send(hostIds, request, MapResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
         return combineStats(responses);
     }
@@ -249,7 +262,7 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
             List<String> hostIds = clusterService.getMapping().get();
 
             responses = requestDispatcher.send(hostIds, request, MapResponse.class);
-            versionOutdated = check(request, responses);
+            versionOutdated = checkAndWait(request, responses);
         } while (versionOutdated);
 
         String global = "", current;
@@ -269,20 +282,92 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         return queryAll(min, max, Integer.MAX_VALUE, null, PhMapper.<V>PVENTRY());
     }
 
+    /**
+     * Query the entries inside the range. The entries of a streamed result are mapped as their frames are
+     * received, so the frames themselves are not kept.
+     */
     public <R> List<R> queryAll(long[] min, long[] max, int maxResults, PhFilter filter, PhMapper<V, R> mapper) {
         boolean versionOutdated;
-        List<ResultResponse> responses;
+        List<R> results;
         do {
             GetRangeFilterMapperRequest<long[]> request =
                     requests.newGetRangeFilterMaper(min, max, maxResults, filter, mapper);
             KeyMapping<long[]> mapping = clusterService.getMapping();
             List<String> hostIds = mapping.get(min, max);
             //System.out.println("Range query hit " + hostIds.size() + " hosts.");
-            responses = requestDispatcher.send(hostIds, request, ResultResponse.class);
-            versionOutdated = check(request, responses);
+            final List<R> received = new ArrayList<>();
+            List<ResultResponse> responses = requestDispatcher.sendStreamed(hostIds, request, ResultResponse.class,
+                    frame -> collect(frame, mapper, received::add));
+            versionOutdated = checkAndWait(request, responses);
+            results = received;
         } while (versionOutdated);
 
-        return combine(responses, mapper);
+        return results;
+    }
+
+    /**
+     * Asynchronous version of {@link #queryAll(long[], long[])}.
+     *
+     * @param min                           The lower left corner of the query range.
+     * @param max                           The upper right corner of the query range.
+     * @return                              A future completed with the entries inside the range.
+     */
+    public CompletableFuture<List<PhEntry<V>>> queryAllAsync(long[] min, long[] max) {
+        return queryAllAsync(min, max, Integer.MAX_VALUE, null, PhMapper.<V>PVENTRY());
+    }
+
+    /**
+     * Asynchronous version of {@link #queryAll(long[], long[], int, PhFilter, PhMapper)}.
+     *
+     * The query is re-sent to the hosts of the new mapping if any of the hosts reports that the mapping
+     * version of the client is outdated. If a host asks for the query to be retried later, the query is
+     * re-sent after a delay, without blocking the transport threads. The future fails with a
+     * {@link ch.ethz.globis.distindex.client.exception.RetryLimitExceededException} once the query was
+     * sent {@link #MAX_ASYNC_ATTEMPTS} times.
+     */
+    public <R> CompletableFuture<List<R>> queryAllAsync(final long[] min, final long[] max, final int maxResults,
+                                                        final PhFilter filter, final PhMapper<V, R> mapper) {
+        return queryAllAsync(min, max, maxResults, filter, mapper, 1);
+    }
+
+    private <R> CompletableFuture<List<R>> queryAllAsync(final long[] min, final long[] max, final int maxResults,
+                                                         final PhFilter filter, final PhMapper<V, R> mapper,
+                                                         final int attempt) {
+        final GetRangeFilterMapperRequest<long[]> request =
+                requests.newGetRangeFilterMaper(min, max, maxResults, filter, mapper);
+        KeyMapping<long[]> mapping = clusterService.getMapping();
+        List<String> hostIds = mapping.get(min, max);
+        return requestDispatcher.sendAsync(hostIds, request, ResultResponse.class).thenCompose(responses -> {
+            if (check(request, responses)) {
+                return retryAsync(request, responses, attempt,
+                        nextAttempt -> queryAllAsync(min, max, maxResults, filter, mapper, nextAttempt));
+            }
+            return CompletableFuture.completedFuture(combine(responses, mapper));
+        });
+    }
+
+    /**
+     * Create a publisher for the entries inside the range. The entries are fetched from the hosts in chunks,
+     * as the subscribers request them.
+     *
+     * @param min                           The lower left corner of the query range.
+     * @param max                           The upper right corner of the query range.
+     * @return                              The publisher of the entries, in z-order.
+     */
+    public Publisher<PhEntry<V>> queryPublisher(long[] min, long[] max) {
+        return new RangePublisher<>(this, min, max, RangePublisher.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create the spliterator backing {@link #stream(Object, Object)}. Besides the hosts, the range of a single
+     * host is split into z-ordered sub-ranges.
+     */
+    @Override
+    protected Spliterator<IndexEntry<long[], V>> spliterator(long[] start, long[] end) {
+        return new DistIndexSpliterator<>(this, clusterService.getMapping(), start, end, (min, max) -> {
+            long[][] ranges = MultidimUtil.zSplit(min, max);
+            return (ranges == null) ? null : Arrays.asList(ranges);
+        });
     }
 
     public String toStringTree() {
@@ -297,10 +382,6 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         this.knnStrategy.setRadiusStrategy(radiusStrategy);
     }
 
-    public KeyMapping<long[]> getMapping() {
-        return clusterService.getMapping();
-    }
-
     RequestDispatcher<long[], V> getRequestDispatcher() {
         return requestDispatcher;
     }
@@ -319,6 +400,20 @@ public class PHTreeIndexProxy<V> extends IndexProxy<long[], V> implements PointI
         }
     }
 
+    /**
+     * Map the entries of a frame of a range result. Only successful frames hold entries, the status of the
+     * last frame of every host is checked once all of them were received.
+     */
+    @SuppressWarnings("unchecked")
+    private <R> void collect(ResultResponse frame, PhMapper<V, R> mapper, Consumer<R> results) {
+        if (frame.getStatus() != OpStatus.PARTIAL && frame.getStatus() != OpStatus.SUCCESS) {
+            return;
+        }
+        for (IndexEntry<long[], V> e : ((ResultResponse<long[], V>) frame).getEntries()) {
+            results.accept(mapper.map(new PhEntry<>(e.getKey(), e.getValue())));
+        }
+    }
+
     protected <R> List<R> combine(List<ResultResponse> responses, PhMapper<V, R> mapper) {
         List<R> results = new ArrayList<>();
         for (ResultResponse<long[],V> response : responses) {
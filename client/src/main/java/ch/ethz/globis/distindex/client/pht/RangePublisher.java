@@ -0,0 +1,269 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.client.pht;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.mapping.KeyMapping;
+import ch.ethz.globis.distindex.operation.OpStatus;
+import ch.ethz.globis.distindex.operation.response.ResultResponse;
+import ch.ethz.globis.phtree.PhEntry;
+
+/**
+ * Publishes the entries of a range query, in z-order, to reactive streams subscribers.
+ *
+ * The entries are only requested from the hosts once the subscriber signals demand for them. Every
+ * request asks a host for at most one chunk of the entries following the last entry received, so the
+ * hosts keep no state and both sides only hold a single chunk, however many entries the range holds.
+ *
+ * Every subscriber receives the entries of its own traversal of the range.
+ *
+ * @param <V>                                   The class of the values.
+ */
+public class RangePublisher<V> implements Publisher<PhEntry<V>> {
+
+    /** The default maximum number of entries requested from a host at once. */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final PHTreeIndexProxy<V> indexProxy;
+    private final long[] min;
+    private final long[] max;
+    private final int chunkSize;
+
+    public RangePublisher(PHTreeIndexProxy<V> indexProxy, long[] min, long[] max, int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size needs to be positive.");
+        }
+        this.indexProxy = indexProxy;
+        this.min = min;
+        this.max = max;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super PhEntry<V>> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber should not be null");
+        }
+        RangeSubscription subscription = new RangeSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * The traversal of the range for a single subscriber.
+     *
+     * The signals to the subscriber are only sent from the drain loop, which is entered by one thread at a
+     * time: the one signalling demand or the transport thread delivering a chunk.
+     */
+    private class RangeSubscription implements Subscription {
+
+        private final Subscriber<? super PhEntry<V>> subscriber;
+
+        /** The number of entries requested by the subscriber and not yet delivered. */
+        private final AtomicLong requested = new AtomicLong();
+
+        /** The number of times the drain loop was entered and not yet served. */
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled = false;
+
+        /** The last response received, handed over to the drain loop. */
+        private volatile ResultResponse<long[], V> received;
+
+        /** The failure of the last request, handed over to the drain loop. */
+        private volatile Throwable failure;
+
+        // the following fields are only accessed from the drain loop
+
+        /** The hosts holding keys in the range, in z-order. */
+        private List<String> hosts;
+
+        /** The index of the host from which chunks are currently brought. */
+        private int hostIndex = 0;
+
+        /** The last key received from the current host, or null. */
+        private long[] hostLastKey;
+
+        /** The last key received, used to resume the traversal if the mapping changes. */
+        private long[] lastKey;
+
+        /** The chunk currently delivered. */
+        private IndexEntryList<long[], V> chunk;
+
+        /** the position within the chunk */
+        private int position = 0;
+
+        /** Whether a chunk was requested and not yet received. */
+        private boolean pending = false;
+
+        /** Whether onComplete or onError were signalled. */
+        private boolean terminated = false;
+
+        RangeSubscription(Subscriber<? super PhEntry<V>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                failure = new IllegalArgumentException("The number of requested entries should be positive, was " + n);
+            } else {
+                long current, next;
+                do {
+                    current = requested.get();
+                    next = current + n;
+                    if (next < 0) {
+                        next = Long.MAX_VALUE;
+                    }
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                drainLoop();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainLoop() {
+            while (!cancelled && !terminated) {
+                Throwable error = failure;
+                if (error != null) {
+                    terminate();
+                    subscriber.onError(error);
+                    return;
+                }
+                ResultResponse<long[], V> response = received;
+                if (response != null) {
+                    received = null;
+                    pending = false;
+                    accept(response);
+                }
+                if (chunk != null && position < chunk.size()) {
+                    if (requested.get() == 0) {
+                        return;
+                    }
+                    IndexEntry<long[], V> entry = chunk.get(position++);
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    subscriber.onNext(new PhEntry<>(entry.getKey(), entry.getValue()));
+                    continue;
+                }
+                if (hosts == null) {
+                    hosts = orderedHosts(indexProxy.getMapping());
+                }
+                if (hostIndex >= hosts.size()) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+                if (!pending && requested.get() > 0) {
+                    pending = true;
+                    fetch();
+                }
+                return;
+            }
+            chunk = null;
+        }
+
+        /**
+         * Request the next chunk of the current host. The response is handed over to the drain loop.
+         */
+        private void fetch() {
+            int size = (int) Math.min(chunkSize, requested.get());
+            indexProxy.getBatchAfterAsync(hosts.get(hostIndex), size, hostLastKey, min, max)
+                    .whenComplete((response, error) -> {
+                        if (error != null) {
+                            failure = (error instanceof CompletionException && error.getCause() != null)
+                                    ? error.getCause() : error;
+                        } else {
+                            received = response;
+                        }
+                        drain();
+                    });
+        }
+
+        private void accept(ResultResponse<long[], V> response) {
+            if (response.getStatus() == OpStatus.OUTDATED_VERSION) {
+                // the mapping changed, continue after the last key on the host now holding it
+                KeyMapping<long[]> mapping = indexProxy.getMapping();
+                hosts = orderedHosts(mapping);
+                hostIndex = (lastKey == null) ? 0 : Math.max(0, hosts.indexOf(mapping.get(lastKey)));
+                hostLastKey = lastKey;
+                return;
+            }
+            chunk = response.getEntries();
+            position = 0;
+            if (chunk.size() > 0) {
+                lastKey = chunk.get(chunk.size() - 1).getKey();
+                hostLastKey = lastKey;
+            }
+            if ("".equals(response.getIteratorId())) {
+                hostIndex++;
+                hostLastKey = null;
+            }
+        }
+
+        private void terminate() {
+            terminated = true;
+            chunk = null;
+        }
+
+        private List<String> orderedHosts(KeyMapping<long[]> mapping) {
+            Set<String> selected = new HashSet<>(mapping.get(min, max));
+            List<String> result = new ArrayList<>();
+            for (String hostId = mapping.getFirst(); hostId != null; hostId = mapping.getNext(hostId)) {
+                if (selected.contains(hostId)) {
+                    result.add(hostId);
+                }
+            }
+            return result;
+        }
+    }
+}
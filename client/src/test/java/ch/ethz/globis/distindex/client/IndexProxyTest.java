@@ -26,6 +26,7 @@ package ch.ethz.globis.distindex.client;
 
 import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.api.IndexIterator;
 import ch.ethz.globis.distindex.client.exception.InvalidResponseException;
 import ch.ethz.globis.distindex.client.exception.ServerErrorException;
 import ch.ethz.globis.disindex.codec.io.ClientRequestDispatcher;
@@ -40,8 +41,14 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -250,6 +257,181 @@ public class IndexProxyTest {
         indexProxy.remove(key);
     }
 
+    @Test
+    public void testPutAsync_OutdatedVersion() {
+        RequestDispatcher<long[], String> dispatcher = mockDispatcher();
+        IndexProxy<long[], String> indexProxy = mockIndexProxy(dispatcher);
+
+        long[] key = {1, 2 , 3};
+        final String value = new BigInteger(30, new Random()).toString();
+        final IndexEntryList<long[], String> singleEntry = new IndexEntryList<>(key, value);
+        when(dispatcher.sendAsync(anyString(), any(PutRequest.class), eq(ResultResponse.class))).thenAnswer(
+                new Answer<CompletableFuture<ResultResponse<long[], String>>>() {
+
+                    private int attempts = 0;
+
+                    @Override
+                    public CompletableFuture<ResultResponse<long[], String>> answer(InvocationOnMock invocation) throws Throwable {
+                        BaseRequest request = (BaseRequest) invocation.getArguments()[1];
+                        byte status = (attempts++ == 0) ? OpStatus.OUTDATED_VERSION : OpStatus.SUCCESS;
+                        IndexEntryList<long[], String> actual = new IndexEntryList<>();
+                        actual.addAll(singleEntry);
+                        return CompletableFuture.completedFuture(
+                                new ResultResponse<>(request.getOpCode(), request.getId(), status, actual));
+                    }
+                });
+
+        String retrieved = indexProxy.putAsync(key, value).join();
+        assertEquals(value, retrieved);
+    }
+
+    @Test
+    public void testIterator_AdaptiveBatches() {
+        RequestDispatcher<long[], String> dispatcher = mockDispatcher();
+        IndexProxy<long[], String> indexProxy = mockIndexProxy(dispatcher);
+
+        final int nrEntries = 1000;
+        final List<Integer> batchSizes = new ArrayList<>();
+        when(dispatcher.sendAsync(anyString(), any(GetIteratorBatchRequest.class), eq(ResultResponse.class))).thenAnswer(
+                new Answer<CompletableFuture<ResultResponse<long[], String>>>() {
+
+                    @Override
+                    public CompletableFuture<ResultResponse<long[], String>> answer(InvocationOnMock invocation) throws Throwable {
+                        GetIteratorBatchRequest<?> request = (GetIteratorBatchRequest<?>) invocation.getArguments()[1];
+                        batchSizes.add(request.getBatchSize());
+                        int offset = "".equals(request.getIteratorId()) ? 0 : Integer.parseInt(request.getIteratorId());
+                        int end = Math.min(nrEntries, offset + request.getBatchSize());
+                        IndexEntryList<long[], String> batch = new IndexEntryList<>();
+                        for (int i = offset; i < end; i++) {
+                            batch.add(new long[] { i }, String.valueOf(i));
+                        }
+                        String iteratorId = (end == nrEntries) ? "" : String.valueOf(end);
+                        ResultResponse<long[], String> response = new ResultResponse<>(request.getOpCode(), request.getId(),
+                                OpStatus.SUCCESS, batch, iteratorId);
+                        response.setEncodedSize(batch.size() * 100);
+                        return CompletableFuture.completedFuture(response);
+                    }
+                });
+
+        IndexIterator<long[], String> it = indexProxy.iterator();
+        int expected = 0;
+        while (it.hasNext()) {
+            assertEquals(String.valueOf(expected++), it.next().getValue());
+        }
+        assertEquals(nrEntries, expected);
+        assertEquals(DistIndexIterator.INITIAL_BATCH_SIZE, (int) batchSizes.get(0));
+        assertEquals(2 * DistIndexIterator.INITIAL_BATCH_SIZE, (int) batchSizes.get(1));
+        assertTrue(batchSizes.size() < nrEntries / DistIndexIterator.INITIAL_BATCH_SIZE);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testParallelIterator_OrderedMerge() {
+        RequestDispatcher<long[], String> dispatcher = mockDispatcher();
+        IndexProxy<long[], String> indexProxy = mockIndexProxy(dispatcher);
+
+        final List<String> hosts = Arrays.asList("host0", "host1", "host2");
+        KeyMapping<long[]> mapping = mock(KeyMapping.class);
+        when(mapping.getFirst()).thenReturn("host0");
+        when(mapping.getNext("host0")).thenReturn("host1");
+        when(mapping.getNext("host1")).thenReturn("host2");
+        when(mapping.get(any(long[].class), any(long[].class))).thenReturn(hosts);
+
+        final int entriesPerHost = 100;
+        when(dispatcher.sendAsync(anyString(), any(GetIteratorBatchRequest.class), eq(ResultResponse.class))).thenAnswer(
+                new Answer<CompletableFuture<ResultResponse<long[], String>>>() {
+
+                    @Override
+                    public CompletableFuture<ResultResponse<long[], String>> answer(InvocationOnMock invocation) throws Throwable {
+                        final int host = hosts.indexOf(invocation.getArguments()[0]);
+                        final GetIteratorBatchRequest<?> request = (GetIteratorBatchRequest<?>) invocation.getArguments()[1];
+                        return CompletableFuture.supplyAsync(() -> {
+                            int offset = "".equals(request.getIteratorId()) ? 0 : Integer.parseInt(request.getIteratorId());
+                            int end = Math.min(entriesPerHost, offset + request.getBatchSize());
+                            IndexEntryList<long[], String> batch = new IndexEntryList<>();
+                            for (int i = offset; i < end; i++) {
+                                int value = host * entriesPerHost + i;
+                                batch.add(new long[] { value }, String.valueOf(value));
+                            }
+                            String iteratorId = (end == entriesPerHost) ? "" : String.valueOf(end);
+                            return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.SUCCESS, batch, iteratorId);
+                        });
+                    }
+                });
+
+        IndexIterator<long[], String> it = new ParallelDistIndexIterator<>(indexProxy, mapping,
+                new long[] { 0 }, new long[] { 1000 }, 7, 2);
+        int expected = 0;
+        while (it.hasNext()) {
+            assertEquals(String.valueOf(expected++), it.next().getValue());
+        }
+        assertEquals(hosts.size() * entriesPerHost, expected);
+        it.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testParallelIterator_RenewsIdleIterators() throws Exception {
+        RequestDispatcher<long[], String> dispatcher = mockDispatcher();
+        IndexProxy<long[], String> indexProxy = mockIndexProxy(dispatcher);
+
+        final List<String> hosts = Arrays.asList("host0", "host1", "host2");
+        KeyMapping<long[]> mapping = mock(KeyMapping.class);
+        when(mapping.getFirst()).thenReturn("host0");
+        when(mapping.getNext("host0")).thenReturn("host1");
+        when(mapping.getNext("host1")).thenReturn("host2");
+        when(mapping.get(any(long[].class), any(long[].class))).thenReturn(hosts);
+
+        // the hosts drop the iterators that were not used for longer than the lease
+        final long lease = 100;
+        final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+        final int entriesPerHost = 50;
+        when(dispatcher.sendAsync(anyString(), any(GetIteratorBatchRequest.class), eq(ResultResponse.class))).thenAnswer(
+                new Answer<CompletableFuture<ResultResponse<long[], String>>>() {
+
+                    @Override
+                    public CompletableFuture<ResultResponse<long[], String>> answer(InvocationOnMock invocation) throws Throwable {
+                        final String hostId = (String) invocation.getArguments()[0];
+                        final int host = hosts.indexOf(hostId);
+                        final GetIteratorBatchRequest<?> request = (GetIteratorBatchRequest<?>) invocation.getArguments()[1];
+                        long now = System.currentTimeMillis();
+                        if (!"".equals(request.getIteratorId())) {
+                            Long used = lastUsed.remove(hostId + request.getIteratorId());
+                            if (used == null || now - used > lease) {
+                                return CompletableFuture.completedFuture(new ResultResponse<long[], String>(
+                                        request.getOpCode(), request.getId(), OpStatus.FAILURE));
+                            }
+                        }
+                        int offset = "".equals(request.getIteratorId()) ? 0 : Integer.parseInt(request.getIteratorId());
+                        int end = Math.min(entriesPerHost, offset + request.getBatchSize());
+                        IndexEntryList<long[], String> batch = new IndexEntryList<>();
+                        for (int i = offset; i < end; i++) {
+                            int value = host * entriesPerHost + i;
+                            batch.add(new long[] { value }, String.valueOf(value));
+                        }
+                        String iteratorId = (end == entriesPerHost) ? "" : String.valueOf(end);
+                        if (!"".equals(iteratorId)) {
+                            lastUsed.put(hostId + iteratorId, now);
+                        }
+                        return CompletableFuture.completedFuture(
+                                new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.SUCCESS, batch, iteratorId));
+                    }
+                });
+
+        // the first host is consumed slowly, the buffers of the other hosts stay full for several leases
+        IndexIterator<long[], String> it = new ParallelDistIndexIterator<>(indexProxy, mapping,
+                new long[] { 0 }, new long[] { 1000 }, 5, 2, lease / 5);
+        int expected = 0;
+        while (it.hasNext()) {
+            assertEquals(String.valueOf(expected++), it.next().getValue());
+            if (expected < entriesPerHost) {
+                Thread.sleep(10);
+            }
+        }
+        assertEquals(hosts.size() * entriesPerHost, expected);
+        it.close();
+    }
+
     /**
      * NOTE: This answer is only valid for the RequestDispatcher.send() methods.
      *
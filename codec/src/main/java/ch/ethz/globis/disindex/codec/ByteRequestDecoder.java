@@ -26,6 +26,7 @@ package ch.ethz.globis.disindex.codec;
 
 import ch.ethz.globis.disindex.codec.api.FieldDecoder;
 import ch.ethz.globis.disindex.codec.api.RequestDecoder;
+import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.operation.request.*;
 import ch.ethz.globis.distindex.util.SerializerUtil;
 import ch.ethz.globis.phtree.PhFilter;
@@ -36,6 +37,8 @@ import com.google.common.base.Strings;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -111,6 +114,77 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
         return new PutRequest<>(requestId, opCode, indexName, mappingVersion, key, value);
     }
 
+    /**
+     * Decode a request from the client to insert multiple entries.
+     * @param buffer                    The ByteBuffer containing bytes sent by the client.
+     * @return                          The entries that have to be added to the index.
+     */
+    @Override
+    public PutAllRequest<K, byte[]> decodePutAll(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        int nrEntries = buffer.getInt();
+        IndexEntryList<K, byte[]> entries = new IndexEntryList<>();
+        for (int i = 0; i < nrEntries; i++) {
+            K key = decodeKey(buffer);
+            byte[] value = readValue(buffer);
+            entries.add(key, value);
+        }
+        return new PutAllRequest<>(requestId, opCode, indexName, mappingVersion, entries);
+    }
+
+    /**
+     * Decode a request from the client to retrieve the values of multiple keys.
+     * @param buffer                    The ByteBuffer containing bytes sent by the client.
+     * @return                          The keys for which the get operation has to be executed.
+     */
+    @Override
+    public GetAllRequest<K> decodeGetAll(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        List<K> keys = decodeKeys(buffer);
+        return new GetAllRequest<>(requestId, opCode, indexName, mappingVersion, keys);
+    }
+
+    /**
+     * Decode a request from the client to delete multiple keys.
+     * @param buffer                    The ByteBuffer containing bytes sent by the client.
+     * @return                          The keys which have to be removed from the index.
+     */
+    @Override
+    public DeleteAllRequest<K> decodeDeleteAll(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        List<K> keys = decodeKeys(buffer);
+        return new DeleteAllRequest<>(requestId, opCode, indexName, mappingVersion, keys);
+    }
+
+    /**
+     * Decode a delete range request from the client.
+     * @param buffer                    The ByteBuffer containing bytes sent by the client.
+     * @return                          The corners of the range which has to be removed from the index.
+     */
+    @Override
+    public DeleteRangeRequest<K> decodeDeleteRange(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        K start = decodeKey(buffer);
+        K end = decodeKey(buffer);
+        return new DeleteRangeRequest<>(requestId, opCode, indexName, mappingVersion, start, end);
+    }
+
     /**
      * Decode a get values in range request from the client.
      * @param buffer                    The ByteBuffer containing bytes sent by the client.
@@ -127,7 +201,10 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
         K start = decodeKey(buffer);
         K end = decodeKey(buffer);
         double distance = buffer.getDouble();
-        return new GetRangeRequest<>(requestId, opCode, indexName, mappingVersion, start, end, distance);
+        GetRangeRequest<K> request = new GetRangeRequest<>(requestId, opCode, indexName, mappingVersion, start, end, distance);
+        request.setCompactKeys(readFlag(buffer));
+        request.setStreamed(readFlag(buffer));
+        return request;
     }
 
     @Override
@@ -152,7 +229,10 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
             byte[] filterBytes = new byte[filterLength];
             buffer.get(filterBytes);
             PhFilter filter = SerializerUtil.getInstance().deserializeDefault(filterBytes);
-            return new GetRangeFilterMapperRequest<>(requestId, opCode, indexName, mappingVersion, start, end, maxResults, filter, mapper);
+            GetRangeFilterMapperRequest<K> request = new GetRangeFilterMapperRequest<>(requestId, opCode, indexName, mappingVersion, start, end, maxResults, filter, mapper);
+            request.setCompactKeys(readFlag(buffer));
+            request.setStreamed(readFlag(buffer));
+            return request;
         } catch (IOException | ClassNotFoundException e) {
             throw new UnsupportedOperationException("Failed to perform decoding.", e);
         }
@@ -199,12 +279,20 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
         int size = buffer.getInt();
 
         boolean isRanged = (buffer.getInt() != 0);
+        GetIteratorBatchRequest<K> request;
         if (isRanged) {
             K start = decodeKey(buffer);
             K end = decodeKey(buffer);
-            return new GetIteratorBatchRequest<>(requestId, opCode, indexName, mappingVersion, iteratorId, size, start, end);
+            request = new GetIteratorBatchRequest<>(requestId, opCode, indexName, mappingVersion, iteratorId, size, start, end);
+        } else {
+            request = new GetIteratorBatchRequest<>(requestId, opCode, indexName, mappingVersion, iteratorId, size);
+        }
+        request.setCompactKeys(readFlag(buffer));
+        request.setStateless(readFlag(buffer));
+        if (request.isStateless() && readFlag(buffer)) {
+            request.setContinuationKey(decodeKey(buffer));
         }
-        return new GetIteratorBatchRequest<>(requestId, opCode, indexName, mappingVersion, iteratorId, size);
+        return request;
     }
 
 
@@ -279,6 +367,34 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
         return new PutBalancingRequest<>(requestId, opCode, indexName, mappingVersion, key, value);
     }
 
+    @Override
+    public PutAllBalancingRequest<K> decodePutAllBalancing(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        int nrEntries = buffer.getInt();
+        IndexEntryList<K, byte[]> entries = new IndexEntryList<>(nrEntries);
+        for (int i = 0; i < nrEntries; i++) {
+            K key = decodeKey(buffer);
+            byte[] value = readValue(buffer);
+            entries.add(key, value);
+        }
+        return new PutAllBalancingRequest<>(requestId, opCode, indexName, mappingVersion, entries);
+    }
+
+    @Override
+    public DeleteAllBalancingRequest<K> decodeDeleteAllBalancing(ByteBuffer buffer) {
+        byte opCode = buffer.get();
+        int requestId = buffer.getInt();
+        String indexName = new String(readValue(buffer));
+        int mappingVersion = buffer.getInt();
+
+        List<K> keys = decodeKeys(buffer);
+        return new DeleteAllBalancingRequest<>(requestId, opCode, indexName, mappingVersion, keys);
+    }
+
     @Override
     public CommitBalancingRequest decodeCommitBalancing(ByteBuffer buffer) {
         byte opCode = buffer.get();
@@ -299,16 +415,30 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
      *
      * The decoding is performed in the following steps:
      *  - the integer size of the key byte array is read from the buffer.
-     *  - the byte array containing the key is then read.
-     *  - the key is decoded using the keyDecoder.
+     *  - the key is decoded by the keyDecoder directly from the buffer.
      * @param buffer                        The ByteBuffer containing the key.
      * @return                              The decoded key.
      */
     private K decodeKey(ByteBuffer buffer) {
         int keyBytesSize = buffer.getInt();
-        byte[] keyBytes = new byte[keyBytesSize];
-        buffer.get(keyBytes);
-        return keyDecoder.decode(keyBytes);
+        K key = keyDecoder.decode(buffer, buffer.position(), keyBytesSize);
+        buffer.position(buffer.position() + keyBytesSize);
+        return key;
+    }
+
+    /**
+     * Decode a list of keys, preceded by the number of keys, from the current ByteBuffer.
+     *
+     * @param buffer                        The ByteBuffer containing the keys.
+     * @return                              The decoded keys.
+     */
+    private List<K> decodeKeys(ByteBuffer buffer) {
+        int nrKeys = buffer.getInt();
+        List<K> keys = new ArrayList<>(nrKeys);
+        for (int i = 0; i < nrKeys; i++) {
+            keys.add(decodeKey(buffer));
+        }
+        return keys;
     }
 
     /**
@@ -328,6 +458,17 @@ public class ByteRequestDecoder<K> implements RequestDecoder<K, byte[]> {
         return valueBytes;
     }
 
+    /**
+     * Decode a boolean flag written as a single byte. Flags are optional at the end of a request,
+     * so a missing flag is decoded as false.
+     *
+     * @param buffer                        The ByteBuffer containing the flag.
+     * @return                              The value of the flag.
+     */
+    private boolean readFlag(ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get() != 0;
+    }
+
     public RollbackBalancingRequest decodeRollbackBalancing(ByteBuffer buffer) {
         byte opCode = buffer.get();
         int requestId = buffer.getInt();
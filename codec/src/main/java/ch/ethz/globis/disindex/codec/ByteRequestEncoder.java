@@ -26,13 +26,20 @@ package ch.ethz.globis.disindex.codec;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import ch.ethz.globis.disindex.codec.api.FieldEncoder;
 import ch.ethz.globis.disindex.codec.api.RequestEncoder;
+import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.operation.OpCode;
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.ContainsRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteAllBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteAllRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteRangeRequest;
 import ch.ethz.globis.distindex.operation.request.DeleteRequest;
+import ch.ethz.globis.distindex.operation.request.GetAllRequest;
 import ch.ethz.globis.distindex.operation.request.GetIteratorBatchRequest;
 import ch.ethz.globis.distindex.operation.request.GetKNNRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeFilterMapperRequest;
@@ -40,6 +47,8 @@ import ch.ethz.globis.distindex.operation.request.GetRangeRequest;
 import ch.ethz.globis.distindex.operation.request.GetRequest;
 import ch.ethz.globis.distindex.operation.request.InitBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.MapRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllRequest;
 import ch.ethz.globis.distindex.operation.request.PutBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.PutRequest;
 import ch.ethz.globis.distindex.operation.request.Request;
@@ -76,6 +85,7 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
                 encodedRequest = encodeGet(gr);
                 break;
             case OpCode.GET_RANGE:
+            case OpCode.COUNT_RANGE:
                 GetRangeRequest<K> grr = (GetRangeRequest<K>) request;
                 encodedRequest = encodeGetRange(grr);
                 break;
@@ -95,6 +105,22 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
                 DeleteRequest<K> dr = (DeleteRequest<K>) request;
                 encodedRequest = encodeDelete(dr);
                 break;
+            case OpCode.PUT_ALL:
+                PutAllRequest<K, V> pa = (PutAllRequest<K, V>) request;
+                encodedRequest = encodePutAll(pa);
+                break;
+            case OpCode.GET_ALL:
+                GetAllRequest<K> ga = (GetAllRequest<K>) request;
+                encodedRequest = encodeGetAll(ga);
+                break;
+            case OpCode.DELETE_ALL:
+                DeleteAllRequest<K> da = (DeleteAllRequest<K>) request;
+                encodedRequest = encodeDeleteAll(da);
+                break;
+            case OpCode.DELETE_RANGE:
+                DeleteRangeRequest<K> drr = (DeleteRangeRequest<K>) request;
+                encodedRequest = encodeDeleteRange(drr);
+                break;
             case OpCode.GET_DEPTH:
             case OpCode.GET_DIM:
             case OpCode.GET_SIZE:
@@ -111,6 +137,14 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
                 PutBalancingRequest<K> pbr = (PutBalancingRequest<K>) request;
                 encodedRequest = encodePutBalancingRequest(pbr);
                 break;
+            case OpCode.BALANCE_PUT_ALL:
+                PutAllBalancingRequest<K> pabr = (PutAllBalancingRequest<K>) request;
+                encodedRequest = encodePutAllBalancingRequest(pabr);
+                break;
+            case OpCode.BALANCE_DELETE_ALL:
+                DeleteAllBalancingRequest<K> dabr = (DeleteAllBalancingRequest<K>) request;
+                encodedRequest = encodeKeys(dabr, dabr.getKeys());
+                break;
             case OpCode.CREATE_INDEX:
             case OpCode.CLOSE_ITERATOR:
             case OpCode.BALANCE_COMMIT:
@@ -139,19 +173,39 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
     public byte[] encodePutBalancingRequest(PutBalancingRequest<K> request) {
         K key = request.getKey();
         byte[] value = request.getValue();
-        byte[] keyBytes = keyEncoder.encode(key);
 
-        int outputSize = keyBytes.length + 4        // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4        // key bytes + number of key bytes
                 + value.length + 4     // value bytes + number of value bytes
                 + request.metadataSize();   // metadata
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
         writeByteArray(buffer, value);
         return buffer.array();
     }
 
+    /**
+     * Encode a chunk of balancing entries. The values are already encoded, so they are written as they are.
+     */
+    public byte[] encodePutAllBalancingRequest(PutAllBalancingRequest<K> request) {
+        int outputSize = 4                          // number of entries
+                        + request.metadataSize();   // metadata
+        for (IndexEntry<K, byte[]> entry : request.getEntries()) {
+            outputSize += keyEncoder.encodedSize(entry.getKey()) + 4    // key bytes + number of key bytes
+                        + entry.getValue().length + 4;                  // value bytes + number of value bytes
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(outputSize);
+        writeMeta(buffer, request);
+        buffer.putInt(request.getEntries().size());
+        for (IndexEntry<K, byte[]> entry : request.getEntries()) {
+            writeKey(buffer, entry.getKey());
+            writeByteArray(buffer, entry.getValue());
+        }
+        return buffer.array();
+    }
+
     public byte[] encodeInitBalancingRequest(InitBalancingRequest request) {
         int size = request.getSize();
         int dim = request.getDim();
@@ -168,44 +222,87 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
 
     public byte[] encodeContains(ContainsRequest<K> request) {
         K key = request.getKey();
-        byte[] keyBytes = keyEncoder.encode(key);
 
-        int outputSize = keyBytes.length + 4        // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4        // key bytes + number of key bytes
                 + request.metadataSize();   // metadata
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
         return buffer.array();
     }
 
     public byte[] encodePut(PutRequest<K, V> request) {
         K key = request.getKey();
         V value = request.getValue();
-        byte[] keyBytes = keyEncoder.encode(key);
         byte[] valueBytes = valueEncoder.encode(value);
 
-        int outputSize = keyBytes.length + 4        // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4        // key bytes + number of key bytes
                         + valueBytes.length + 4     // value bytes + number of value bytes
                         + request.metadataSize();   // metadata
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
         writeByteArray(buffer, valueBytes);
         return buffer.array();
     }
 
+    public byte[] encodePutAll(PutAllRequest<K, V> request) {
+        List<byte[]> valueBytes = new ArrayList<>(request.getEntries().size());
+        int outputSize = 4                          // number of entries
+                        + request.metadataSize();   // metadata
+        for (IndexEntry<K, V> entry : request.getEntries()) {
+            byte[] value = valueEncoder.encode(entry.getValue());
+            valueBytes.add(value);
+            outputSize += keyEncoder.encodedSize(entry.getKey()) + 4    // key bytes + number of key bytes
+                        + value.length + 4;         // value bytes + number of value bytes
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(outputSize);
+        writeMeta(buffer, request);
+        buffer.putInt(valueBytes.size());
+        int i = 0;
+        for (IndexEntry<K, V> entry : request.getEntries()) {
+            writeKey(buffer, entry.getKey());
+            writeByteArray(buffer, valueBytes.get(i++));
+        }
+        return buffer.array();
+    }
+
+    public byte[] encodeGetAll(GetAllRequest<K> request) {
+        return encodeKeys(request, request.getKeys());
+    }
+
+    public byte[] encodeDeleteAll(DeleteAllRequest<K> request) {
+        return encodeKeys(request, request.getKeys());
+    }
+
+    private byte[] encodeKeys(BaseRequest request, List<K> keys) {
+        int outputSize = 4                          // number of keys
+                        + request.metadataSize();   // metadata
+        for (K key : keys) {
+            outputSize += keyEncoder.encodedSize(key) + 4;  // key bytes + number of key bytes
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(outputSize);
+        writeMeta(buffer, request);
+        buffer.putInt(keys.size());
+        for (K key : keys) {
+            writeKey(buffer, key);
+        }
+        return buffer.array();
+    }
+
     public byte[] encodeGet(GetRequest<K> request) {
         K key = request.getKey();
-        byte[] keyBytes = keyEncoder.encode(key);
 
-        int outputSize = keyBytes.length + 4        // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4        // key bytes + number of key bytes
                         + request.metadataSize();   // metadata
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
         return buffer.array();
     }
 
@@ -213,19 +310,20 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
         K start = request.getStart();
         K end = request.getEnd();
 
-        byte[] startKeyBytes = keyEncoder.encode(start);
-        byte[] endKeyBytes = keyEncoder.encode(end);
-
-        int outputSize = startKeyBytes.length + 4   // start key bytes + number of start key bytes
-                        + endKeyBytes.length + 4    // end key bytes + number of end key bytes
+        int outputSize = keyEncoder.encodedSize(start) + 4   // start key bytes + number of start key bytes
+                        + keyEncoder.encodedSize(end) + 4    // end key bytes + number of end key bytes
                         + 8                         // distance
+                        + 1                         // compact keys flag
+                        + 1                         // streamed flag
                         + request.metadataSize();   // metadata size
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, startKeyBytes);
-        writeByteArray(buffer, endKeyBytes);
+        writeKey(buffer, start);
+        writeKey(buffer, end);
         buffer.putDouble(request.getDistance());
+        writeFlag(buffer, request.isCompactKeys());
+        writeFlag(buffer, request.isStreamed());
         return buffer.array();
     }
 
@@ -236,24 +334,25 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
 
             K start = request.getStart();
             K end = request.getEnd();
-
-            byte[] startKeyBytes = keyEncoder.encode(start);
-            byte[] endKeyBytes = keyEncoder.encode(end);
-            int outputSize = startKeyBytes.length + 4   // start key bytes + number of start key bytes
-                    + endKeyBytes.length + 4    // end key bytes + number of end key bytes
+            int outputSize = keyEncoder.encodedSize(start) + 4   // start key bytes + number of start key bytes
+                    + keyEncoder.encodedSize(end) + 4    // end key bytes + number of end key bytes
                     + 8                         // sizes of encoded mapper and filter
                     + 4                         // max entries
+                    + 1                         // compact keys flag
+                    + 1                         // streamed flag
                     + encodedMapper.length
                     + encodedFilter.length
                     + request.metadataSize();   // metadata size
 
             ByteBuffer buffer = ByteBuffer.allocate(outputSize);
             writeMeta(buffer, request);
-            writeByteArray(buffer, startKeyBytes);
-            writeByteArray(buffer, endKeyBytes);
+            writeKey(buffer, start);
+            writeKey(buffer, end);
             buffer.putInt(request.getMaxResults());
             writeByteArray(buffer, encodedMapper);
             writeByteArray(buffer, encodedFilter);
+            writeFlag(buffer, request.isCompactKeys());
+            writeFlag(buffer, request.isStreamed());
             return buffer.array();
         } catch (IOException e) {
             throw new RuntimeException("An error occurred during the serialization process.");
@@ -263,15 +362,14 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
     public byte[] encodeGetKNN(GetKNNRequest<K> request) {
         K key = request.getKey();
         int k = request.getK();
-        byte[] keyBytes = keyEncoder.encode(key);
 
-        int outputSize = keyBytes.length + 4 // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4 // key bytes + number of key bytes
                 + 4                          // k
                 + request.metadataSize();    // metadata size
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
         buffer.putInt(k);
         return buffer.array();
     }
@@ -283,13 +381,20 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
 
         int outputSize = iteratorId.getBytes().length + 4
                         + 4                         // batch size
+                        + 1                         // compact keys flag
+                        + 1                         // stateless flag
                         + request.metadataSize();   // metadata
 
-        byte[] startBytes = null, endBytes = null;
+        K continuationKey = request.getContinuationKey();
+        if (request.isStateless()) {
+            outputSize += 1;                        // continuation key flag
+            if (continuationKey != null) {
+                outputSize += 4 + keyEncoder.encodedSize(continuationKey);
+            }
+        }
         if (request.isRanged()) {
-            startBytes = keyEncoder.encode(request.getStart());
-            endBytes = keyEncoder.encode(request.getEnd());
-            outputSize += 4 + startBytes.length + 4 + endBytes.length + 4;
+            outputSize += 4 + keyEncoder.encodedSize(request.getStart())
+                        + 4 + keyEncoder.encodedSize(request.getEnd()) + 4;
         } else {
             outputSize += 4;
         }
@@ -300,24 +405,46 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
         buffer.putInt(size);
         if (request.isRanged()) {
             buffer.putInt(1);
-            writeByteArray(buffer, startBytes);
-            writeByteArray(buffer, endBytes);
+            writeKey(buffer, request.getStart());
+            writeKey(buffer, request.getEnd());
         } else {
             buffer.putInt(0);
         }
+        writeFlag(buffer, request.isCompactKeys());
+        writeFlag(buffer, request.isStateless());
+        if (request.isStateless()) {
+            writeFlag(buffer, continuationKey != null);
+            if (continuationKey != null) {
+                writeKey(buffer, continuationKey);
+            }
+        }
         return buffer.array();
     }
 
     public byte[] encodeDelete(DeleteRequest<K> request) {
         K key = request.getKey();
-        byte[] keyBytes = keyEncoder.encode(key);
 
-        int outputSize = keyBytes.length + 4        // key bytes + number of key bytes
+        int outputSize = keyEncoder.encodedSize(key) + 4        // key bytes + number of key bytes
                 + request.metadataSize();   // metadata
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, keyBytes);
+        writeKey(buffer, key);
+        return buffer.array();
+    }
+
+    public byte[] encodeDeleteRange(DeleteRangeRequest<K> request) {
+        K start = request.getStart();
+        K end = request.getEnd();
+
+        int outputSize = keyEncoder.encodedSize(start) + 4   // start key bytes + number of start key bytes
+                + keyEncoder.encodedSize(end) + 4    // end key bytes + number of end key bytes
+                + request.metadataSize();   // metadata size
+
+        ByteBuffer buffer = ByteBuffer.allocate(outputSize);
+        writeMeta(buffer, request);
+        writeKey(buffer, start);
+        writeKey(buffer, end);
         return buffer.array();
     }
 
@@ -343,17 +470,14 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
         K start = request.getOldKey();
         K end = request.getNewKey();
 
-        byte[] oldKeyBytes = keyEncoder.encode(start);
-        byte[] newKeyBytes = keyEncoder.encode(end);
-
-        int outputSize = oldKeyBytes.length + 4   // start key bytes + number of start key bytes
-                + newKeyBytes.length + 4    // end key bytes + number of end key bytes
+        int outputSize = keyEncoder.encodedSize(start) + 4   // start key bytes + number of start key bytes
+                + keyEncoder.encodedSize(end) + 4    // end key bytes + number of end key bytes
                 + request.metadataSize();   // metadata size
 
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
         writeMeta(buffer, request);
-        writeByteArray(buffer, oldKeyBytes);
-        writeByteArray(buffer, newKeyBytes);
+        writeKey(buffer, start);
+        writeKey(buffer, end);
         return buffer.array();
     }
 
@@ -385,6 +509,20 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
         return buffer;
     }
 
+    /**
+     * Write a key to the byte buffer. The size of the encoded key is first written to the buffer,
+     * followed by the key, which is encoded directly into the buffer.
+     *
+     * @param buffer                The output buffer used to encode the data.
+     * @param key                   The key to be written.
+     * @return                      The buffer after the write operation was completed.
+     */
+    private ByteBuffer writeKey(ByteBuffer buffer, K key) {
+        buffer.putInt(keyEncoder.encodedSize(key));
+        keyEncoder.write(key, buffer);
+        return buffer;
+    }
+
     /**
      * Write a byte array to the byte buffer. To allow an easy decoding, the length of the byte array
      * is first written to the buffer, followed by the array itself.
@@ -398,4 +536,16 @@ public class ByteRequestEncoder<K, V> implements RequestEncoder {
         buffer.put(data);
         return buffer;
     }
-}
\ No newline at end of file
+
+    /**
+     * Write a boolean flag to the byte buffer, as a single byte.
+     *
+     * @param buffer                The output buffer used to encode the data.
+     * @param flag                  The flag to be written.
+     * @return                      The buffer after the write operation was completed.
+     */
+    private ByteBuffer writeFlag(ByteBuffer buffer, boolean flag) {
+        buffer.put(flag ? (byte) 1 : (byte) 0);
+        return buffer;
+    }
+}
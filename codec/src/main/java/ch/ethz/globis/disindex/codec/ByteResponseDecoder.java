@@ -26,10 +26,13 @@ package ch.ethz.globis.disindex.codec;
 
 import java.nio.ByteBuffer;
 
+import ch.ethz.globis.disindex.codec.api.DeltaFieldDecoder;
 import ch.ethz.globis.disindex.codec.api.FieldDecoder;
 import ch.ethz.globis.disindex.codec.api.ResponseDecoder;
+import ch.ethz.globis.disindex.codec.util.BitUtils;
 import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.response.BaseResponse;
 import ch.ethz.globis.distindex.operation.response.IntegerResponse;
 import ch.ethz.globis.distindex.operation.response.MapResponse;
@@ -101,7 +104,10 @@ public class ByteResponseDecoder<K, V> implements ResponseDecoder<K, V> {
 
     @Override
     public MapResponse decodeMap(byte[] payload) {
-       return SerializerUtil.getInstance().deserialize(payload);
+        int headerSize = 4      // request id
+                + 1             // opcode
+                + 1;            // status
+        return SerializerUtil.getInstance().deserialize(payload, headerSize, payload.length - headerSize);
     }
 
     @Override
@@ -114,33 +120,91 @@ public class ByteResponseDecoder<K, V> implements ResponseDecoder<K, V> {
         return valueDecoder.decode(payload);
     }
 
+    /**
+     * Decode a result response. The keys are decoded directly from the buffer, while the values are
+     * only decoded when they are accessed, so the buffer must not be modified afterwards.
+     *
+     * A streamed result is received as a sequence of frames, all but the last one having the status
+     * {@link OpStatus#PARTIAL}. The frames are decoded one after the other and their entries merged
+     * into a single response, with the status of the last frame.
+     *
+     * @param buffer                        The buffer containing the response.
+     * @return                              The decoded response.
+     */
     public ResultResponse<K, V> decodeResult(ByteBuffer buffer) {
+        int startPosition = buffer.position();
+        ResultResponse<K, V> response = decodeResultFrame(buffer);
+        if (response.getStatus() != OpStatus.PARTIAL) {
+            response.setEncodedSize(buffer.position() - startPosition);
+            return response;
+        }
+        IndexEntryList<K, V> entries = new IndexEntryList<>();
+        while (response.getStatus() == OpStatus.PARTIAL && buffer.hasRemaining()) {
+            entries.addAll(response.getEntries());
+            response = decodeResultFrame(buffer);
+        }
+        entries.addAll(response.getEntries());
+        ResultResponse<K, V> merged = new ResultResponse<>(response.getOpCode(), response.getRequestId(),
+                response.getStatus(), entries, response.getIteratorId());
+        merged.setCompactKeys(response.isCompactKeys());
+        merged.setEncodedSize(buffer.position() - startPosition);
+        return merged;
+    }
+
+    private ResultResponse<K, V> decodeResultFrame(ByteBuffer buffer) {
         byte opCode = buffer.get();
         int requestId = buffer.getInt();
         byte status = buffer.get();
         int nrEntries = buffer.getInt();
+        byte keyFormat = buffer.get();
+
+        IndexEntryList<K, V> entries;
+        if (keyFormat == ByteResponseEncoder.DELTA_KEYS) {
+            entries = decodeDeltaEntries(buffer, nrEntries);
+        } else {
+            entries = decodeEntries(buffer, nrEntries);
+        }
+
+        String iteratorId = readString(buffer);
+        ResultResponse<K, V> response = new ResultResponse<>(opCode, requestId, status, entries, iteratorId);
+        response.setCompactKeys(keyFormat == ByteResponseEncoder.DELTA_KEYS);
+        return response;
+    }
 
+    private IndexEntryList<K, V> decodeEntries(ByteBuffer buffer, int nrEntries) {
         int keysBytesSize, valueBytesSize;
-        byte[] keyBytes, valueBytes;
         K key;
-        V value;
-        IndexEntryList<K, V> entries = new IndexEntryList<>();
+        IndexEntryList<K, V> entries = new IndexEntryList<>(nrEntries);
         for (int i = 0; i < nrEntries; i++) {
             keysBytesSize = buffer.getInt();
-            keyBytes = new byte[keysBytesSize];
-            buffer.get(keyBytes);
-            key = keyDecoder.decode(keyBytes);
+            key = keyDecoder.decode(buffer, buffer.position(), keysBytesSize);
+            buffer.position(buffer.position() + keysBytesSize);
 
             valueBytesSize = buffer.getInt();
-            valueBytes = new byte[valueBytesSize];
-            buffer.get(valueBytes);
-            value = valueDecoder.decode(valueBytes);
+            entries.add(new LazyIndexEntry<>(key, buffer, buffer.position(), valueBytesSize, valueDecoder));
+            buffer.position(buffer.position() + valueBytesSize);
+        }
+        return entries;
+    }
 
-            entries.add(new IndexEntry<>(key, value));
+    private IndexEntryList<K, V> decodeDeltaEntries(ByteBuffer buffer, int nrEntries) {
+        if (!(keyDecoder instanceof DeltaFieldDecoder)) {
+            throw new IllegalStateException("The key decoder does not support delta encoded keys.");
         }
+        DeltaFieldDecoder<K> deltaDecoder = (DeltaFieldDecoder<K>) keyDecoder;
 
-        String iteratorId = readString(buffer);
-        return new ResultResponse<>(opCode, requestId, status, entries, iteratorId);
+        int valueBytesSize;
+        K key, previous = null;
+        IndexEntryList<K, V> entries = new IndexEntryList<>(nrEntries);
+        for (int i = 0; i < nrEntries; i++) {
+            key = deltaDecoder.readDelta(previous, buffer);
+            previous = (key == null) ? previous : key;
+
+            valueBytesSize = (int) BitUtils.readVarLong(buffer);
+            entries.add(new LazyIndexEntry<>(key, buffer, buffer.position(), valueBytesSize, valueDecoder));
+            buffer.position(buffer.position() + valueBytesSize);
+        }
+        return entries;
     }
 
     private String readString(ByteBuffer buffer) {
@@ -24,10 +24,9 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.disindex.codec;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import ch.ethz.globis.disindex.codec.api.DeltaFieldEncoder;
 import ch.ethz.globis.disindex.codec.api.FieldEncoder;
 import ch.ethz.globis.disindex.codec.api.ResponseEncoder;
 import ch.ethz.globis.disindex.codec.util.BitUtils;
@@ -42,26 +41,75 @@ import ch.ethz.globis.distindex.util.SerializerUtil;
 /**
  * Encodes response messages sent by the server to the client.
  *
+ * The size of the encoded response is always computed before the encoding, so that the response can
+ * be written directly into a buffer of the exact size.
+ *
+ * The entries of a result response are written in one of two formats, identified by the byte following
+ * the number of entries. In the plain format, every key and value is preceded by its size as an int.
+ * In the compact format, requested by the client for range and iterator results, every key is delta
+ * encoded against the previous key and the value sizes are written as varints.
+ *
  * @param <K>                       The type of key.
  */
 public class ByteResponseEncoder<K> implements ResponseEncoder {
 
+    /** The size of the op code, request id and status written at the start of every response. */
+    private static final int HEADER_SIZE = 1    // opcode
+                                        + 4     // request id
+                                        + 1;    // status
+
+    /** The keys of the result are written using the plain format. */
+    public static final byte PLAIN_KEYS = 0;
+
+    /** The keys of the result are delta encoded against the previous key. */
+    public static final byte DELTA_KEYS = 1;
+
     private FieldEncoder<K> keyEncoder;
 
     public ByteResponseEncoder(FieldEncoder<K> keyEncoder) {
         this.keyEncoder = keyEncoder;
     }
 
-    @SuppressWarnings("unchecked")
     public byte[] encode(Response response) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(response));
+        encode(response, buffer);
+        return buffer.array();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public int encodedSize(Response response) {
+        if (response instanceof IntegerResponse) {
+            return HEADER_SIZE + 4;
+        } else if (response instanceof ResultResponse) {
+            return encodedSize((ResultResponse<K, byte[]>) response);
+        } else if (response instanceof MapResponse) {
+            return HEADER_SIZE + SerializerUtil.getInstance().serialize(response).length;
+        }
+        return HEADER_SIZE;
+    }
+
+    /**
+     * Encode a response into the buffer received as an argument. The buffer needs to have at least
+     * {@link #encodedSize(Response)} bytes remaining.
+     *
+     * Map responses are serialized both to compute the size and to encode them, which is acceptable as
+     * they are only used for the rarely sent meta-data responses.
+     *
+     * @param response                          The response.
+     * @param buffer                            The output buffer.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void encode(Response response, ByteBuffer buffer) {
+        writeHeader(response, buffer);
         if (response instanceof IntegerResponse) {
-            return encode((IntegerResponse) response);
+            buffer.putInt(((IntegerResponse) response).getContent());
         } else if (response instanceof ResultResponse) {
-            return encode((ResultResponse<K, byte[]>) response);
+            writeResult((ResultResponse<K, byte[]>) response, buffer);
         } else if (response instanceof MapResponse) {
-            return encodeMap((MapResponse) response);
+            buffer.put(SerializerUtil.getInstance().serialize(response));
         }
-        return encodeBase(response);
     }
 
     /**
@@ -71,14 +119,10 @@ public class ByteResponseEncoder<K> implements ResponseEncoder {
      * @return
      */
     public byte[] encode(ResultResponse<K, byte[]> response) {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        buffer.write(response.getOpCode());
-        writeInt(response.getRequestId(), buffer);
-        buffer.write(response.getStatus());
-        writeInt(response.getNrEntries(), buffer);
-        encode(buffer, response.getEntries());
-        writeString(response.getIteratorId(), buffer);
-        return buffer.toByteArray();
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(response));
+        writeHeader(response, buffer);
+        writeResult(response, buffer);
+        return buffer.array();
     }
 
     /**
@@ -88,14 +132,10 @@ public class ByteResponseEncoder<K> implements ResponseEncoder {
      * @return
      */
     public byte[] encode(IntegerResponse response) {
-        int outputSize = 4      // request id
-                        + 1     // opcode
-                        + 1     // status
+        int outputSize = HEADER_SIZE
                         + 4;    // int value
         ByteBuffer buffer = ByteBuffer.allocate(outputSize);
-        buffer.put(response.getOpCode());
-        buffer.putInt(response.getRequestId());
-        buffer.put(response.getStatus());
+        writeHeader(response, buffer);
         buffer.putInt(response.getContent());
         return buffer.array();
     }
@@ -107,40 +147,122 @@ public class ByteResponseEncoder<K> implements ResponseEncoder {
      * @return
      */
     public byte[] encodeBase(Response response) {
-        int outputSize = 4      // request id
-                + 1             // opcode
-                + 1;            // status
-        ByteBuffer buffer = ByteBuffer.allocate(outputSize);
-        buffer.put(response.getOpCode());
-        buffer.putInt(response.getRequestId());
-        buffer.put(response.getStatus());
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        writeHeader(response, buffer);
         return buffer.array();
     }
 
     /**
      * Encode a map response.
+     *
+     * The op code, request id and status are written in front of the serialized map, at the same offsets
+     * as for the other responses, so that a transport can match the response to its request.
+     *
      * @param response                          The map response.
      * @return
      */
     public byte[] encodeMap(MapResponse response) {
-        return SerializerUtil.getInstance().serialize(response);
+        byte[] content = SerializerUtil.getInstance().serialize(response);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + content.length);
+        writeHeader(response, buffer);
+        buffer.put(content);
+        return buffer.array();
+    }
+
+    /**
+     * Compute the size of an encoded result response.
+     *
+     * @param response                          The result response.
+     * @return                                  The number of bytes needed to encode the response.
+     */
+    public int encodedSize(ResultResponse<K, byte[]> response) {
+        int size = HEADER_SIZE
+                + 4                                     // number of entries
+                + 1;                                    // key format
+        if (isDeltaEncoded(response)) {
+            DeltaFieldEncoder<K> deltaEncoder = (DeltaFieldEncoder<K>) keyEncoder;
+            K previous = null;
+            for (IndexEntry<K, byte[]> entry : response.getEntries()) {
+                byte[] value = entry.getValue();
+                int valueSize = (value == null) ? 0 : value.length;
+                size += deltaEncoder.encodedDeltaSize(previous, entry.getKey())
+                        + BitUtils.varLongSize(valueSize) + valueSize;
+                previous = (entry.getKey() == null) ? previous : entry.getKey();
+            }
+        } else {
+            for (IndexEntry<K, byte[]> entry : response.getEntries()) {
+                byte[] value = entry.getValue();
+                size += 4 + keySize(entry.getKey())         // key bytes + number of key bytes
+                        + 4 + ((value == null) ? 0 : value.length); // value bytes + number of value bytes
+            }
+        }
+        String iteratorId = response.getIteratorId();
+        if (iteratorId != null) {
+            size += 4 + iteratorId.getBytes().length;
+        }
+        return size;
+    }
+
+    private void writeHeader(Response response, ByteBuffer buffer) {
+        buffer.put(response.getOpCode());
+        buffer.putInt(response.getRequestId());
+        buffer.put(response.getStatus());
     }
 
-    public void encode(ByteArrayOutputStream buffer, IndexEntryList<K, byte[]> entries) {
+    private void writeResult(ResultResponse<K, byte[]> response, ByteBuffer buffer) {
+        buffer.putInt(response.getNrEntries());
+        if (isDeltaEncoded(response)) {
+            buffer.put(DELTA_KEYS);
+            encodeDelta(buffer, response.getEntries());
+        } else {
+            buffer.put(PLAIN_KEYS);
+            encode(buffer, response.getEntries());
+        }
+        writeString(response.getIteratorId(), buffer);
+    }
+
+    /**
+     * The compact format is only used if it was requested and the keys support delta encoding.
+     */
+    private boolean isDeltaEncoded(ResultResponse<K, byte[]> response) {
+        return response.isCompactKeys() && (keyEncoder instanceof DeltaFieldEncoder);
+    }
+
+    private void encodeDelta(ByteBuffer buffer, IndexEntryList<K, byte[]> entries) {
+        DeltaFieldEncoder<K> deltaEncoder = (DeltaFieldEncoder<K>) keyEncoder;
+        K previous = null;
         for (IndexEntry<K, byte[]> entry : entries) {
-            write(keyEncoder.encode(entry.getKey()), buffer);
-            write(entry.getValue(), buffer);
+            K key = entry.getKey();
+            deltaEncoder.writeDelta(previous, key, buffer);
+            previous = (key == null) ? previous : key;
+
+            byte[] value = entry.getValue();
+            if (value == null) {
+                BitUtils.writeVarLong(0, buffer);
+            } else {
+                BitUtils.writeVarLong(value.length, buffer);
+                buffer.put(value);
+            }
         }
     }
 
-    private void writeInt(int value, ByteArrayOutputStream dest) {
-        byte[] bytes = BitUtils.toByteArray(value);
-        for (byte b : bytes) {
-            dest.write(b);
+    public void encode(ByteBuffer buffer, IndexEntryList<K, byte[]> entries) {
+        for (IndexEntry<K, byte[]> entry : entries) {
+            writeKey(entry.getKey(), buffer);
+            write(entry.getValue(), buffer);
         }
     }
 
-    private void writeString(String str, ByteArrayOutputStream dest) {
+    private int keySize(K key) {
+        return keyEncoder.encodedSize(key);
+    }
+
+    private void writeKey(K key, ByteBuffer dest) {
+        dest.putInt(keyEncoder.encodedSize(key));
+        keyEncoder.write(key, dest);
+    }
+
+    private void writeString(String str, ByteBuffer dest) {
         if (str == null) {
             return;
         }
@@ -148,17 +270,13 @@ public class ByteResponseEncoder<K> implements ResponseEncoder {
         write(bytes, dest);
     }
 
-    private void write(byte[] source, ByteArrayOutputStream dest) {
+    private void write(byte[] source, ByteBuffer dest) {
         if (source == null) {
-            writeInt(0, dest);
+            dest.putInt(0);
             return;
         }
-        writeInt(source.length, dest);
-        try {
-            dest.write(source);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        dest.putInt(source.length);
+        dest.put(source);
     }
 
-}
\ No newline at end of file
+}
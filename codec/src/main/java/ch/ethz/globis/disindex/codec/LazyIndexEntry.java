@@ -0,0 +1,67 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.disindex.codec;
+
+import java.nio.ByteBuffer;
+
+import ch.ethz.globis.disindex.codec.api.FieldDecoder;
+import ch.ethz.globis.distindex.api.IndexEntry;
+
+/**
+ * An index entry whose value is only decoded from the received message when it is first accessed.
+ *
+ * The entry keeps a reference to the buffer holding the message, which must not be modified afterwards.
+ * Decoding is side-effect free, so concurrent first accesses at worst decode the value twice.
+ *
+ * @param <K>                           The type of the index key.
+ * @param <V>                           The type of the index value.
+ */
+public class LazyIndexEntry<K, V> extends IndexEntry<K, V> {
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int length;
+    private final FieldDecoder<V> valueDecoder;
+
+    private volatile boolean decoded = false;
+    private V value;
+
+    public LazyIndexEntry(K key, ByteBuffer buffer, int offset, int length, FieldDecoder<V> valueDecoder) {
+        super(key, null);
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.valueDecoder = valueDecoder;
+    }
+
+    @Override
+    public V getValue() {
+        if (!decoded) {
+            value = valueDecoder.decode(buffer, offset, length);
+            decoded = true;
+        }
+        return value;
+    }
+}
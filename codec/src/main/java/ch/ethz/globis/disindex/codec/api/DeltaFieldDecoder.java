@@ -0,0 +1,45 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.disindex.codec.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Field decoder for fields written by a {@link DeltaFieldEncoder}.
+ *
+ * @param <V>
+ */
+public interface DeltaFieldDecoder<V> extends FieldDecoder<V> {
+
+    /**
+     * Decode a field relative to the previous one, starting at the current position of the buffer.
+     * The position of the buffer is advanced past the encoded field.
+     *
+     * @param previous                  The previously decoded field, or null for the first field.
+     * @param payload                   The input buffer.
+     * @return                          The decoded field.
+     */
+    public V readDelta(V previous, ByteBuffer payload);
+}
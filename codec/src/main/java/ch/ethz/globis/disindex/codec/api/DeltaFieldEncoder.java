@@ -0,0 +1,54 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.disindex.codec.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Field encoder able to write a field relative to the previously written field.
+ *
+ * Used for the compact encoding of sorted results, in which consecutive keys share most of their bits.
+ * The encoded delta is self-delimiting, so no length needs to be written in front of it.
+ *
+ * @param <V>
+ */
+public interface DeltaFieldEncoder<V> extends FieldEncoder<V> {
+
+    /**
+     * @param previous                  The previously written field, or null for the first field.
+     * @param value                     The field to be encoded.
+     * @return                          The number of bytes written by {@link #writeDelta(Object, Object, ByteBuffer)}.
+     */
+    public int encodedDeltaSize(V previous, V value);
+
+    /**
+     * Encode a field relative to the previous one, starting at the current position of the buffer.
+     *
+     * @param previous                  The previously written field, or null for the first field.
+     * @param value                     The field to be encoded.
+     * @param buffer                    The output buffer.
+     */
+    public void writeDelta(V previous, V value, ByteBuffer buffer);
+}
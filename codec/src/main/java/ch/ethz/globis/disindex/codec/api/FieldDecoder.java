@@ -31,4 +31,14 @@ public interface FieldDecoder<V> {
     public V decode(byte[] payload);
 
     public V decode(ByteBuffer payload);
+
+    /**
+     * Decode a field directly from a region of a buffer. The position of the buffer is not changed.
+     *
+     * @param payload                   The buffer containing the encoded field.
+     * @param offset                    The index of the first byte of the encoded field.
+     * @param length                    The number of bytes of the encoded field.
+     * @return                          The decoded field.
+     */
+    public V decode(ByteBuffer payload, int offset, int length);
 }
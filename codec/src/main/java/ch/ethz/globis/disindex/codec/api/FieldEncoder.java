@@ -24,7 +24,23 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.disindex.codec.api;
 
+import java.nio.ByteBuffer;
+
 public interface FieldEncoder<V> {
 
     public byte[] encode(V value);
+
+    /**
+     * @param value                     The field to be encoded.
+     * @return                          The number of bytes written by {@link #write(Object, ByteBuffer)}.
+     */
+    public int encodedSize(V value);
+
+    /**
+     * Encode a field directly into a buffer, starting at the current position of the buffer.
+     *
+     * @param value                     The field to be encoded.
+     * @param buffer                    The output buffer, with at least encodedSize(value) bytes remaining.
+     */
+    public void write(V value, ByteBuffer buffer);
 }
@@ -44,6 +44,14 @@ public interface RequestDecoder<K, V> {
 
     public PutRequest<K, V> decodePut(ByteBuffer buffer);
 
+    public PutAllRequest<K, V> decodePutAll(ByteBuffer buffer);
+
+    public GetAllRequest<K> decodeGetAll(ByteBuffer buffer);
+
+    public DeleteAllRequest<K> decodeDeleteAll(ByteBuffer buffer);
+
+    public DeleteRangeRequest<K> decodeDeleteRange(ByteBuffer buffer);
+
     public GetRangeRequest<K> decodeGetRange(ByteBuffer buffer);
 
     GetRangeFilterMapperRequest<K> decodeGetRangeFilterMapper(ByteBuffer buffer);
@@ -66,6 +74,10 @@ public interface RequestDecoder<K, V> {
 
     public PutBalancingRequest<K> decodePutBalancing(ByteBuffer buffer);
 
+    public PutAllBalancingRequest<K> decodePutAllBalancing(ByteBuffer buffer);
+
+    public DeleteAllBalancingRequest<K> decodeDeleteAllBalancing(ByteBuffer buffer);
+
     public CommitBalancingRequest decodeCommitBalancing(ByteBuffer buffer);
 
     public RollbackBalancingRequest decodeRollbackBalancing(ByteBuffer buffer);
@@ -26,6 +26,8 @@ package ch.ethz.globis.disindex.codec.api;
 
 import ch.ethz.globis.distindex.operation.response.Response;
 
+import java.nio.ByteBuffer;
+
 /**
  * Contains operations corresponding to encoding responses send by the middleware node to the client library.
  *
@@ -35,4 +37,18 @@ import ch.ethz.globis.distindex.operation.response.Response;
 public interface ResponseEncoder {
 
     public byte[] encode(Response response);
+
+    /**
+     * @param response                  The response.
+     * @return                          The exact number of bytes needed to encode the response.
+     */
+    public int encodedSize(Response response);
+
+    /**
+     * Encode the response into the buffer, starting at the current position of the buffer.
+     *
+     * @param response                  The response.
+     * @param buffer                    A buffer with at least encodedSize(response) bytes remaining.
+     */
+    public void encode(Response response, ByteBuffer buffer);
 }
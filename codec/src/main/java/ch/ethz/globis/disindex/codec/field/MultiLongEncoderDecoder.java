@@ -24,6 +24,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.disindex.codec.field;
 
+import ch.ethz.globis.disindex.codec.api.DeltaFieldDecoder;
+import ch.ethz.globis.disindex.codec.api.DeltaFieldEncoder;
 import ch.ethz.globis.disindex.codec.api.FieldEncoderDecoder;
 import ch.ethz.globis.disindex.codec.util.BitUtils;
 
@@ -31,8 +33,13 @@ import java.nio.ByteBuffer;
 
 /**
  * Encoder - Decoder for long[] fields.
+ *
+ * The delta encoding writes the length of the array as a varint, followed by the zig-zag varint
+ * encoded difference to the previous array in every dimension. For keys returned in z-order by a range
+ * query, the differences are small and most dimensions fit in one or two bytes instead of eight.
  */
-public class MultiLongEncoderDecoder implements FieldEncoderDecoder<long[]>{
+public class MultiLongEncoderDecoder implements FieldEncoderDecoder<long[]>,
+        DeltaFieldEncoder<long[]>, DeltaFieldDecoder<long[]> {
 
     @Override
     public long[] decode(byte[] payload) {
@@ -41,8 +48,16 @@ public class MultiLongEncoderDecoder implements FieldEncoderDecoder<long[]>{
 
     @Override
     public long[] decode(ByteBuffer payload) {
-        //FIXME this might not work properly
-        return decode(payload.array());
+        return decode(payload, payload.position(), payload.remaining());
+    }
+
+    @Override
+    public long[] decode(ByteBuffer payload, int offset, int length) {
+        long[] value = new long[length / 8];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = payload.getLong(offset + i * 8);
+        }
+        return value;
     }
 
     @Override
@@ -52,4 +67,68 @@ public class MultiLongEncoderDecoder implements FieldEncoderDecoder<long[]>{
         }
         return BitUtils.toByteArray(value);
     }
+
+    @Override
+    public int encodedSize(long[] value) {
+        return (value == null) ? 0 : value.length * 8;
+    }
+
+    @Override
+    public void write(long[] value, ByteBuffer buffer) {
+        if (value == null) {
+            return;
+        }
+        buffer.asLongBuffer().put(value);
+        buffer.position(buffer.position() + value.length * 8);
+    }
+
+    @Override
+    public int encodedDeltaSize(long[] previous, long[] value) {
+        if (value == null) {
+            return 1;
+        }
+        int size = BitUtils.varLongSize(value.length + 1);
+        boolean hasBase = isBase(previous, value.length);
+        for (int i = 0; i < value.length; i++) {
+            long delta = hasBase ? value[i] - previous[i] : value[i];
+            size += BitUtils.varLongSize(BitUtils.zigZag(delta));
+        }
+        return size;
+    }
+
+    @Override
+    public void writeDelta(long[] previous, long[] value, ByteBuffer buffer) {
+        if (value == null) {
+            BitUtils.writeVarLong(0, buffer);
+            return;
+        }
+        BitUtils.writeVarLong(value.length + 1, buffer);
+        boolean hasBase = isBase(previous, value.length);
+        for (int i = 0; i < value.length; i++) {
+            long delta = hasBase ? value[i] - previous[i] : value[i];
+            BitUtils.writeVarLong(BitUtils.zigZag(delta), buffer);
+        }
+    }
+
+    @Override
+    public long[] readDelta(long[] previous, ByteBuffer payload) {
+        int length = (int) BitUtils.readVarLong(payload) - 1;
+        if (length < 0) {
+            return null;
+        }
+        long[] value = new long[length];
+        boolean hasBase = isBase(previous, length);
+        for (int i = 0; i < length; i++) {
+            long delta = BitUtils.unZigZag(BitUtils.readVarLong(payload));
+            value[i] = hasBase ? previous[i] + delta : delta;
+        }
+        return value;
+    }
+
+    /**
+     * The previous array is only used as a base for the delta if it has the same length.
+     */
+    private static boolean isBase(long[] previous, int length) {
+        return previous != null && previous.length == length;
+    }
 }
@@ -39,6 +39,9 @@ import ch.ethz.globis.distindex.util.SerializerUtil;
  */
 public class SerializingEncoderDecoder<V> implements FieldEncoderDecoder<V> {
 
+    /** The last value whose size was computed by the current thread, with its serialized form. */
+    private final ThreadLocal<Serialized<V>> lastSerialized = new ThreadLocal<>();
+
     public SerializingEncoderDecoder() {
     }
 
@@ -52,7 +55,22 @@ public class SerializingEncoderDecoder<V> implements FieldEncoderDecoder<V> {
 
     @Override
     public V decode(ByteBuffer payload) {
-        return decode(payload.array());
+        return decode(payload, payload.position(), payload.remaining());
+    }
+
+    @Override
+    public V decode(ByteBuffer payload, int offset, int length) {
+        if (length == 0) {
+            return null;
+        }
+        if (payload.hasArray()) {
+            return SerializerUtil.getInstance().deserialize(payload.array(), payload.arrayOffset() + offset, length);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = payload.duplicate();
+        view.position(offset);
+        view.get(bytes);
+        return decode(bytes);
     }
 
     @Override
@@ -62,4 +80,40 @@ public class SerializingEncoderDecoder<V> implements FieldEncoderDecoder<V> {
         }
         return SerializerUtil.getInstance().serialize(value);
     }
+
+    /**
+     * The size of a serialized object is only known after the serialization, so the serialized form is
+     * kept until the same value is written, and the value is serialized only once.
+     */
+    @Override
+    public int encodedSize(V value) {
+        return serialized(value).length;
+    }
+
+    @Override
+    public void write(V value, ByteBuffer buffer) {
+        buffer.put(serialized(value));
+        lastSerialized.remove();
+    }
+
+    private byte[] serialized(V value) {
+        Serialized<V> last = lastSerialized.get();
+        if (last != null && last.value == value) {
+            return last.bytes;
+        }
+        byte[] bytes = encode(value);
+        lastSerialized.set(new Serialized<>(value, bytes));
+        return bytes;
+    }
+
+    private static class Serialized<V> {
+
+        private final V value;
+        private final byte[] bytes;
+
+        private Serialized(V value, byte[] bytes) {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
 }
\ No newline at end of file
@@ -30,23 +30,45 @@ import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
+/**
+ * Transport using one blocking socket per remote host, which sends the requests addressed to several
+ * hosts in parallel.
+ *
+ * Every exchange with a host runs in a thread of a cached pool, so all of the hosts of a request are
+ * contacted at the same time, however many they are. The replies are gathered as the exchanges complete
+ * and the exchanges with the same host are serialized on its socket.
+ */
 public class AsyncTCPClient implements Transport{
 
-    private int nrThreads = 4;
-    private final ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+    /** The threads performing the exchanges, created as needed so the number of hosts is not capped. */
+    private final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "async-tcp-client-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /** The logger used by this class*/
-    private static final Logger LOG = LoggerFactory.getLogger(TCPClient.class);
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncTCPClient.class);
 
     /** A map of host id's and open sockets*/
-    private Map<String, Socket> connections = new HashMap<>();
+    private final Map<String, Socket> connections = new ConcurrentHashMap<>();
 
     /**
      * Send the payload received as an argument to the remote host identified by the hostId received as an argument.
@@ -56,27 +78,148 @@ public class AsyncTCPClient implements Transport{
      * @param host                          The id of the remote host.
      * @param payload                       The message to be sent.
      * @return                              The reply of the server.
+     * @throws UncheckedIOException         If the exchange with the host failed.
      */
     @Override
     public byte[] sendAndReceive(String host, byte[] payload) {
         LOG.debug("Sending request to host {}", host);
 
-        byte[] response = null;
         try {
-            Socket socket = getSocket(host);
-
-            send(socket, payload);
-            response = receive(socket);
+            return exchange(host, payload);
         } catch (IOException e) {
-            LOG.error("Failed to send message to remote host: %s", host, e);
+            throw new UncheckedIOException(new IOException("Failed to send message to remote host: " + host, e));
+        }
+    }
+
+    /**
+     * Perform the exchange with the remote host in a thread of the pool.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              A future completed with the reply of the server, or completed
+     *                                      exceptionally if the exchange failed.
+     */
+    @Override
+    public CompletableFuture<byte[]> sendAndReceiveAsync(final String host, final byte[] payload) {
+        LOG.debug("Sending request to host {}", host);
+
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        future.complete(exchange(host, payload));
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Send the byte array received as an argument to all of the remote hosts identified by the hostId's received
+     * as arguments and return a list of all of the replies.
+     *
+     * The replies are in the same order as the hosts.
+     *
+     * @param hosts                         A list of the host identifies.
+     * @param payload                       The message to be sent to ALL hosts.
+     * @return                              A list of the replies.
+     * @throws UncheckedIOException         If the exchange with any of the hosts failed, or if the calling
+     *                                      thread was interrupted while waiting for the replies.
+     */
+    @Override
+    public List<byte[]> sendAndReceive(Collection<String> hosts, byte[] payload) {
+        try {
+            return sendAndReceiveAsync(hosts, payload).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException(
+                    "Interrupted while waiting for the replies of hosts: " + hosts));
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new UncheckedIOException((IOException) cause);
+            }
+            throw new UncheckedIOException(new IOException("Error sending request to multiple hosts.", cause));
+        }
+    }
+
+    /**
+     * Send the payload to all of the remote hosts in parallel. The future is completed once every exchange
+     * completed, without waiting for the exchanges in any particular order.
+     *
+     * The replies are in the same order as the hosts. If the exchange with any of the hosts fails, the future
+     * is completed exceptionally as soon as the failure is known, with an {@link IOException} naming the host.
+     *
+     * @param hosts                         A list of the host identifies.
+     * @param payload                       The message to be sent to ALL hosts.
+     * @return                              A future completed with the list of the replies.
+     */
+    @Override
+    public CompletableFuture<List<byte[]>> sendAndReceiveAsync(Collection<String> hosts, byte[] payload) {
+        final List<String> hostList = new ArrayList<>(hosts);
+        final byte[][] responses = new byte[hostList.size()][];
+        final AtomicInteger remaining = new AtomicInteger(hostList.size());
+        final CompletableFuture<List<byte[]>> result = new CompletableFuture<>();
+        if (hostList.isEmpty()) {
+            result.complete(new ArrayList<byte[]>());
+            return result;
+        }
+        for (int i = 0; i < hostList.size(); i++) {
+            final int index = i;
+            final String host = hostList.get(i);
+            sendAndReceiveAsync(host, payload).whenComplete(new BiConsumer<byte[], Throwable>() {
+                @Override
+                public void accept(byte[] response, Throwable error) {
+                    if (error != null) {
+                        result.completeExceptionally(
+                                new IOException("Failed to send message to remote host: " + host, error));
+                        return;
+                    }
+                    responses[index] = response;
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete(Arrays.asList(responses));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Send the payload to the host and wait for its reply. The exchanges with the same host are serialized,
+     * as they share the socket. A socket on which an exchange failed is closed, so that the next exchange
+     * opens a new one.
+     */
+    private byte[] exchange(String host, byte[] payload) throws IOException {
+        Socket socket = getSocket(host);
+        synchronized (socket) {
+            try {
+                send(socket, payload);
+                return receive(socket);
+            } catch (IOException e) {
+                connections.remove(host, socket);
+                socket.close();
+                throw e;
+            }
         }
-        return response;
     }
 
     private Socket getSocket(String host) throws IOException {
         Socket socket = connections.get(host);
         if (socket == null) {
-            socket = openNewSocket(host);
+            synchronized (connections) {
+                socket = connections.get(host);
+                if (socket == null) {
+                    socket = openNewSocket(host);
+                }
+            }
         }
         return socket;
     }
@@ -116,7 +259,7 @@ public class AsyncTCPClient implements Transport{
 
         InputStream in = new BufferedInputStream(socket.getInputStream());
         while (bytesRead < 4) {
-            bytesRead = in.read(initial, bytesRead, 4 - bytesRead);
+            bytesRead += read(in, initial, bytesRead, 4 - bytesRead);
         }
 
         int dataSize = ByteBuffer.wrap(initial).getInt();
@@ -124,11 +267,19 @@ public class AsyncTCPClient implements Transport{
 
         bytesRead = 0;
         while (bytesRead < dataSize) {
-            bytesRead += in.read(data, bytesRead, dataSize - bytesRead);
+            bytesRead += read(in, data, bytesRead, dataSize - bytesRead);
         }
         return data;
     }
 
+    private static int read(InputStream in, byte[] data, int offset, int length) throws IOException {
+        int bytesRead = in.read(data, offset, length);
+        if (bytesRead < 0) {
+            throw new EOFException("The connection was closed by the remote host.");
+        }
+        return bytesRead;
+    }
+
     /**
      * Open a new socket to the remote server. It is assumed that no current socket is
      * open for the host with the hostId received as an argument.
@@ -151,41 +302,6 @@ public class AsyncTCPClient implements Transport{
         return socket;
     }
 
-    /**
-     * Send the byte array received as an argument to all of the remote hosts identified by the hostId's received
-     * as arguments and return a list of all of the replies.
-     *
-     * //ToDO send the requests in parallel
-     * @param hosts                         A list of the host identifies.
-     * @param payload                       The message to be sent to ALL hosts.
-     * @return                              A list of the replies.
-     */
-    @Override
-    public List<byte[]> sendAndReceive(Collection<String> hosts, byte[] payload) {
-        List<byte[]> responses = new ArrayList<>();
-        List<SendReceiveTask> tasks = new ArrayList<>();
-        try {
-            for (String host : hosts) {
-                Socket socket = getSocket(host);
-                tasks.add(new SendReceiveTask(socket, payload));
-            }
-            List<Future<byte[]>> futures = pool.invokeAll(tasks);
-            return waitForTermination(futures);
-        } catch (IOException | InterruptedException | ExecutionException e) {
-            LOG.error("Error sending request to multiple hosts.", e);
-        }
-        return responses;
-    }
-
-    private <T> List<T> waitForTermination(List<Future<T>> futures) throws ExecutionException, InterruptedException {
-        List<T> results = new ArrayList<>();
-        for (Future<T> future : futures) {
-            while (!future.isDone());
-            results.add(future.get());
-        }
-        return results;
-    }
-
     @Override
     public void close() throws IOException {
         pool.shutdownNow();
@@ -194,23 +310,4 @@ public class AsyncTCPClient implements Transport{
         }
         connections.clear();
     }
-
-    private static class SendReceiveTask implements Callable<byte[]> {
-
-        private byte[] payload;
-        private Socket socket;
-
-        private SendReceiveTask(Socket socket, byte[] payload) {
-            this.payload = payload;
-            this.socket = socket;
-        }
-
-        @Override
-        public byte[] call() throws Exception {
-            byte[] response;
-            AsyncTCPClient.send(socket, payload);
-            response = AsyncTCPClient.receive(socket);
-            return response;
-        }
-    }
-}
\ No newline at end of file
+}
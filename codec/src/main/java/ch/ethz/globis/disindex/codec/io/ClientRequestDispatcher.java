@@ -25,9 +25,12 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package ch.ethz.globis.disindex.codec.io;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import ch.ethz.globis.disindex.codec.api.RequestEncoder;
 import ch.ethz.globis.disindex.codec.api.ResponseDecoder;
@@ -76,6 +79,54 @@ public class ClientRequestDispatcher<K, V> implements RequestDispatcher<K, V> {
         return responses;
     }
 
+    @Override
+    public <R extends Response> CompletableFuture<R> sendAsync(String hostId, Request request, final Class<R> clazz) {
+        byte[] requestBytes = encoder.encode(request);
+        return transport.sendAndReceiveAsync(hostId, requestBytes)
+                .thenApply(responseBytes -> decoder.decode(responseBytes, clazz));
+    }
+
+    @Override
+    public <R extends Response> CompletableFuture<List<R>> sendAsync(Collection<String> hostIds, Request request,
+                                                                   final Class<R> clazz) {
+        byte[] requestBytes = encoder.encode(request);
+        return transport.sendAndReceiveAsync(hostIds, requestBytes).thenApply(responseList -> {
+            List<R> responses = new ArrayList<>();
+            for (byte[] responseBytes : responseList) {
+                responses.add(decoder.decode(responseBytes, clazz));
+            }
+            return responses;
+        });
+    }
+
+    @Override
+    public <R extends Response> List<R> sendStreamed(Collection<String> hostIds, Request request, Class<R> clazz,
+                                                     Consumer<? super R> consumer) {
+        byte[] requestBytes = encoder.encode(request);
+        List<ResponseStream> streams = new ArrayList<>();
+        for (String hostId : hostIds) {
+            streams.add(transport.sendAndStream(hostId, requestBytes));
+        }
+        List<R> responses = new ArrayList<>();
+        try {
+            for (ResponseStream stream : streams) {
+                R response = null;
+                for (byte[] frame = stream.next(); frame != null; frame = stream.next()) {
+                    response = decoder.decode(frame, clazz);
+                    consumer.accept(response);
+                }
+                responses.add(response);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ResponseStream stream : streams) {
+                stream.close();
+            }
+        }
+        return responses;
+    }
+
     @Override
     public void close() throws IOException {
         if (transport == null) {
@@ -0,0 +1,594 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.disindex.codec.io;
+
+import ch.ethz.globis.distindex.operation.OpStatus;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport that keeps a single Netty channel open to each remote host and allows many requests to be
+ * in flight on that channel at the same time.
+ *
+ * Every request message starts with the op code followed by the request id and every response message
+ * sent by the middleware echoes that request id at the same offset. The responses are therefore matched
+ * to their callers by request id rather than by the order in which they arrive, so any number of
+ * application threads can share a connection without waiting for each other.
+ *
+ * The size header used by the other transports is added and removed by the channel pipeline.
+ *
+ * No method blocks on the network except the synchronous sends, which wait for their replies. Channels are
+ * connected asynchronously and the requests are written once the connection is established, so the
+ * asynchronous sends can be issued from the continuations running on the event loops.
+ *
+ * The frames of a streamed reply can be read as they are received through {@link #sendAndStream(String, byte[])}.
+ * Every streamed request is sent on a channel of its own, which is closed once the reply ended. Once too many
+ * frames of a reply were received and not yet read, that channel stops reading until they are, so the server
+ * stops sending as well, while the replies on the shared channel are not delayed by a slow reader.
+ */
+public class NettyTCPClient implements Transport {
+
+    /** The logger used by this class*/
+    private static final Logger LOG = LoggerFactory.getLogger(NettyTCPClient.class);
+
+    /** The offset of the request id within both request and response messages. */
+    private static final int REQUEST_ID_OFFSET = 1;
+
+    /** The offset of the status within response messages. */
+    private static final int STATUS_OFFSET = 5;
+
+    /** The number of received frames of a streamed reply above which the channel stops reading. */
+    private static final int MAX_BUFFERED_FRAMES = 16;
+
+    /** The event loops running the IO for all of the open channels. */
+    private final EventLoopGroup group;
+
+    /** The bootstrap used to open new channels. */
+    private final Bootstrap bootstrap;
+
+    /** A map of host id's and the connections of their channels*/
+    private final ConcurrentMap<String, ChannelFuture> connections = new ConcurrentHashMap<>();
+
+    /** The open channels of the streamed requests. */
+    private final Set<Channel> streamChannels = ConcurrentHashMap.newKeySet();
+
+    public NettyTCPClient() {
+        this(0);
+    }
+
+    /**
+     * @param nrThreads                     The number of IO threads, 0 selects the Netty default.
+     */
+    public NettyTCPClient(int nrThreads) {
+        this.group = new NioEventLoopGroup(nrThreads);
+        this.bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(
+                                new FlushConsolidationHandler(),
+                                new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4),
+                                new LengthFieldPrepender(4),
+                                new ResponseHandler());
+                    }
+                });
+    }
+
+    /**
+     * Send the payload received as an argument to the remote host identified by the hostId received as an argument.
+     *
+     * The calling thread blocks until the reply with the same request id is received.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              The reply of the server.
+     * @throws UncheckedIOException         If the exchange with the host failed.
+     */
+    @Override
+    public byte[] sendAndReceive(String host, byte[] payload) {
+        return await(host, sendAndReceiveAsync(host, payload));
+    }
+
+    /**
+     * Send the byte array received as an argument to all of the remote hosts identified by the hostId's received
+     * as arguments and return a list of all of the replies.
+     *
+     * All of the requests are written before waiting for the first reply.
+     *
+     * @param hosts                         A list of the host identifies.
+     * @param payload                       The message to be sent to ALL hosts.
+     * @return                              A list of the replies.
+     * @throws UncheckedIOException         If the exchange with any of the hosts failed.
+     */
+    @Override
+    public List<byte[]> sendAndReceive(Collection<String> hosts, byte[] payload) {
+        List<String> hostList = new ArrayList<>(hosts);
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (String host : hostList) {
+            futures.add(sendAndReceiveAsync(host, payload));
+        }
+        List<byte[]> responses = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            responses.add(await(hostList.get(i), futures.get(i)));
+        }
+        return responses;
+    }
+
+    /**
+     * Write the payload to the channel of the remote host without waiting for the reply.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              A future completed with the reply of the server.
+     */
+    @Override
+    public CompletableFuture<byte[]> sendAndReceiveAsync(String host, byte[] payload) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        send(host, payload, new FutureReceiver(future));
+        return future;
+    }
+
+    /**
+     * Write the payload to a new channel to the remote host and return the frames of the reply as they are
+     * received. The channel is closed once the last frame was received. The stream should be closed if it
+     * is not read until the end, which closes the channel as well.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              The frames of the reply of the server.
+     */
+    @Override
+    public ResponseStream sendAndStream(String host, byte[] payload) {
+        LOG.debug("Sending streamed request to host {}", host);
+
+        final ChannelFuture connectFuture;
+        try {
+            connectFuture = openNewChannel(host);
+        } catch (RuntimeException e) {
+            FrameStream stream = new FrameStream(null);
+            stream.fail(new IOException("Failed to connect to remote host: " + host, e));
+            return stream;
+        }
+        final Channel channel = connectFuture.channel();
+        streamChannels.add(channel);
+        channel.closeFuture().addListener(future -> streamChannels.remove(channel));
+        FrameStream stream = new FrameStream(channel);
+        send(host, connectFuture, payload, stream);
+        return stream;
+    }
+
+    /**
+     * Write the payload once the channel to the remote host is connected. The connection is not waited for,
+     * so this can be called from any thread, including the event loops completing the replies.
+     */
+    private void send(final String host, final byte[] payload, final Receiver receiver) {
+        LOG.debug("Sending request to host {}", host);
+
+        final ChannelFuture connectFuture;
+        try {
+            connectFuture = connect(host);
+        } catch (RuntimeException e) {
+            receiver.fail(new IOException("Failed to connect to remote host: " + host, e));
+            return;
+        }
+        send(host, connectFuture, payload, receiver);
+    }
+
+    private void send(final String host, ChannelFuture connectFuture, final byte[] payload, final Receiver receiver) {
+        connectFuture.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    receiver.fail(new IOException("Failed to connect to remote host: " + host, future.cause()));
+                    return;
+                }
+                write(host, future.channel(), payload, receiver);
+            }
+        });
+    }
+
+    private void write(String host, Channel channel, byte[] payload, Receiver receiver) {
+        final int requestId = getRequestId(Unpooled.wrappedBuffer(payload));
+        final ResponseHandler handler = channel.pipeline().get(ResponseHandler.class);
+        if (handler == null) {
+            receiver.fail(new IOException("Connection to remote host: " + host + " was closed."));
+            return;
+        }
+        if (!handler.register(requestId, receiver)) {
+            receiver.fail(new IllegalStateException(
+                    "There already is a pending request with id " + requestId + " to host: " + host));
+            return;
+        }
+        channel.writeAndFlush(Unpooled.wrappedBuffer(payload)).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture writeFuture) throws Exception {
+                if (!writeFuture.isSuccess()) {
+                    handler.fail(requestId, writeFuture.cause());
+                }
+            }
+        });
+    }
+
+    /**
+     * Write the payload to the channels of all of the remote hosts without waiting for the replies.
+     *
+     * @param hosts                         A list of the host identifies.
+     * @param payload                       The message to be sent to ALL hosts.
+     * @return                              A future completed with the replies, in the order of the hosts.
+     */
+    @Override
+    public CompletableFuture<List<byte[]>> sendAndReceiveAsync(Collection<String> hosts, byte[] payload) {
+        final List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (String host : hosts) {
+            futures.add(sendAndReceiveAsync(host, payload));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).thenApply(done -> {
+            List<byte[]> responses = new ArrayList<>();
+            for (CompletableFuture<byte[]> future : futures) {
+                responses.add(future.join());
+            }
+            return responses;
+        });
+    }
+
+    /**
+     * Wait for the reply of a remote host.
+     *
+     * @throws UncheckedIOException         If the exchange with the host failed, or if the calling thread was
+     *                                      interrupted while waiting for the reply.
+     */
+    private byte[] await(String host, CompletableFuture<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException(
+                    "Interrupted while waiting for the reply of remote host: " + host));
+        } catch (ExecutionException e) {
+            throw new UncheckedIOException(new IOException("Failed to send message to remote host: " + host,
+                    e.getCause()));
+        }
+    }
+
+    /**
+     * Return the connection to the remote host, opening a new one if there is none or if the previous one
+     * failed or was closed. The connection might not be established yet.
+     *
+     * @param host                          The hostId of the remote server.
+     * @return                              The future of the connection.
+     */
+    private ChannelFuture connect(String host) {
+        return connections.compute(host, (hostId, current) ->
+                (current == null || isClosed(current)) ? openNewChannel(hostId) : current);
+    }
+
+    private static boolean isClosed(ChannelFuture connectFuture) {
+        return connectFuture.isDone() && (!connectFuture.isSuccess() || !connectFuture.channel().isActive());
+    }
+
+    /**
+     * Start opening a new channel to the remote server, without waiting for the connection.
+     *
+     * @param host                          The hostId of the remote server to which a new channel should be opened.
+     * @return                              The future of the connection.
+     */
+    private ChannelFuture openNewChannel(String host) {
+        LOG.debug("Opening channel to {}", host);
+        String[] tokens = host.split(":");
+        String hostAddress = tokens[0];
+        int port = Integer.parseInt(tokens[1]);
+        return bootstrap.connect(hostAddress, port);
+    }
+
+    private static int getRequestId(ByteBuf message) {
+        return message.getInt(message.readerIndex() + REQUEST_ID_OFFSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (ChannelFuture connectFuture : connections.values()) {
+            connectFuture.channel().close();
+        }
+        connections.clear();
+        for (Channel channel : streamChannels) {
+            channel.close();
+        }
+        group.shutdownGracefully();
+    }
+
+    /**
+     * Receives the frames of the reply to a request. The methods are called on the event loop of the channel.
+     */
+    private interface Receiver {
+
+        /**
+         * @param handler               The handler of the channel on which the frame was received.
+         * @param frame                 The frame.
+         * @param last                  Whether this is the last frame of the reply.
+         */
+        void frame(ResponseHandler handler, ByteBuf frame, boolean last);
+
+        void fail(Throwable cause);
+    }
+
+    /**
+     * Completes a future with the whole reply. The frames of a streamed reply are kept until the last one is
+     * received, the future is then completed with all of the frames, in the order received.
+     */
+    private static class FutureReceiver implements Receiver {
+
+        private final CompletableFuture<byte[]> future;
+
+        private ByteArrayOutputStream frames;
+
+        FutureReceiver(CompletableFuture<byte[]> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void frame(ResponseHandler handler, ByteBuf frame, boolean last) {
+            if (last && frames == null) {
+                future.complete(ByteBufUtil.getBytes(frame));
+                return;
+            }
+            if (frames == null) {
+                frames = new ByteArrayOutputStream();
+            }
+            byte[] bytes = ByteBufUtil.getBytes(frame);
+            frames.write(bytes, 0, bytes.length);
+            if (last) {
+                future.complete(frames.toByteArray());
+            }
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Hands the frames of a reply over to the thread reading them. If the reader falls behind, the channel
+     * is paused until the reader caught up with half of the frames kept. The channel only carries this reply,
+     * so it is closed once the reply ended, failed or the stream was closed.
+     */
+    private static class FrameStream implements Receiver, ResponseStream {
+
+        /** Marks the end of the reply in the queue of frames. */
+        private static final Object END = new Object();
+
+        /** The frames received and not yet read, followed by either END or the cause of a failure. */
+        private final BlockingQueue<Object> frames = new LinkedBlockingQueue<>();
+
+        /** The handler of the channel paused by this stream, or null if the channel is not paused. */
+        private ResponseHandler pausedHandler;
+
+        private volatile boolean closed = false;
+
+        /** Whether the end of the reply was already returned, only accessed by the reader. */
+        private boolean ended = false;
+
+        /** The channel carrying the reply, or null if it could not be opened. */
+        private final Channel channel;
+
+        FrameStream(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void frame(ResponseHandler handler, ByteBuf frame, boolean last) {
+            if (last) {
+                closeChannel();
+            }
+            if (closed) {
+                return;
+            }
+            frames.add(ByteBufUtil.getBytes(frame));
+            if (last) {
+                frames.add(END);
+            } else if (frames.size() >= MAX_BUFFERED_FRAMES) {
+                pause(handler);
+            }
+        }
+
+        @Override
+        public void fail(Throwable cause) {
+            frames.add(cause);
+            closeChannel();
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            if (ended || closed) {
+                return null;
+            }
+            Object next;
+            try {
+                next = frames.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the reply.");
+            }
+            if (frames.size() <= MAX_BUFFERED_FRAMES / 2) {
+                resume();
+            }
+            if (next == END) {
+                ended = true;
+                return null;
+            }
+            if (next instanceof Throwable) {
+                ended = true;
+                throw new IOException("Failed to receive the reply.", (Throwable) next);
+            }
+            return (byte[]) next;
+        }
+
+        /**
+         * The frames still to be received are dropped, as the channel is closed.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            frames.clear();
+            resume();
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+
+        private synchronized void pause(ResponseHandler handler) {
+            if (pausedHandler == null) {
+                pausedHandler = handler;
+                handler.pause();
+            }
+        }
+
+        private synchronized void resume() {
+            if (pausedHandler != null) {
+                pausedHandler.resume();
+                pausedHandler = null;
+            }
+        }
+    }
+
+    /**
+     * Passes the responses arriving on the channel to the receivers of the pending requests.
+     */
+    private static class ResponseHandler extends SimpleChannelInboundHandler<ByteBuf> {
+
+        /** The requests written on this channel which did not yet receive their last frame. */
+        private final ConcurrentMap<Integer, Receiver> pending = new ConcurrentHashMap<>();
+
+        /** The number of streams which paused the channel. */
+        private int pausedStreams = 0;
+
+        /** The channel of the pipeline holding this handler. */
+        private volatile Channel channel;
+
+        boolean register(int requestId, Receiver receiver) {
+            return pending.putIfAbsent(requestId, receiver) == null;
+        }
+
+        void fail(int requestId, Throwable cause) {
+            Receiver receiver = pending.remove(requestId);
+            if (receiver != null) {
+                receiver.fail(cause);
+            }
+        }
+
+        synchronized void pause() {
+            if (pausedStreams++ == 0) {
+                channel.config().setAutoRead(false);
+            }
+        }
+
+        synchronized void resume() {
+            if (--pausedStreams == 0) {
+                channel.config().setAutoRead(true);
+            }
+        }
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            channel = ctx.channel();
+            super.handlerAdded(ctx);
+        }
+
+        /**
+         * Pass the frame to the receiver of the matching request. A frame with the status
+         * {@link OpStatus#PARTIAL} is followed by other frames for the same request.
+         */
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, ByteBuf frame) throws Exception {
+            int requestId = getRequestId(frame);
+            boolean last = frame.getByte(frame.readerIndex() + STATUS_OFFSET) != OpStatus.PARTIAL;
+            Receiver receiver = last ? pending.remove(requestId) : pending.get(requestId);
+            if (receiver == null) {
+                LOG.warn("Received a response for unknown request {} from {}", requestId, ctx.channel().remoteAddress());
+                return;
+            }
+            receiver.frame(this, frame, last);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            failAll(new IOException("Connection to " + ctx.channel().remoteAddress() + " was closed."));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.error("Error on the connection to {}", ctx.channel().remoteAddress(), cause);
+            failAll(cause);
+            ctx.close();
+        }
+
+        private void failAll(Throwable cause) {
+            for (Integer requestId : pending.keySet()) {
+                fail(requestId, cause);
+            }
+        }
+    }
+}
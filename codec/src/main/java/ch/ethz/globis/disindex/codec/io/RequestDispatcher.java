@@ -27,6 +27,8 @@ package ch.ethz.globis.disindex.codec.io;
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 import ch.ethz.globis.distindex.operation.request.Request;
 import ch.ethz.globis.distindex.operation.response.Response;
@@ -36,4 +38,22 @@ public interface RequestDispatcher<K, V> extends Closeable, AutoCloseable {
     public <R extends Response> R send(String hostId, Request request, Class<R> clazz);
 
     public <R extends Response> List<R> send(Collection<String> hostIds, Request request, Class<R> clazz);
+
+    public <R extends Response> CompletableFuture<R> sendAsync(String hostId, Request request, Class<R> clazz);
+
+    public <R extends Response> CompletableFuture<List<R>> sendAsync(Collection<String> hostIds, Request request, Class<R> clazz);
+
+    /**
+     * Send the request to all of the hosts and pass the responses decoded from the frames of their replies
+     * to the consumer as they are received, one host after the other. The replies of the hosts not yet read
+     * are only received as fast as the consumer handles the frames.
+     *
+     * @param hostIds                       The ids of the hosts.
+     * @param request                       The request.
+     * @param clazz                         The class of the responses.
+     * @param consumer                      The consumer of the responses of all of the frames.
+     * @return                              The response of the last frame of every host, in the order of the hosts.
+     */
+    public <R extends Response> List<R> sendStreamed(Collection<String> hostIds, Request request, Class<R> clazz,
+                                                     Consumer<? super R> consumer);
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.disindex.codec.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The frames of the reply to a single request, in the order in which they are received.
+ *
+ * A reply streamed by the server is made of several frames, all but the last one having the status
+ * {@link ch.ethz.globis.distindex.operation.OpStatus#PARTIAL}. Any other reply is a single frame.
+ */
+public interface ResponseStream extends Closeable {
+
+    /**
+     * Return the next frame, waiting for it to be received if needed.
+     *
+     * @return                              The next frame, or null if the last frame was already returned.
+     * @throws IOException                  If the reply could not be received.
+     */
+    public byte[] next() throws IOException;
+
+    /**
+     * Discard the frames not yet returned.
+     */
+    @Override
+    public void close();
+
+    /**
+     * Create a stream holding a single frame.
+     *
+     * @param reply                         The reply, or null if no reply was received.
+     * @return                              The stream returning the reply.
+     */
+    public static ResponseStream of(final byte[] reply) {
+        return new ResponseStream() {
+
+            private boolean returned = false;
+
+            @Override
+            public byte[] next() throws IOException {
+                if (returned) {
+                    return null;
+                }
+                returned = true;
+                if (reply == null) {
+                    throw new IOException("No reply was received.");
+                }
+                return reply;
+            }
+
+            @Override
+            public void close() {
+                returned = true;
+            }
+        };
+    }
+}
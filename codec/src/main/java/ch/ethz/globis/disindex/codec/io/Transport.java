@@ -27,10 +27,52 @@ package ch.ethz.globis.disindex.codec.io;
 import java.io.Closeable;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface Transport extends Closeable, AutoCloseable{
 
     public byte[] sendAndReceive(String host, byte[] payload);
 
     public List<byte[]> sendAndReceive(Collection<String> hosts, byte[] payload);
+
+    /**
+     * Send the payload to the remote host and return a future completed with the reply.
+     *
+     * Transports which cannot have multiple requests in flight on the same connection perform the
+     * exchange in the calling thread and return an already completed future.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              A future completed with the reply of the server.
+     */
+    public default CompletableFuture<byte[]> sendAndReceiveAsync(String host, byte[] payload) {
+        return CompletableFuture.completedFuture(sendAndReceive(host, payload));
+    }
+
+    /**
+     * Send the payload to all of the remote hosts and return a future completed with the replies, in the
+     * same order as the hosts.
+     *
+     * @param hosts                         A list of the host identifies.
+     * @param payload                       The message to be sent to ALL hosts.
+     * @return                              A future completed with the list of the replies.
+     */
+    public default CompletableFuture<List<byte[]>> sendAndReceiveAsync(Collection<String> hosts, byte[] payload) {
+        return CompletableFuture.completedFuture(sendAndReceive(hosts, payload));
+    }
+
+    /**
+     * Send the payload to the remote host and return the frames of the reply, which can be read as they
+     * are received. Reading the frames too slowly makes the transport stop receiving, instead of buffering
+     * the whole reply.
+     *
+     * Transports which do not support streamed replies wait for the whole reply, returned as a single frame.
+     *
+     * @param host                          The id of the remote host.
+     * @param payload                       The message to be sent.
+     * @return                              The frames of the reply of the server.
+     */
+    public default ResponseStream sendAndStream(String host, byte[] payload) {
+        return ResponseStream.of(sendAndReceive(host, payload));
+    }
 }
\ No newline at end of file
@@ -24,6 +24,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.disindex.codec.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * Utilities for processing bits.
  */
@@ -126,6 +128,73 @@ public class BitUtils {
         return longArray;
     }
 
+    /**
+     * Map a signed long to an unsigned one, such that values with a small absolute value are
+     * mapped to small unsigned values: 0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...
+     *
+     * @param value                 The signed value.
+     * @return                      The zig-zag encoded value.
+     */
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Reverse the mapping done by {@link #zigZag(long)}.
+     *
+     * @param value                 The zig-zag encoded value.
+     * @return                      The signed value.
+     */
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @param value                 The value, interpreted as unsigned.
+     * @return                      The number of bytes needed to write the value as a varint.
+     */
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Write the value as a varint: 7 bits per byte, least significant group first, with the highest
+     * bit of each byte set if more bytes follow.
+     *
+     * @param value                 The value, interpreted as unsigned.
+     * @param buffer                The output buffer.
+     */
+    public static void writeVarLong(long value, ByteBuffer buffer) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Read a varint written by {@link #writeVarLong(long, ByteBuffer)}.
+     *
+     * @param buffer                The input buffer.
+     * @return                      The value read.
+     */
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte current;
+        do {
+            current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+            shift += 7;
+        } while ((current & 0x80) != 0);
+        return value;
+    }
+
     /**
      * Generate the start of the range that corresponds to the prefix received as an argument.
      *
@@ -26,10 +26,13 @@ package ch.ethz.globis.distindex.codec;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 
 import org.junit.Test;
@@ -40,10 +43,13 @@ import ch.ethz.globis.disindex.codec.api.FieldDecoder;
 import ch.ethz.globis.disindex.codec.api.FieldEncoderDecoder;
 import ch.ethz.globis.disindex.codec.field.MultiLongEncoderDecoder;
 import ch.ethz.globis.disindex.codec.field.SerializingEncoderDecoder;
+import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.operation.OpCode;
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.CommitBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteRangeRequest;
 import ch.ethz.globis.distindex.operation.request.DeleteRequest;
+import ch.ethz.globis.distindex.operation.request.GetAllRequest;
 import ch.ethz.globis.distindex.operation.request.GetIteratorBatchRequest;
 import ch.ethz.globis.distindex.operation.request.GetKNNRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeFilterMapperRequest;
@@ -51,6 +57,8 @@ import ch.ethz.globis.distindex.operation.request.GetRangeRequest;
 import ch.ethz.globis.distindex.operation.request.GetRequest;
 import ch.ethz.globis.distindex.operation.request.InitBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.MapRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllRequest;
 import ch.ethz.globis.distindex.operation.request.PutBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.PutRequest;
 import ch.ethz.globis.distindex.operation.request.RollbackBalancingRequest;
@@ -79,6 +87,22 @@ public class RequestEncodeDecodeTest {
         assertArrayEquals(request.getKey(), decodedRequest.getKey());
     }
 
+    @Test
+    public void writeKeyMatchesEncodedKey() {
+        long[] key = {-1000, 0, 10000, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE};
+
+        ByteBuffer buffer = ByteBuffer.allocate(keyCodec.encodedSize(key) + 3);
+        buffer.position(3);
+        keyCodec.write(key, buffer);
+        assertEquals(0, buffer.remaining());
+
+        byte[] written = new byte[keyCodec.encodedSize(key)];
+        buffer.position(3);
+        buffer.get(written);
+        assertArrayEquals(keyCodec.encode(key), written);
+        assertArrayEquals(key, keyCodec.decode(buffer, 3, written.length));
+    }
+
     @Test
     public void encodeDeleteRequest() {
         long[] key = {-1000, 0, 10000, 1, -1};
@@ -109,18 +133,36 @@ public class RequestEncodeDecodeTest {
         assertEquals(request.getIteratorId(), decodedRequest.getIteratorId());
     }
 
+    @Test
+    public void encodeDecodeStatelessGetBatchRequest() {
+        long[] after = {-5, 0, 15};
+        int size = 100;
+
+        GetIteratorBatchRequest<long[]> request = new GetIteratorBatchRequest<>(1, OpCode.GET_BATCH, "", 1, size, after, null, null);
+        byte[] encodedRequest = requestEncoder.encodeGetBatch(request);
+
+        GetIteratorBatchRequest<long[]> decodedRequest = requestDecoder.decodeGetBatch(ByteBuffer.wrap(encodedRequest));
+        assertRequestMetaEqual(request, decodedRequest);
+        assertTrue(decodedRequest.isStateless());
+        assertFalse(decodedRequest.isRanged());
+        assertArrayEquals(after, decodedRequest.getContinuationKey());
+        assertEquals(size, decodedRequest.getBatchSize());
+    }
+
     @Test
     public void encodeDecodeGetRangeRequest() {
         long[] start = {-1000, 0, 10000, 1, -1};
         long[] end = {1000, 0, 10000, -1, 1};
 
         GetRangeRequest<long[]> request = new GetRangeRequest<long[]>(1, OpCode.GET_RANGE, "", 1, start, end);
+        request.setCompactKeys(true);
         byte[] encodedRequest = requestEncoder.encodeGetRange(request);
 
         GetRangeRequest<long[]> decodedRequest = requestDecoder.decodeGetRange(ByteBuffer.wrap(encodedRequest));
         assertRequestMetaEqual(request, decodedRequest);
         assertArrayEquals(request.getStart(), decodedRequest.getStart());
         assertArrayEquals(request.getEnd(), decodedRequest.getEnd());
+        assertTrue(decodedRequest.isCompactKeys());
     }
 
     @Test
@@ -151,6 +193,39 @@ public class RequestEncodeDecodeTest {
         assertValueEquals(request.getValue(), decodedRequest.getValue(), valueCodec);
     }
 
+    @Test
+    public void encodeDecodePutAllRequest() {
+        IndexEntryList<long[], String> entries = new IndexEntryList<>();
+        entries.add(new long[] {-1000, 0, 10000, 1, -1}, new BigInteger(100, new Random()).toString());
+        entries.add(new long[] {1000, 0, -10000, -1, 1}, new BigInteger(100, new Random()).toString());
+
+        PutAllRequest<long[], String> request = new PutAllRequest<>(1, OpCode.PUT_ALL, "", 1, entries);
+        byte[] encodedRequest = requestEncoder.encode(request);
+
+        PutAllRequest<long[], byte[]> decodedRequest = requestDecoder.decodePutAll(ByteBuffer.wrap(encodedRequest));
+        assertRequestMetaEqual(request, decodedRequest);
+        assertEquals(entries.size(), decodedRequest.getEntries().size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertArrayEquals(entries.get(i).getKey(), decodedRequest.getEntries().get(i).getKey());
+            assertValueEquals(entries.get(i).getValue(), decodedRequest.getEntries().get(i).getValue(), valueCodec);
+        }
+    }
+
+    @Test
+    public void encodeDecodeGetAllRequest() {
+        List<long[]> keys = Arrays.asList(new long[] {-1000, 0, 10000, 1, -1}, new long[] {1000, 0, -10000, -1, 1});
+
+        GetAllRequest<long[]> request = new GetAllRequest<>(1, OpCode.GET_ALL, "", 1, keys);
+        byte[] encodedRequest = requestEncoder.encode(request);
+
+        GetAllRequest<long[]> decodedRequest = requestDecoder.decodeGetAll(ByteBuffer.wrap(encodedRequest));
+        assertRequestMetaEqual(request, decodedRequest);
+        assertEquals(keys.size(), decodedRequest.getKeys().size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertArrayEquals(keys.get(i), decodedRequest.getKeys().get(i));
+        }
+    }
+
     @Test
     public void encodeDecodeCreateRequest() {
         int dim = 5;
@@ -217,6 +292,23 @@ public class RequestEncodeDecodeTest {
         assertArrayEquals(request.getValue(), decoded.getValue());
     }
 
+    @Test
+    public void encodeDecodePutAllBalancingRequest() {
+        IndexEntryList<long[], byte[]> entries = new IndexEntryList<>();
+        entries.add(new long[] {-1000, 0, 10000, 1, -1}, new BigInteger(100, new Random()).toString().getBytes());
+        entries.add(new long[] {1000, 0, -10000, -1, 1}, new byte[0]);
+        PutAllBalancingRequest<long[]> request = new PutAllBalancingRequest<>(1, OpCode.BALANCE_PUT_ALL, "", 1, entries);
+
+        byte[] encodedRequest = requestEncoder.encode(request);
+        PutAllBalancingRequest<long[]> decoded = requestDecoder.decodePutAllBalancing(ByteBuffer.wrap(encodedRequest));
+        assertRequestMetaEqual(request, decoded);
+        assertEquals(entries.size(), decoded.getEntries().size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertArrayEquals(entries.get(i).getKey(), decoded.getEntries().get(i).getKey());
+            assertArrayEquals(entries.get(i).getValue(), decoded.getEntries().get(i).getValue());
+        }
+    }
+
     @Test
     public void encodeDecodeGetSize() {
         BaseRequest request = new BaseRequest(1, OpCode.GET_SIZE, "", 1);
@@ -247,6 +339,18 @@ public class RequestEncodeDecodeTest {
         assertArrayEquals(request.getNewKey(), decoded.getNewKey());
     }
 
+    @Test
+    public void encodeDecodeDeleteRange() {
+        long[] start = {-5, 0, 3};
+        long[] end = {5, 10, Long.MAX_VALUE};
+        DeleteRangeRequest<long[]> request = new DeleteRangeRequest<>(1, OpCode.DELETE_RANGE, "", 1, start, end);
+        byte[] encodedRequest = requestEncoder.encodeDeleteRange(request);
+        DeleteRangeRequest<long[]> decoded = requestDecoder.decodeDeleteRange(ByteBuffer.wrap(encodedRequest));
+        assertRequestMetaEqual(request, decoded);
+        assertArrayEquals(request.getStart(), decoded.getStart());
+        assertArrayEquals(request.getEnd(), decoded.getEnd());
+    }
+
     @Test
     public void encodeDecodeGetRangeWithFilter() {
         long[] min = {1, 1, 1};
@@ -43,6 +43,7 @@ import ch.ethz.globis.phtree.PhEntry;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -50,6 +51,7 @@ import java.util.UUID;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ResponseEncodeDecodeTest {
 
@@ -78,6 +80,97 @@ public class ResponseEncodeDecodeTest {
         assertEqualsResults(response.getEntries(), decodedResponse.getEntries(), valueCodec);
     }
 
+    @Test
+    public void encodeDecodeResultResponse_DirectBuffer() {
+        Random random = new Random();
+        byte opCode = getRandom(opCodes, random);
+        byte opStatus = getRandom(opStatuses, random);
+        int requestId = random.nextInt();
+        IndexEntryList<long[], byte[]> generatedEntries = generateEntries(100);
+
+        ResultResponse<long[], byte[]> response = new ResultResponse<>(opCode, requestId, opStatus, generatedEntries, "it");
+
+        int size = encoder.encodedSize(response);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        encoder.encode(response, buffer);
+        assertEquals(0, buffer.remaining());
+
+        buffer.flip();
+        byte[] encodedResponse = new byte[size];
+        buffer.get(encodedResponse);
+        assertArrayEquals(encoder.encode(response), encodedResponse);
+
+        ResultResponse<long[], String> decodedResponse = decoder.decodeResult(encodedResponse);
+        assertEqualsMeta(response, decodedResponse);
+        assertEqualsResults(response.getEntries(), decodedResponse.getEntries(), valueCodec);
+        assertEquals(response.getIteratorId(), decodedResponse.getIteratorId());
+    }
+
+    @Test
+    public void encodeDecodeResultResponse_CompactKeys() {
+        Random random = new Random();
+        byte opCode = getRandom(opCodes, random);
+        byte opStatus = getRandom(opStatuses, random);
+        int requestId = random.nextInt();
+        IndexEntryList<long[], byte[]> entries = new IndexEntryList<>();
+        long[] key = { Long.MIN_VALUE, -5, 0, Long.MAX_VALUE };
+        for (int i = 0; i < 100; i++) {
+            long[] next = key.clone();
+            next[random.nextInt(next.length)] += random.nextInt(1000) - 500;
+            entries.add(next, (i % 10 == 0) ? null : generateValue());
+            key = next;
+        }
+        entries.add(generateKey(), generateValue());
+
+        ResultResponse<long[], byte[]> response = new ResultResponse<>(opCode, requestId, opStatus, entries, "it");
+        int plainSize = encoder.encodedSize(response);
+        response.setCompactKeys(true);
+
+        byte[] encodedResponse = encoder.encode(response);
+        assertEquals(encoder.encodedSize(response), encodedResponse.length);
+        assertTrue(encodedResponse.length < plainSize);
+
+        ResultResponse<long[], String> decodedResponse = decoder.decodeResult(encodedResponse);
+        assertEqualsMeta(response, decodedResponse);
+        assertTrue(decodedResponse.isCompactKeys());
+        assertEquals(response.getIteratorId(), decodedResponse.getIteratorId());
+        for (int i = 0; i < entries.size(); i++) {
+            assertArrayEquals(entries.get(i).getKey(), decodedResponse.getEntries().get(i).getKey());
+        }
+    }
+
+    @Test
+    public void decodeResultResponse_PartialFrames() {
+        int requestId = new Random().nextInt();
+        IndexEntryList<long[], byte[]> first = generateEntries(50);
+        IndexEntryList<long[], byte[]> second = generateEntries(30);
+        IndexEntryList<long[], byte[]> last = generateEntries(0);
+
+        ResultResponse<long[], byte[]> firstChunk =
+                new ResultResponse<>(OpCode.GET_RANGE, requestId, OpStatus.PARTIAL, first);
+        ResultResponse<long[], byte[]> secondChunk =
+                new ResultResponse<>(OpCode.GET_RANGE, requestId, OpStatus.PARTIAL, second);
+        secondChunk.setCompactKeys(true);
+        ResultResponse<long[], byte[]> lastChunk =
+                new ResultResponse<>(OpCode.GET_RANGE, requestId, OpStatus.SUCCESS, last);
+
+        int size = encoder.encodedSize(firstChunk) + encoder.encodedSize(secondChunk) + encoder.encodedSize(lastChunk);
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        encoder.encode(firstChunk, buffer);
+        encoder.encode(secondChunk, buffer);
+        encoder.encode(lastChunk, buffer);
+
+        ResultResponse<long[], String> decodedResponse = decoder.decodeResult(buffer.array());
+        assertEquals(requestId, decodedResponse.getRequestId());
+        assertEquals(OpStatus.SUCCESS, decodedResponse.getStatus());
+        assertEquals(size, decodedResponse.getEncodedSize());
+
+        IndexEntryList<long[], byte[]> expected = new IndexEntryList<>();
+        expected.addAll(first);
+        expected.addAll(second);
+        assertEqualsResults(expected, decodedResponse.getEntries(), valueCodec);
+    }
+
     @Test
     public void encodeDecodeResultResponse_NullKey() {
         Random random = new Random();
@@ -28,6 +28,7 @@ import ch.ethz.globis.disindex.codec.field.SerializingEncoderDecoder;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
@@ -42,4 +43,20 @@ public class SerializingEncoderDecoderTest {
         BigInteger decoded = codec.decode(bytes);
         assertEquals(bigInteger, decoded);
     }
+
+    @Test
+    public void testWriteAfterEncodedSize() {
+        SerializingEncoderDecoder<String> codec = new SerializingEncoderDecoder<>();
+        String first = "first";
+        String second = "second value";
+        ByteBuffer buffer = ByteBuffer.allocate(codec.encodedSize(first) + codec.encodedSize(second));
+        codec.write(first, buffer);
+        codec.write(second, buffer);
+        assertEquals(0, buffer.remaining());
+
+        buffer.flip();
+        int firstSize = codec.encode(first).length;
+        assertEquals(first, codec.decode(buffer, 0, firstSize));
+        assertEquals(second, codec.decode(buffer, firstSize, buffer.limit() - firstSize));
+    }
 }
@@ -32,6 +32,8 @@ import ch.ethz.globis.distindex.operation.*;
 import ch.ethz.globis.distindex.operation.request.*;
 import ch.ethz.globis.distindex.operation.response.Response;
 import ch.ethz.globis.distindex.operation.response.ResultResponse;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,10 +62,59 @@ public class IOHandler<K, V> {
         requestHandler.cleanup(clientHost);
     }
 
-    public ByteBuffer handle(String clientHost, ByteBuffer buffer) {
+    public void close() {
+        requestHandler.close();
+    }
+
+    /**
+     * Handle a request and encode the response, preceded by its size, into a buffer obtained from the
+     * allocator. The exact size of the response is computed before encoding, so the response is written
+     * only once.
+     *
+     * A streamed response is not collected into a single frame. It is returned as {@link ResponseFrames}
+     * that encode one frame per chunk, each chunk being computed only when its frame is asked for. The
+     * frames are therefore computed by the thread writing them, which should only ask for the next frame
+     * once the channel can accept it.
+     *
+     * @param clientHost                The client which sent the request.
+     * @param buffer                    The request.
+     * @param allocator                 The allocator used to obtain the output buffers.
+     * @return                          Either a buffer containing the size and the encoded response,
+     *                                  or the frames of a streamed response.
+     */
+    @SuppressWarnings("unchecked")
+    public Object handleMessage(String clientHost, ByteBuffer buffer, ByteBufAllocator allocator) {
+        Response response = handleRequest(clientHost, buffer);
+        if (response instanceof StreamedResponse) {
+            return new ResponseFrames((StreamedResponse<K, V>) response);
+        }
+        return encodeResponse(response, buffer, allocator);
+    }
+
+    /**
+     * Encode a failure response to a request that could not be handled, preceded by its size.
+     *
+     * @param buffer                    The request.
+     * @param allocator                 The allocator used to obtain the output buffer.
+     * @return                          The buffer containing the size and the encoded failure response.
+     */
+    public ByteBuf handleFailure(ByteBuffer buffer, ByteBufAllocator allocator) {
+        return encodeResponse(handleErroneousRequest(buffer), allocator);
+    }
+
+    private ByteBuf encodeResponse(Response response, ByteBuffer buffer, ByteBufAllocator allocator) {
+        try {
+            return encodeResponse(response, allocator);
+        } catch (RuntimeException e) {
+            LOG.error("Error encoding response", e);
+            return encodeResponse(handleErroneousRequest(buffer), allocator);
+        }
+    }
+
+    private Response handleRequest(String clientHost, ByteBuffer buffer) {
         byte messageCode = getMessageCode(buffer);
 
-        ByteBuffer response;
+        Response response;
         try {
             switch (messageCode) {
                 case OpCode.GET:
@@ -78,6 +129,9 @@ public class IOHandler<K, V> {
                 case OpCode.GET_RANGE_FILTER:
                     response = handleGetRangeFilter(buffer);
                     break;
+                case OpCode.COUNT_RANGE:
+                    response = handleCountRangeRequest(buffer);
+                    break;
                 case OpCode.GET_BATCH:
                     response = handleGetBatchRequest(clientHost, buffer);
                     break;
@@ -93,6 +147,18 @@ public class IOHandler<K, V> {
                 case OpCode.DELETE:
                     response = handleDeleteRequest(buffer);
                     break;
+                case OpCode.PUT_ALL:
+                    response = handlePutAllRequest(buffer);
+                    break;
+                case OpCode.GET_ALL:
+                    response = handleGetAllRequest(buffer);
+                    break;
+                case OpCode.DELETE_ALL:
+                    response = handleDeleteAllRequest(buffer);
+                    break;
+                case OpCode.DELETE_RANGE:
+                    response = handleDeleteRangeRequest(buffer);
+                    break;
                 case OpCode.GET_SIZE:
                     response = handleGetSizeRequest(buffer);
                     break;
@@ -114,6 +180,12 @@ public class IOHandler<K, V> {
                 case OpCode.BALANCE_PUT:
                     response = handleBalancePut(buffer);
                     break;
+                case OpCode.BALANCE_PUT_ALL:
+                    response = handleBalancePutAll(buffer);
+                    break;
+                case OpCode.BALANCE_DELETE_ALL:
+                    response = handleBalanceDeleteAll(buffer);
+                    break;
                 case OpCode.BALANCE_COMMIT:
                     response = handleBalanceCommit(buffer);
                     break;
@@ -136,134 +208,228 @@ public class IOHandler<K, V> {
         return response;
     }
 
-    private ByteBuffer handleUpdateKeyRequest(ByteBuffer buffer) {
+    private Response handleUpdateKeyRequest(ByteBuffer buffer) {
         UpdateKeyRequest<K> request = decoder.decodeUpdateKeyRequest(buffer);
         Response response = requestHandler.handleUpdateKey(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetRangeFilter(ByteBuffer buffer) {
+    private Response handleGetRangeFilter(ByteBuffer buffer) {
         GetRangeFilterMapperRequest<K> request = decoder.decodeGetRangeFilterMapper(buffer);
         Response response = requestHandler.handleGetRangeFilter(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleToStringRequest(ByteBuffer buffer) {
+    private Response handleToStringRequest(ByteBuffer buffer) {
         BaseRequest request = decoder.decodeBase(buffer);
         Response response = requestHandler.handleToString(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleStatsRequest(ByteBuffer buffer) {
+    private Response handleStatsRequest(ByteBuffer buffer) {
         BaseRequest request = decoder.decodeBase(buffer);
         Response response = requestHandler.handleStats(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleBalanceCommit(ByteBuffer buffer) {
+    private Response handleBalanceCommit(ByteBuffer buffer) {
         CommitBalancingRequest request = decoder.decodeCommitBalancing(buffer);
         Response response = balancingRequestHandler.handleCommit(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleBalanceRollback(ByteBuffer buffer) {
+    private Response handleBalanceRollback(ByteBuffer buffer) {
         RollbackBalancingRequest request = decoder.decodeRollbackBalancing(buffer);
         Response response = balancingRequestHandler.handleRollback(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleBalancePut(ByteBuffer buffer) {
+    private Response handleBalancePut(ByteBuffer buffer) {
         PutBalancingRequest<K> request = decoder.decodePutBalancing(buffer);
         Response response = balancingRequestHandler.handlePut(request);
-        return encodeResponse(response);
+        return response;
+    }
+
+    private Response handleBalancePutAll(ByteBuffer buffer) {
+        PutAllBalancingRequest<K> request = decoder.decodePutAllBalancing(buffer);
+        Response response = balancingRequestHandler.handlePutAll(request);
+        return response;
     }
 
-    private ByteBuffer handleBalanceInit(ByteBuffer buffer) {
+    private Response handleBalanceDeleteAll(ByteBuffer buffer) {
+        DeleteAllBalancingRequest<K> request = decoder.decodeDeleteAllBalancing(buffer);
+        Response response = balancingRequestHandler.handleDeleteAll(request);
+        return response;
+    }
+
+    private Response handleBalanceInit(ByteBuffer buffer) {
         InitBalancingRequest request = decoder.decodeInitBalancing(buffer);
         Response response = balancingRequestHandler.handleInit(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleContains(ByteBuffer buffer) {
+    private Response handleContains(ByteBuffer buffer) {
         ContainsRequest<K> request = decoder.decodeContains(buffer);
         Response response = requestHandler.handleContains(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleCloseIterator(String clientHost, ByteBuffer buffer) {
+    private Response handleCloseIterator(String clientHost, ByteBuffer buffer) {
         MapRequest request = decoder.decodeMap(buffer);
         Response response = requestHandler.handleCloseIterator(clientHost, request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetDimRequest(ByteBuffer buffer) {
+    private Response handleGetDimRequest(ByteBuffer buffer) {
         BaseRequest request = decoder.decodeBase(buffer);
         Response response = requestHandler.handleGetDim(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetDepthRequest(ByteBuffer buffer) {
+    private Response handleGetDepthRequest(ByteBuffer buffer) {
         BaseRequest request = decoder.decodeBase(buffer);
         Response response = requestHandler.handleGetDepth(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetSizeRequest(ByteBuffer buffer) {
+    private Response handleGetSizeRequest(ByteBuffer buffer) {
         BaseRequest request = decoder.decodeBase(buffer);
         Response response = requestHandler.handleGetSize(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleDeleteRequest(ByteBuffer buf) {
+    private Response handleDeleteRequest(ByteBuffer buf) {
         DeleteRequest<K> request = decoder.decodeDelete(buf);
         Response response = requestHandler.handleDelete(request);
-        return encodeResponse(response);
+        return response;
+    }
+
+    private Response handlePutAllRequest(ByteBuffer buf) {
+        PutAllRequest<K, V> request = decoder.decodePutAll(buf);
+        Response response = requestHandler.handlePutAll(request);
+        return response;
+    }
+
+    private Response handleGetAllRequest(ByteBuffer buf) {
+        GetAllRequest<K> request = decoder.decodeGetAll(buf);
+        Response response = requestHandler.handleGetAll(request);
+        return response;
+    }
+
+    private Response handleDeleteAllRequest(ByteBuffer buf) {
+        DeleteAllRequest<K> request = decoder.decodeDeleteAll(buf);
+        Response response = requestHandler.handleDeleteAll(request);
+        return response;
     }
 
-    private ByteBuffer handleGetBatchRequest(String clientHost, ByteBuffer buf) {
+    private Response handleDeleteRangeRequest(ByteBuffer buf) {
+        DeleteRangeRequest<K> request = decoder.decodeDeleteRange(buf);
+        Response response = requestHandler.handleDeleteRange(request);
+        return response;
+    }
+
+    private Response handleGetBatchRequest(String clientHost, ByteBuffer buf) {
         GetIteratorBatchRequest<K> request = decoder.decodeGetBatch(buf);
         Response response = requestHandler.handleGetIteratorBatch(clientHost, request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleCreateRequest(ByteBuffer buf) {
+    private Response handleCreateRequest(ByteBuffer buf) {
         MapRequest request = decoder.decodeMap(buf);
         Response response = requestHandler.handleCreate(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handlePutRequest(ByteBuffer buf) {
+    private Response handlePutRequest(ByteBuffer buf) {
         PutRequest<K, V> request = decoder.decodePut(buf);
         Response response = requestHandler.handlePut(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetRequest(ByteBuffer buf) {
+    private Response handleGetRequest(ByteBuffer buf) {
         GetRequest<K> request = decoder.decodeGet(buf);
         Response response = requestHandler.handleGet(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetRangeRequest(ByteBuffer buf) {
+    private Response handleGetRangeRequest(ByteBuffer buf) {
         GetRangeRequest<K> request = decoder.decodeGetRange(buf);
         Response response = requestHandler.handleGetRange(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleGetKNNRequest(ByteBuffer buf) {
+    private Response handleCountRangeRequest(ByteBuffer buf) {
+        GetRangeRequest<K> request = decoder.decodeGetRange(buf);
+        Response response = requestHandler.handleCountRange(request);
+        return response;
+    }
+
+    private Response handleGetKNNRequest(ByteBuffer buf) {
         GetKNNRequest<K> request = decoder.decodeGetKNN(buf);
         Response response = requestHandler.handleGetKNN(request);
-        return encodeResponse(response);
+        return response;
     }
 
-    private ByteBuffer handleErroneousRequest(ByteBuffer buf) {
-        ResultResponse<K, V> response = new ResultResponse<>((byte) 0, 0, OpStatus.FAILURE);
-        return encodeResponse(response);
+    private Response handleErroneousRequest(ByteBuffer buf) {
+        //echo the op code and request id, if present, so that the client can match the failure to its request
+        byte opCode = (buf.limit() >= 1) ? buf.get(0) : 0;
+        int requestId = (buf.limit() >= 5) ? buf.getInt(1) : 0;
+        ResultResponse<K, V> response = new ResultResponse<>(opCode, requestId, OpStatus.FAILURE);
+        return response;
+    }
+
+    private ByteBuf encodeResponse(Response response, ByteBufAllocator allocator) {
+        int size = encoder.encodedSize(response);
+        ByteBuf frame = allocator.directBuffer(4 + size);
+        try {
+            frame.writeInt(size);
+            encoder.encode(response, frame.nioBuffer(frame.writerIndex(), size));
+            frame.writerIndex(frame.writerIndex() + size);
+            return frame;
+        } catch (RuntimeException e) {
+            frame.release();
+            throw e;
+        }
     }
 
-    private ByteBuffer encodeResponse(Response response) {
-        byte[] responseBytes = encoder.encode(response);
-        return ByteBuffer.wrap(responseBytes);
+    /**
+     * Encodes the chunks of a streamed response, one frame per chunk. If a chunk cannot be computed,
+     * a failure frame with the request id of the response ends the stream, so the client does not
+     * wait for the remaining chunks.
+     *
+     * The frames should be asked for by a single thread at a time.
+     */
+    public class ResponseFrames {
+
+        private final StreamedResponse<K, V> response;
+
+        private boolean ended = false;
+
+        ResponseFrames(StreamedResponse<K, V> response) {
+            this.response = response;
+        }
+
+        /**
+         * Compute the next chunk and encode it, preceded by its size.
+         *
+         * @param allocator             The allocator used to obtain the output buffer.
+         * @return                      The next frame, or null if the last frame was already returned.
+         */
+        public ByteBuf nextFrame(ByteBufAllocator allocator) {
+            if (ended) {
+                return null;
+            }
+            try {
+                ResultResponse<K, V> chunk = response.getChunks().next();
+                ended = chunk.getStatus() != OpStatus.PARTIAL;
+                return encodeResponse(chunk, allocator);
+            } catch (RuntimeException e) {
+                LOG.error("Error streaming response", e);
+                ended = true;
+                return encodeResponse(new ResultResponse<K, V>(response.getOpCode(), response.getRequestId(),
+                        OpStatus.FAILURE), allocator);
+            }
+        }
     }
 
     public RequestHandler<K, V> getRequestHandler() {
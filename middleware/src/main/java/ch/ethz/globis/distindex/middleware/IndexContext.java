@@ -24,11 +24,19 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.distindex.middleware;
 
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
 
-import ch.ethz.globis.distindex.concurrency.dummies.PhOperationsOL_COW;
-import ch.ethz.globis.distindex.concurrency.dummies.PhTreeC;
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+
+import ch.ethz.globis.distindex.concurrency.PhTreeRW;
+import ch.ethz.globis.distindex.concurrency.PhTreeSharded;
 import ch.ethz.globis.distindex.orchestration.ClusterService;
+import ch.ethz.globis.phtree.PhFilter;
 import ch.ethz.globis.phtree.PhTree;
 
 /**
@@ -36,6 +44,9 @@ import ch.ethz.globis.phtree.PhTree;
  */
 public class IndexContext {
 
+    /** The default number of shards of the in-memory tree, one per core, rounded down to a power of two. */
+    public static final int DEFAULT_SHARDS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors());
+
     /** The current in-memory tree. */
     private PhTree<byte[]> tree;
 
@@ -56,6 +67,25 @@ public class IndexContext {
 
     private AtomicBoolean isBalancing = new AtomicBoolean(false);
 
+    /** The writes done while entries are moved to another host, or null if no entries are moved. */
+    private volatile MigrationLog migrationLog;
+
+    /** Whether entries moved from another host are being received. */
+    private volatile boolean receivingMigration = false;
+
+    /**
+     * Held for writing while entries moved from another host are inserted, and for reading while a range
+     * operation checks that it does not overlap them and runs.
+     */
+    private final ReadWriteLock incomingLock = new ReentrantReadWriteLock();
+
+    /** The corners of the bounding box of the entries received from another host, or null if there are none. */
+    private long[] incomingMin;
+    private long[] incomingMax;
+
+    /** The number of shards the in-memory tree is split into. */
+    private int nrShards = DEFAULT_SHARDS;
+
     public IndexContext(String host, int port) {
         this.host = host;
         this.port = port;
@@ -66,9 +96,11 @@ public class IndexContext {
 //        if (tree != null) {
 //            return;
 //        }
-        PhTreeC<byte[]> concurrentTree = PhTreeC.create(dim);
-        concurrentTree.setOperations(new PhOperationsOL_COW<>(concurrentTree));
-        this.tree = concurrentTree;
+        if (nrShards > 1) {
+            this.tree = PhTreeSharded.create(dim, nrShards);
+        } else {
+            this.tree = PhTreeRW.create(dim);
+        }
     }
 
 
@@ -76,6 +108,68 @@ public class IndexContext {
         return tree;
     }
 
+    /**
+     * Remove all of the entries of the tree inside the range [min, max] accepted by the filter. The
+     * entries are removed in chunks, every part of the tree being unlocked between the chunks.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param filter                The filter, or null to remove all of the entries of the range.
+     * @return                      The number of removed entries.
+     */
+    public int removeRange(long[] min, long[] max, PhFilter filter) {
+        if (tree instanceof PhTreeSharded) {
+            return ((PhTreeSharded<byte[]>) tree).removeRange(min, max, filter);
+        }
+        return ((PhTreeRW<byte[]>) tree).removeRange(min, max, filter);
+    }
+
+    /**
+     * Remove at most maxResults entries of the tree inside the range [min, max] that follow a key in
+     * z-order and are accepted by the filter.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param after                 The key preceding the entries, or null to start from the beginning.
+     * @param maxResults            The maximum number of entries removed.
+     * @param filter                The filter, or null to remove all of the entries of the range.
+     * @return                      The removed keys, in z-order.
+     */
+    public List<long[]> removeAfter(long[] min, long[] max, long[] after, int maxResults, PhFilter filter) {
+        if (tree instanceof PhTreeSharded) {
+            return ((PhTreeSharded<byte[]>) tree).removeAfter(min, max, after, maxResults, filter);
+        }
+        return ((PhTreeRW<byte[]>) tree).removeAfter(min, max, after, maxResults, filter);
+    }
+
+    /**
+     * Count the entries of the tree inside the range [min, max].
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @return                      The number of entries inside the range.
+     */
+    public int countRange(long[] min, long[] max) {
+        if (tree instanceof PhTreeSharded) {
+            return ((PhTreeSharded<byte[]>) tree).countRange(min, max);
+        }
+        return ((PhTreeRW<byte[]>) tree).countRange(min, max);
+    }
+
+    public int getNrShards() {
+        return nrShards;
+    }
+
+    /**
+     * Set the number of shards used by the trees created afterwards. The value is stored as given, the
+     * sharded tree rounds it down to a power of two when it is created.
+     *
+     * @param nrShards              The number of shards, 1 or less for a tree that is not sharded.
+     */
+    public void setNrShards(int nrShards) {
+        this.nrShards = nrShards;
+    }
+
     public ClusterService<long[]> getClusterService() {
         return clusterService;
     }
@@ -115,4 +209,84 @@ public class IndexContext {
     public boolean isBalancing() {
         return isBalancing.get();
     }
+
+    public MigrationLog getMigrationLog() {
+        return migrationLog;
+    }
+
+    public void setMigrationLog(MigrationLog migrationLog) {
+        this.migrationLog = migrationLog;
+    }
+
+    public boolean isReceivingMigration() {
+        return receivingMigration;
+    }
+
+    public void setReceivingMigration(boolean receivingMigration) {
+        incomingLock.writeLock().lock();
+        try {
+            this.receivingMigration = receivingMigration;
+            incomingMin = null;
+            incomingMax = null;
+        } finally {
+            incomingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Insert entries moved to this host from another host. Until the move is committed, these entries
+     * still belong to the range of the other host.
+     *
+     * @param entries               The received entries.
+     */
+    public void putIncoming(IndexEntryList<long[], byte[]> entries) {
+        incomingLock.writeLock().lock();
+        try {
+            for (IndexEntry<long[], byte[]> entry : entries) {
+                long[] key = entry.getKey();
+                if (incomingMin == null) {
+                    incomingMin = key.clone();
+                    incomingMax = key.clone();
+                }
+                for (int i = 0; i < key.length; i++) {
+                    incomingMin[i] = Math.min(incomingMin[i], key[i]);
+                    incomingMax[i] = Math.max(incomingMax[i], key[i]);
+                }
+                tree.put(key, entry.getValue());
+            }
+        } finally {
+            incomingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Run an operation on the range [min, max], unless the range overlaps the entries received from
+     * another host, which are not yet part of the range of this host. No entries are received while the
+     * operation runs.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param operation             The operation.
+     * @return                      The result of the operation, or null if the operation was not run.
+     */
+    public <R> R outsideIncoming(long[] min, long[] max, Supplier<R> operation) {
+        incomingLock.readLock().lock();
+        try {
+            if (receivingMigration && incomingMin != null && intersect(min, max, incomingMin, incomingMax)) {
+                return null;
+            }
+            return operation.get();
+        } finally {
+            incomingLock.readLock().unlock();
+        }
+    }
+
+    private static boolean intersect(long[] min1, long[] max1, long[] min2, long[] max2) {
+        for (int i = 0; i < min1.length; i++) {
+            if (min1[i] > max2[i] || max1[i] < min2[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
\ No newline at end of file
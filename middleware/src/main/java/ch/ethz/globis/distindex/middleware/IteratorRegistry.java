@@ -0,0 +1,286 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the iterators opened by the clients of a middleware node.
+ *
+ * Between two batch requests, an iterator is held under a lease. If the client does not request the next
+ * batch before the lease expires, the iterator is removed by a background reaper, so that iterators
+ * abandoned by crashed clients do not pin memory indefinitely. While a batch is being read, the iterator
+ * is checked out of the registry and cannot be reaped.
+ *
+ * The number of iterators a single client can keep open is limited.
+ *
+ * @param <I>                       The type of the iterators.
+ */
+public class IteratorRegistry<I> {
+
+    /** The logger used by this class. */
+    private static final Logger LOG = LoggerFactory.getLogger(IteratorRegistry.class);
+
+    /** The default time an idle iterator is kept, in milliseconds. */
+    public static final long DEFAULT_LEASE_TIMEOUT = 60000L;
+
+    /** The default number of iterators a client can keep open. */
+    public static final int DEFAULT_MAX_ITERATORS_PER_CLIENT = 1000;
+
+    /** The idle iterators, by iterator id. */
+    private final ConcurrentMap<String, Lease<I>> leases = new ConcurrentHashMap<>();
+
+    /** The ids of the open iterators, idle or in use, by client. */
+    private final ConcurrentMap<String, Set<String>> clientIterators = new ConcurrentHashMap<>();
+
+    /** The time an idle iterator is kept, in milliseconds. */
+    private final long leaseTimeout;
+
+    /** The number of iterators a client can keep open. */
+    private final int maxIteratorsPerClient;
+
+    /** The executor running the reaper. */
+    private ScheduledExecutorService reaper;
+
+    private final AtomicInteger openIterators = new AtomicInteger(0);
+    private final AtomicLong openedIterators = new AtomicLong(0);
+    private final AtomicLong expiredIterators = new AtomicLong(0);
+    private final AtomicLong rejectedIterators = new AtomicLong(0);
+
+    public IteratorRegistry() {
+        this(DEFAULT_LEASE_TIMEOUT, DEFAULT_MAX_ITERATORS_PER_CLIENT);
+    }
+
+    public IteratorRegistry(long leaseTimeout, int maxIteratorsPerClient) {
+        this.leaseTimeout = leaseTimeout;
+        this.maxIteratorsPerClient = maxIteratorsPerClient;
+    }
+
+    /**
+     * Start the background reaper, which removes the expired iterators every half lease timeout.
+     */
+    public synchronized void start() {
+        if (reaper != null) {
+            return;
+        }
+        long period = Math.max(1L, leaseTimeout / 2);
+        reaper = new ScheduledThreadPoolExecutor(1, new DefaultThreadFactory("iterator-reaper", true));
+        reaper.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to remove expired iterators.", e);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the reaper and drop all iterators.
+     */
+    public synchronized void close() {
+        if (reaper != null) {
+            reaper.shutdownNow();
+            reaper = null;
+        }
+        leases.clear();
+        clientIterators.clear();
+        openIterators.set(0);
+    }
+
+    /**
+     * Reserve a new iterator id for a client.
+     *
+     * @param clientHost                The client opening the iterator.
+     * @return                          The new iterator id, or null if the client already has the
+     *                                  maximum number of iterators open.
+     */
+    public String open(String clientHost) {
+        Set<String> iteratorIds = clientIterators.get(clientHost);
+        if (iteratorIds == null) {
+            Set<String> newIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            iteratorIds = clientIterators.putIfAbsent(clientHost, newIds);
+            if (iteratorIds == null) {
+                iteratorIds = newIds;
+            }
+        }
+        String iteratorId = UUID.randomUUID().toString();
+        synchronized (iteratorIds) {
+            if (iteratorIds.size() >= maxIteratorsPerClient) {
+                rejectedIterators.incrementAndGet();
+                LOG.warn("Client {} reached the maximum of {} open iterators.", clientHost, maxIteratorsPerClient);
+                return null;
+            }
+            iteratorIds.add(iteratorId);
+        }
+        openIterators.incrementAndGet();
+        openedIterators.incrementAndGet();
+        return iteratorId;
+    }
+
+    /**
+     * Check an idle iterator out of the registry. The iterator is not reaped until it is released again.
+     *
+     * @param iteratorId                The id of the iterator.
+     * @return                          The iterator, or null if there is no idle iterator with this id.
+     */
+    public I checkOut(String iteratorId) {
+        Lease<I> lease = leases.remove(iteratorId);
+        return (lease == null) ? null : lease.iterator;
+    }
+
+    /**
+     * Return an iterator to the registry, under a new lease.
+     *
+     * @param clientHost                The client owning the iterator.
+     * @param iteratorId                The id of the iterator.
+     * @param iterator                  The iterator.
+     */
+    public void release(String clientHost, String iteratorId, I iterator) {
+        Set<String> iteratorIds = clientIterators.get(clientHost);
+        if (iteratorIds == null || !iteratorIds.contains(iteratorId)) {
+            // the iterator was closed while it was checked out
+            return;
+        }
+        long expiration = System.currentTimeMillis() + leaseTimeout;
+        leases.put(iteratorId, new Lease<>(clientHost, iterator, expiration));
+    }
+
+    /**
+     * Close an iterator, whether it is idle or checked out.
+     *
+     * @param clientHost                The client owning the iterator.
+     * @param iteratorId                The id of the iterator.
+     */
+    public void close(String clientHost, String iteratorId) {
+        leases.remove(iteratorId);
+        forget(clientHost, iteratorId);
+    }
+
+    /**
+     * Close all iterators opened by a client.
+     *
+     * @param clientHost                The client.
+     */
+    public void closeAll(String clientHost) {
+        Set<String> iteratorIds = clientIterators.remove(clientHost);
+        if (iteratorIds == null) {
+            return;
+        }
+        for (String iteratorId : iteratorIds) {
+            leases.remove(iteratorId);
+        }
+        openIterators.addAndGet(-iteratorIds.size());
+    }
+
+    /**
+     * Remove all idle iterators whose lease has expired.
+     *
+     * @return                          The number of removed iterators.
+     */
+    public int reap() {
+        long now = System.currentTimeMillis();
+        int reaped = 0;
+        Iterator<Map.Entry<String, Lease<I>>> it = leases.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Lease<I>> entry = it.next();
+            Lease<I> lease = entry.getValue();
+            if (lease.expiration <= now && leases.remove(entry.getKey(), lease)) {
+                forget(lease.clientHost, entry.getKey());
+                reaped++;
+            }
+        }
+        if (reaped > 0) {
+            expiredIterators.addAndGet(reaped);
+            LOG.debug("Removed {} expired iterators.", reaped);
+        }
+        return reaped;
+    }
+
+    private void forget(String clientHost, String iteratorId) {
+        Set<String> iteratorIds = clientIterators.get(clientHost);
+        if (iteratorIds != null && iteratorIds.remove(iteratorId)) {
+            openIterators.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return                          The number of open iterators, idle or in use.
+     */
+    public int getOpenIterators() {
+        return openIterators.get();
+    }
+
+    /**
+     * @return                          The number of iterators opened since the registry was created.
+     */
+    public long getOpenedIterators() {
+        return openedIterators.get();
+    }
+
+    /**
+     * @return                          The number of iterators removed because their lease expired.
+     */
+    public long getExpiredIterators() {
+        return expiredIterators.get();
+    }
+
+    /**
+     * @return                          The number of iterators refused because of the per client limit.
+     */
+    public long getRejectedIterators() {
+        return rejectedIterators.get();
+    }
+
+    private static class Lease<I> {
+
+        private final String clientHost;
+        private final I iterator;
+        private final long expiration;
+
+        private Lease(String clientHost, I iterator, long expiration) {
+            this.clientHost = clientHost;
+            this.iterator = iterator;
+            this.expiration = expiration;
+        }
+    }
+}
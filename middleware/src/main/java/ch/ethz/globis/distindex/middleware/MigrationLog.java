@@ -0,0 +1,203 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware;
+
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.util.ZRangeFilter;
+import ch.ethz.globis.phtree.PhTree;
+
+/**
+ * Records the writes done on a host while a range of its entries is moved to another host, so the
+ * writes can be accepted during the move and replayed on the receiving host afterwards.
+ *
+ * The writes are recorded in the order in which they were applied, a deletion being recorded as an
+ * entry with a null value. Until the moving range is known, all of the writes are recorded.
+ *
+ * A write holds the read lock while it is applied and recorded. Pausing the log takes the write lock,
+ * so once {@link #pause()} returns, every accepted write was recorded and the following writes are
+ * refused until the log is discarded.
+ *
+ * The writes are applied to the tree and recorded through the log, both while holding its monitor, so
+ * two concurrent writes to the same key are recorded in the order in which they were applied. The writes
+ * of the host are therefore serialized while the range is moved.
+ */
+public class MigrationLog {
+
+    /** The maximum number of entries removed and recorded at once by a range deletion. */
+    private static final int REMOVE_CHUNK_SIZE = 256;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /** Whether the writes are refused. Written under the write lock, read under the read lock. */
+    private boolean paused = false;
+
+    /** The moving range, or null while it is not known. */
+    private ZRangeFilter range;
+
+    private IndexEntryList<long[], byte[]> writes = new IndexEntryList<>();
+
+    /**
+     * Start a write on the host.
+     *
+     * @return                              False if the write has to be refused, in which case
+     *                                      {@link #endWrite()} must not be called.
+     */
+    public boolean beginWrite() {
+        lock.readLock().lock();
+        if (paused) {
+            lock.readLock().unlock();
+            return false;
+        }
+        return true;
+    }
+
+    public void endWrite() {
+        lock.readLock().unlock();
+    }
+
+    /**
+     * Insert an entry into the tree and record the insertion.
+     *
+     * @return                              The previous value associated with the key, or null.
+     */
+    public synchronized byte[] put(PhTree<byte[]> tree, long[] key, byte[] value) {
+        byte[] previous = tree.put(key, value);
+        recordPut(key, value);
+        return previous;
+    }
+
+    /**
+     * Remove a key from the tree and record the deletion, if the key was in the tree.
+     *
+     * @return                              The removed value, or null.
+     */
+    public synchronized byte[] remove(PhTree<byte[]> tree, long[] key) {
+        byte[] value = tree.remove(key);
+        if (value != null) {
+            recordDelete(key);
+        }
+        return value;
+    }
+
+    /**
+     * Move an entry of the tree to a new key and record the move as a deletion followed by an insertion,
+     * if the old key was in the tree.
+     *
+     * @return                              The value of the moved entry, or null.
+     */
+    public synchronized byte[] update(PhTree<byte[]> tree, long[] oldKey, long[] newKey) {
+        byte[] value = tree.update(oldKey, newKey);
+        if (value != null) {
+            recordDelete(oldKey);
+            recordPut(newKey, value);
+        }
+        return value;
+    }
+
+    /**
+     * Remove the entries inside the range from the tree and record their deletion. The entries are
+     * removed in chunks, each chunk being removed and recorded as one step, so the other writes can
+     * proceed between the chunks.
+     *
+     * @return                              The number of removed entries.
+     */
+    public int removeRange(IndexContext context, long[] min, long[] max) {
+        int removed = 0;
+        long[] after = null;
+        while (true) {
+            List<long[]> chunk;
+            synchronized (this) {
+                chunk = context.removeAfter(min, max, after, REMOVE_CHUNK_SIZE, null);
+                for (long[] key : chunk) {
+                    recordDelete(key);
+                }
+            }
+            removed += chunk.size();
+            if (chunk.size() < REMOVE_CHUNK_SIZE) {
+                return removed;
+            }
+            after = chunk.get(chunk.size() - 1);
+        }
+    }
+
+    public synchronized void recordPut(long[] key, byte[] value) {
+        if (inRange(key)) {
+            writes.add(key, value);
+        }
+    }
+
+    public synchronized void recordDelete(long[] key) {
+        if (inRange(key)) {
+            writes.add(key, null);
+        }
+    }
+
+    /**
+     * Set the moving range and discard the writes already recorded outside of it.
+     *
+     * @param after                         The key preceding the range, or null.
+     * @param last                          The last key of the range, or null.
+     */
+    public synchronized void setRange(long[] after, long[] last) {
+        this.range = new ZRangeFilter(after, last);
+        IndexEntryList<long[], byte[]> inRange = new IndexEntryList<>();
+        for (IndexEntry<long[], byte[]> write : writes) {
+            if (inRange(write.getKey())) {
+                inRange.add(write);
+            }
+        }
+        writes = inRange;
+    }
+
+    /**
+     * @return                              The writes recorded since the last call, in order.
+     */
+    public synchronized IndexEntryList<long[], byte[]> drain() {
+        IndexEntryList<long[], byte[]> drained = writes;
+        writes = new IndexEntryList<>();
+        return drained;
+    }
+
+    /**
+     * Wait for the writes in progress to be recorded and refuse the following ones.
+     */
+    public void pause() {
+        lock.writeLock().lock();
+        try {
+            paused = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean inRange(long[] key) {
+        return range == null || range.isValid(key);
+    }
+}
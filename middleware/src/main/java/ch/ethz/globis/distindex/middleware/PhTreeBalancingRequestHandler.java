@@ -52,6 +52,7 @@ public class PhTreeBalancingRequestHandler implements BalancingRequestHandler<lo
         for (IndexEntry<long[], byte[]> entry : buffer) {
             tree.remove(entry.getKey());
         }
+        indexContext.setReceivingMigration(false);
         indexContext.endBalancing();
         return ackResponse(request);
     }
@@ -67,6 +68,7 @@ public class PhTreeBalancingRequestHandler implements BalancingRequestHandler<lo
             if (indexContext.getTree() == null) {
                 indexContext.initTree(dim, depth);
             }
+            indexContext.setReceivingMigration(true);
             return ackResponse(request);
         } else {
             return errorResponse(request);
@@ -79,8 +81,31 @@ public class PhTreeBalancingRequestHandler implements BalancingRequestHandler<lo
         byte[] value = request.getValue();
 
         buffer.add(key, value);
+        indexContext.putIncoming(new IndexEntryList<>(key, value));
+        return ackResponse(request);
+    }
+
+    /**
+     * Insert a chunk of the entries moved to this host. The whole chunk is applied before the
+     * acknowledgement is sent, so the sender only waits once per chunk.
+     */
+    @Override
+    public Response handlePutAll(PutAllBalancingRequest<long[]> request) {
+        IndexEntryList<long[], byte[]> entries = request.getEntries();
+        buffer.addAll(entries);
+        indexContext.putIncoming(entries);
+        return ackResponse(request);
+    }
+
+    /**
+     * Remove the keys deleted on the initiating host after their entries were sent to this host.
+     */
+    @Override
+    public Response handleDeleteAll(DeleteAllBalancingRequest<long[]> request) {
         PhTree<byte[]> tree = indexContext.getTree();
-        tree.put(key, value);
+        for (long[] key : request.getKeys()) {
+            tree.remove(key);
+        }
         return ackResponse(request);
     }
 
@@ -91,6 +116,7 @@ public class PhTreeBalancingRequestHandler implements BalancingRequestHandler<lo
         updateBalancingVersion(request);
         String currentHostId = indexContext.getHostId();
         indexContext.getClusterService().setSize(currentHostId, tree.size());
+        indexContext.setReceivingMigration(false);
         if (!indexContext.endBalancing()) {
             throw new RuntimeException("Another execution thread is performing balancing in parallel!");
         }
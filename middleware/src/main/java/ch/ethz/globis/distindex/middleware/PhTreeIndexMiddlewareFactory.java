@@ -43,7 +43,25 @@ import ch.ethz.globis.distindex.orchestration.ZKClusterService;
  */
 public class PhTreeIndexMiddlewareFactory {
 
+    /** The default number of threads executing the requests received by a middleware node. */
+    public static final int DEFAULT_REQUEST_THREADS = Runtime.getRuntime().availableProcessors();
+
     public static IndexMiddleware<long[], byte[]> newPhTree(String host, int port, ClusterService<long[]> clusterService) {
+        return newPhTree(host, port, clusterService, DEFAULT_REQUEST_THREADS);
+    }
+
+    /**
+     * Create a new middleware node.
+     *
+     * @param host                          The host of the node.
+     * @param port                          The port of the node.
+     * @param clusterService                The cluster service.
+     * @param nrRequestThreads              The number of threads executing the requests. If 0, the requests
+     *                                      are executed by the Netty worker threads.
+     * @return                              The middleware node.
+     */
+    public static IndexMiddleware<long[], byte[]> newPhTree(String host, int port, ClusterService<long[]> clusterService,
+                                                            int nrRequestThreads) {
         IndexContext indexContext = new IndexContext(host, port);
         indexContext.setClusterService(clusterService);
 
@@ -56,7 +74,7 @@ public class PhTreeIndexMiddlewareFactory {
         BalancingDaemon balancingDaemon = new BalancingDaemon(indexContext, balancingStrategy, 10L);
 
         IOHandler<long[], byte[]> ioHandler = new IOHandler<>(requestHandler, balancingRequestHandler, requestDecoder, responseEncoder);
-        return new IndexMiddleware<>(indexContext, clusterService, ioHandler, balancingDaemon);
+        return new IndexMiddleware<>(indexContext, clusterService, ioHandler, balancingDaemon, nrRequestThreads);
     }
 
     public static IndexMiddleware<long[], byte[]> newPhTree(String host, int port, String zkHost, int zkPort) {
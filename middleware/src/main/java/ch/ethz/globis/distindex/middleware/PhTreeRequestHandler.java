@@ -25,28 +25,31 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package ch.ethz.globis.distindex.middleware;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.UUID;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.middleware.net.RequestHandler;
 import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.ContainsRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteAllRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteRangeRequest;
 import ch.ethz.globis.distindex.operation.request.DeleteRequest;
+import ch.ethz.globis.distindex.operation.request.GetAllRequest;
 import ch.ethz.globis.distindex.operation.request.GetIteratorBatchRequest;
 import ch.ethz.globis.distindex.operation.request.GetKNNRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeFilterMapperRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeRequest;
 import ch.ethz.globis.distindex.operation.request.GetRequest;
 import ch.ethz.globis.distindex.operation.request.MapRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllRequest;
 import ch.ethz.globis.distindex.operation.request.PutRequest;
 import ch.ethz.globis.distindex.operation.request.Request;
 import ch.ethz.globis.distindex.operation.request.UpdateKeyRequest;
@@ -55,6 +58,7 @@ import ch.ethz.globis.distindex.operation.response.MapResponse;
 import ch.ethz.globis.distindex.operation.response.Response;
 import ch.ethz.globis.distindex.operation.response.ResultResponse;
 import ch.ethz.globis.distindex.orchestration.ClusterService;
+import ch.ethz.globis.distindex.util.ContinuationQuery;
 import ch.ethz.globis.distindex.util.MultidimUtil;
 import ch.ethz.globis.phtree.PhDistance;
 import ch.ethz.globis.phtree.PhDistanceF;
@@ -78,17 +82,23 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
     /** Need to make this configurable. */
     public static int THRESHOLD = Integer.MAX_VALUE;
     /** The operation count. */
-    private static int opCount = 0;
+    private static final AtomicInteger opCount = new AtomicInteger();
+    /** The maximum number of entries in a chunk of a streamed range result. */
+    static final int STREAM_CHUNK_SIZE = 4096;
     /** The index context associated with this handler. */
     private IndexContext indexContext;
 
-    private Map<String, PhIterator<byte[]>> iterators;
-    private Map<String, Set<String>> clientIteratorMapping;
+    /** The iterators opened by the clients, between two batch requests. */
+    private IteratorRegistry<PhIterator<byte[]>> iterators;
 
     public PhTreeRequestHandler(IndexContext indexContext) {
+        this(indexContext, new IteratorRegistry<PhIterator<byte[]>>());
+    }
+
+    public PhTreeRequestHandler(IndexContext indexContext, IteratorRegistry<PhIterator<byte[]>> iterators) {
         this.indexContext = indexContext;
-        this.iterators = new HashMap<>();
-        this.clientIteratorMapping = new HashMap<>();
+        this.iterators = iterators;
+        this.iterators.start();
     }
 
     @Override
@@ -100,7 +110,7 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         int dim  = Integer.parseInt(request.getParameter("dim"));
         int depth = Integer.parseInt(request.getParameter("depth"));
         indexContext.initTree(dim, depth);
-        opCount = 0;
+        opCount.set(0);
         return createResponse(request);
     }
 
@@ -137,6 +147,10 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         long[] start = request.getStart();
         long[] end = request.getEnd();
         double distance = request.getDistance();
+        if (request.isStreamed() && distance <= 0) {
+            return new StreamedResponse<>(request.getOpCode(), request.getId(),
+                    new RangeChunks(request, null, Integer.MAX_VALUE, true, true, false));
+        }
 
         IndexEntryList<long[], byte[]> results;
         if (tree().size() == 0) {
@@ -146,7 +160,24 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         } else {
             results = createList(tree().query(start, end));
         }
-        return createResponse(request, results);
+        return createCompactResponse(request.isCompactKeys(), createResponse(request, results));
+    }
+
+    @Override
+    public Response handleCountRange(GetRangeRequest<long[]> request) {
+        if (isVersionOutDate(request)) {
+            return createOutdateVersionResponse(request);
+        }
+
+        long[] start = request.getStart();
+        long[] end = request.getEnd();
+        //the entries received during balancing are not yet part of the range of this host
+        Integer count = indexContext.outsideIncoming(start, end,
+                () -> (tree().size() == 0) ? 0 : indexContext.countRange(start, end));
+        if (count == null) {
+            return createRetryLaterResponse(request);
+        }
+        return new IntegerResponse(request.getOpCode(), request.getId(), OpStatus.SUCCESS, count);
     }
 
     @Override
@@ -172,99 +203,222 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
             return createOutdateVersionResponse(request);
         }
 
+        if (request.isStateless()) {
+            return handleStatelessBatch(request);
+        }
+
         String iteratorId = request.getIteratorId();
         int batchSize= request.getBatchSize();
 
-        PhIterator<byte[]> it;
-        if ("".equals(iteratorId)) {
-            iteratorId = UUID.randomUUID().toString();
-            if (request.isRanged()) {
-                it = tree().query(request.getStart(), request.getEnd());
-            } else {
-                it = tree().queryExtent();
+        // the iterators of the tree read the entries in chunks following the last entry returned, so an
+        // open iterator only holds its current chunk and the updates received between batches are not blocked.
+        // A request for an empty batch only renews the lease of the iterator.
+        boolean opened = "".equals(iteratorId);
+        PhIterator<byte[]> it = null;
+        if (opened) {
+            iteratorId = iterators.open(clientHost);
+            if (iteratorId == null) {
+                return createError(request);
             }
         } else {
-            it = iterators.remove(iteratorId);
+            it = iterators.checkOut(iteratorId);
+            if (it == null) {
+                return createError(request);
+            }
         }
-        if (it == null) {
-            return createError(request);
+
+        // the id is closed unless the iterator is released, since the reaper only frees released iterators
+        boolean released = false;
+        try {
+            if (opened) {
+                if (request.isRanged()) {
+                    it = tree().query(request.getStart(), request.getEnd());
+                } else {
+                    it = tree().queryExtent();
+                }
+            }
+
+            IndexEntryList<long[], byte[]> results = new IndexEntryList<>();
+            while (batchSize > 0 && it.hasNext()) {
+                PhEntry<byte[]> entry = it.nextEntry();
+
+                results.add(entry.getKey(), entry.getValue());
+                batchSize--;
+            }
+
+            String nextIteratorId = "";
+            if (it.hasNext()) {
+                iterators.release(clientHost, iteratorId, it);
+                released = true;
+                nextIteratorId = iteratorId;
+            }
+            return createCompactResponse(request.isCompactKeys(), createResponse(request, results, nextIteratorId));
+        } finally {
+            if (!released) {
+                iterators.close(clientHost, iteratorId);
+            }
         }
+    }
 
-        IndexEntryList<long[], byte[]> results = new IndexEntryList<>();
-        while (batchSize > 0 && it.hasNext()) {
-            PhEntry<byte[]> entry = it.nextEntry();
+    /**
+     * Return the batch following the continuation key of the request. No iterator is kept, so a
+     * non-empty iterator id only signals that the batch is full and more entries may follow.
+     */
+    private Response handleStatelessBatch(GetIteratorBatchRequest<long[]> request) {
+        int batchSize = request.getBatchSize();
+        int dims = tree().getDim();
+        long[] min = request.isRanged() ? request.getStart() : ContinuationQuery.fullMin(dims);
+        long[] max = request.isRanged() ? request.getEnd() : ContinuationQuery.fullMax(dims);
 
+        IndexEntryList<long[], byte[]> results = new IndexEntryList<>();
+        for (PhEntry<byte[]> entry : ContinuationQuery.next(tree(), min, max, request.getContinuationKey(), batchSize)) {
             results.add(entry.getKey(), entry.getValue());
-            batchSize--;
         }
+        String iteratorId = (results.size() < batchSize) ? "" : GetIteratorBatchRequest.STATELESS_ITERATOR;
+        return createCompactResponse(request.isCompactKeys(), createResponse(request, results, iteratorId));
+    }
 
-        if (it.hasNext()) {
-            iterators.put(iteratorId, it);
-            addIteratorForClient(clientHost, iteratorId);
-        } else {
-            iteratorId = "";
-            removeIteratorForClient(clientHost, iteratorId);
+    @Override
+    public Response handlePut(PutRequest<long[], byte[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
+            return createOutdateVersionResponse(request);
         }
+        try {
+            long[] key = request.getKey();
+            byte[] value = request.getValue();
 
-        return createResponse(request, results, iteratorId);
-    }
+            byte[] previous = put(migration, key, value);
+            IndexEntryList<long[], byte[]> results = new IndexEntryList<>();
 
-    private void addIteratorForClient(String clientHost, String iteratorId) {
-        Set<String> iteratorIds = clientIteratorMapping.get(clientHost);
-        if (iteratorIds == null) {
-            iteratorIds = new HashSet<>();
+            if (previous != null) {
+                results.add(key, previous);
+            } else {
+                //only need to check balancing if we actually inserted something
+                checkNeedForSizeUpdate();
+            }
+            return createResponse(request, results);
+        } finally {
+            endWrite(migration);
         }
-        iteratorIds.add(iteratorId);
-        clientIteratorMapping.put(clientHost, iteratorIds);
     }
 
-    private void removeIteratorForClient(String clientHost, String iteratorId) {
-        Set<String> iteratorIds = clientIteratorMapping.get(clientHost);
-        if (iteratorIds != null) {
-            iteratorIds.remove(iteratorId);
+    @Override
+    public Response handleDelete(DeleteRequest<long[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
+            return createOutdateVersionResponse(request);
+        }
+        try {
+            long[] key = request.getKey();
+            byte[] value = remove(migration, key);
+
+            if (value != null) {
+                checkNeedForSizeUpdate();
+            }
+            IndexEntryList<long[], byte[]> results = new IndexEntryList<>(key, value);
+            return createResponse(request, results);
+        } finally {
+            endWrite(migration);
         }
     }
 
+    /**
+     * Insert all of the entries of the request, in order. The response contains one entry for each
+     * entry of the request, holding the previous value associated with the key, or null.
+     */
     @Override
-    public Response handlePut(PutRequest<long[], byte[]> request) {
-        if (isVersionOutDate(request) || currentlyBalancing()) {
+    public Response handlePutAll(PutAllRequest<long[], byte[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
             return createOutdateVersionResponse(request);
         }
+        try {
+            IndexEntryList<long[], byte[]> entries = request.getEntries();
+            IndexEntryList<long[], byte[]> results = new IndexEntryList<>(entries.size());
+            int inserted = 0;
+            for (IndexEntry<long[], byte[]> entry : entries) {
+                byte[] previous = put(migration, entry.getKey(), entry.getValue());
+                if (previous == null) {
+                    inserted++;
+                }
+                results.add(entry.getKey(), previous);
+            }
+            checkNeedForSizeUpdate(inserted);
+            return createResponse(request, results);
+        } finally {
+            endWrite(migration);
+        }
+    }
 
-        long[] key = request.getKey();
-        byte[] value = request.getValue();
+    /**
+     * Retrieve the values of all of the keys of the request. The response contains one entry for
+     * each key of the request, in the same order, with a null value for the keys not in the index.
+     */
+    @Override
+    public Response handleGetAll(GetAllRequest<long[]> request) {
+        if (isVersionOutDate(request)) {
+            return createOutdateVersionResponse(request);
+        }
 
         PhTree<byte[]> phTree = tree();
-        byte[] previous;
-
-        previous = phTree.put(key, value);
-        IndexEntryList<long[], byte[]> results = new IndexEntryList<>();
-
-        if (previous != null) {
-            results.add(key, previous);
-        } else {
-            //only need to check balancing if we actually inserted something
-            checkNeedForSizeUpdate();
+        List<long[]> keys = request.getKeys();
+        IndexEntryList<long[], byte[]> results = new IndexEntryList<>(keys.size());
+        for (long[] key : keys) {
+            results.add(key, phTree.get(key));
         }
         return createResponse(request, results);
     }
 
+    /**
+     * Remove all of the keys of the request. The response contains one entry for each key of the
+     * request, in the same order, holding the removed value, or null.
+     */
     @Override
-    public Response handleDelete(DeleteRequest<long[]> request) {
-        if (isVersionOutDate(request)|| currentlyBalancing()) {
+    public Response handleDeleteAll(DeleteAllRequest<long[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
             return createOutdateVersionResponse(request);
         }
+        try {
+            List<long[]> keys = request.getKeys();
+            IndexEntryList<long[], byte[]> results = new IndexEntryList<>(keys.size());
+            int removed = 0;
+            for (long[] key : keys) {
+                byte[] value = remove(migration, key);
+                if (value != null) {
+                    removed++;
+                }
+                results.add(key, value);
+            }
+            checkNeedForSizeUpdate(removed);
+            return createResponse(request, results);
+        } finally {
+            endWrite(migration);
+        }
+    }
 
-        PhTree<byte[]> phTree = tree();
-        long[] key = request.getKey();
-        byte[] value;
-        value = phTree.remove(key);
-
-        if (value != null) {
-            checkNeedForSizeUpdate();
+    @Override
+    public Response handleDeleteRange(DeleteRangeRequest<long[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
+            return createOutdateVersionResponse(request);
+        }
+        try {
+            long[] start = request.getStart();
+            long[] end = request.getEnd();
+            //the entries received during balancing are not yet part of the range of this host
+            Integer removed = indexContext.outsideIncoming(start, end, () -> (migration == null)
+                    ? indexContext.removeRange(start, end, null)
+                    : migration.removeRange(indexContext, start, end));
+            if (removed == null) {
+                return createRetryLaterResponse(request);
+            }
+            checkNeedForSizeUpdate(removed);
+            return new IntegerResponse(request.getOpCode(), request.getId(), OpStatus.SUCCESS, removed);
+        } finally {
+            endWrite(migration);
         }
-        IndexEntryList<long[], byte[]> results = new IndexEntryList<>(key, value);
-        return createResponse(request, results);
     }
 
     @Override
@@ -304,41 +458,42 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         }
 
         String iteratorId = request.getParameter("iteratorId");
-        iterators.remove(iteratorId);
-        removeIteratorForClient(clientHost, iteratorId);
+        iterators.close(clientHost, iteratorId);
         return new IntegerResponse(request.getOpCode(), request.getId(), OpStatus.SUCCESS, 0);
     }
 
     @Override
     public void cleanup(String clientHost) {
-        Set<String> iteratorIds = clientIteratorMapping.get(clientHost);
-        if (iteratorIds != null) {
-            for (String iteratorId : iteratorIds) {
-                removeIteratorForClient(clientHost, iteratorId);
-            }
-        }
+        iterators.closeAll(clientHost);
     }
 
     @Override
-    public Response handleUpdateKey(UpdateKeyRequest<long[]> request) {
+    public void close() {
+        iterators.close();
+    }
 
-        if (isVersionOutDate(request) || currentlyBalancing()) {
+    @Override
+    public Response handleUpdateKey(UpdateKeyRequest<long[]> request) {
+        MigrationLog migration = indexContext.getMigrationLog();
+        if (isVersionOutDate(request) || !beginWrite(migration)) {
             return createOutdateVersionResponse(request);
         }
-        long[] oldKey = request.getOldKey();
-        long[] newKey = request.getNewKey();
-        PhTree<byte[]> tree = tree();
-        byte[] value;
+        try {
+            long[] oldKey = request.getOldKey();
+            long[] newKey = request.getNewKey();
+            byte[] value = (migration == null) ? tree().update(oldKey, newKey)
+                    : migration.update(tree(), oldKey, newKey);
 
-        value = (byte[]) tree.update(oldKey, newKey);
-
-        IndexEntryList<long[], byte[]> singleResult = new IndexEntryList<>(newKey, value);
-        return createResponse(request, singleResult);
+            IndexEntryList<long[], byte[]> singleResult = new IndexEntryList<>(newKey, value);
+            return createResponse(request, singleResult);
+        } finally {
+            endWrite(migration);
+        }
     }
 
     @Override
     public Response handleGetRangeFilter(GetRangeFilterMapperRequest<long[]> request) {
-        if (isVersionOutDate(request) || currentlyBalancing()) {
+        if (isVersionOutDate(request)) {
             return createOutdateVersionResponse(request);
         }
 
@@ -348,20 +503,29 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         long[] end = request.getEnd();
         PhTree<byte[]> tree = tree();
         int maxResults = request.getMaxResults();
-        List<PhEntry<byte[]>> results;
-
-        if (tree.size() == 0) {
-            results = new ArrayList<>();
-        } else if (mapper == null && predicate == null) {
-            results = tree.queryAll(start, end);
-        } else {
-            results = tree.queryAll(start, end, maxResults, predicate, PhMapper.<byte[]>PVENTRY());
-        }
-
         boolean includeKeys = !(mapper instanceof PhMapperV);
         boolean includeValues = !(mapper instanceof PhMapperK);
+        if (request.isStreamed()) {
+            int limit = (mapper == null && predicate == null) ? Integer.MAX_VALUE : maxResults;
+            return new StreamedResponse<>(request.getOpCode(), request.getId(),
+                    new RangeChunks(request, predicate, limit, includeKeys, includeValues, true));
+        }
+
+        //the entries received during balancing are not yet part of the range of this host
+        List<PhEntry<byte[]>> results = indexContext.outsideIncoming(start, end, () -> {
+            if (tree.size() == 0) {
+                return new ArrayList<PhEntry<byte[]>>();
+            } else if (mapper == null && predicate == null) {
+                return tree.queryAll(start, end);
+            }
+            return tree.queryAll(start, end, maxResults, predicate, PhMapper.<byte[]>PVENTRY());
+        });
+        if (results == null) {
+            return createRetryLaterResponse(request);
+        }
 
-        return createResponse(request, createList(results, includeKeys, includeValues));
+        return createCompactResponse(request.isCompactKeys(),
+                createResponse(request, createList(results, includeKeys, includeValues)));
     }
 
     @Override
@@ -384,21 +548,59 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         MapResponse response = new MapResponse(request.getOpCode(), request.getId(), OpStatus.SUCCESS);
         PhTreeStats stats = (tree().size() == 0) ? new PhTreeStats() : tree().getStats();
         response.addParameter("stats", stats);
+        response.addParameter("openIterators", iterators.getOpenIterators());
+        response.addParameter("openedIterators", iterators.getOpenedIterators());
+        response.addParameter("expiredIterators", iterators.getExpiredIterators());
+        response.addParameter("rejectedIterators", iterators.getRejectedIterators());
         return response;
     }
 
     private void checkNeedForSizeUpdate() {
-        opCount += 1;
-        if (opCount > (THRESHOLD / 2)) {
+        checkNeedForSizeUpdate(1);
+    }
+
+    private void checkNeedForSizeUpdate(int nrOps) {
+        if (nrOps == 0) {
+            return;
+        }
+        //only the thread resetting the counter updates the size
+        int count = opCount.addAndGet(nrOps);
+        if (count > (THRESHOLD / 2) && opCount.compareAndSet(count, 0)) {
             LOG.debug("Updating size for host {}", indexContext.getHostId());
-            opCount = 0;
             ClusterService<long[]> cluster = indexContext.getClusterService();
             cluster.setSize(indexContext.getHostId(), tree().size());
         }
     }
 
-    private boolean currentlyBalancing() {
-        return indexContext.isBalancing();
+    /**
+     * Start a write. While entries are moved to another host, the writes are still accepted and
+     * recorded in the migration log, except during the short final phase of the move.
+     *
+     * @param migration                 The migration log, or null if no entries are moved.
+     * @return                          False if the write has to be refused.
+     */
+    private static boolean beginWrite(MigrationLog migration) {
+        return (migration == null) || migration.beginWrite();
+    }
+
+    private static void endWrite(MigrationLog migration) {
+        if (migration != null) {
+            migration.endWrite();
+        }
+    }
+
+    /**
+     * Insert an entry. While entries are moved, the insertion is applied and recorded as one step.
+     */
+    private byte[] put(MigrationLog migration, long[] key, byte[] value) {
+        return (migration == null) ? tree().put(key, value) : migration.put(tree(), key, value);
+    }
+
+    /**
+     * Remove a key. While entries are moved, the deletion is applied and recorded as one step.
+     */
+    private byte[] remove(MigrationLog migration, long[] key) {
+        return (migration == null) ? tree().remove(key) : migration.remove(tree(), key);
     }
 
     private boolean isVersionOutDate(Request request) {
@@ -408,10 +610,24 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
         return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.OUTDATED_VERSION);
     }
 
+    private Response createRetryLaterResponse(Request request) {
+        return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.RETRY_LATER);
+    }
+
     private Response createError(BaseRequest request) {
         return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.FAILURE);
     }
 
+    /**
+     * Mark the keys of a result response to be sent in the compact format, if the client asked for it.
+     */
+    private Response createCompactResponse(boolean compactKeys, Response response) {
+        if (response instanceof ResultResponse) {
+            ((ResultResponse<?, ?>) response).setCompactKeys(compactKeys);
+        }
+        return response;
+    }
+
     private Response createResponse(BaseRequest request) {
         return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.SUCCESS);
     }
@@ -475,4 +691,75 @@ public class PhTreeRequestHandler implements RequestHandler<long[], byte[]> {
     public PhTree<byte[]> tree() {
         return indexContext.getTree();
     }
+
+    /**
+     * Computes the chunks of a streamed range query. Every chunk is read from the tree only when it is
+     * about to be written, continuing after the last key of the previous chunk, so the chunks do not
+     * form a snapshot: updates done while the result is streamed may or may not be visible.
+     *
+     * If the chunks should not include the entries received during balancing, and a chunk overlaps
+     * them, the stream ends with a chunk asking the client to retry later.
+     */
+    private class RangeChunks implements Iterator<ResultResponse<long[], byte[]>> {
+
+        private final GetRangeRequest<long[]> request;
+        private final PhFilter filter;
+        private final boolean includeKeys;
+        private final boolean includeValues;
+        private final boolean outsideIncoming;
+
+        /** The number of entries that can still be returned. */
+        private int remaining;
+
+        /** The last key returned, or null if no chunk was returned yet. */
+        private long[] lastKey = null;
+
+        private boolean done = false;
+
+        RangeChunks(GetRangeRequest<long[]> request, PhFilter filter, int maxResults,
+                    boolean includeKeys, boolean includeValues, boolean outsideIncoming) {
+            this.request = request;
+            this.filter = filter;
+            this.remaining = maxResults;
+            this.includeKeys = includeKeys;
+            this.includeValues = includeValues;
+            this.outsideIncoming = outsideIncoming;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !done;
+        }
+
+        @Override
+        public ResultResponse<long[], byte[]> next() {
+            if (done) {
+                throw new NoSuchElementException();
+            }
+            int chunkSize = Math.min(STREAM_CHUNK_SIZE, remaining);
+            List<PhEntry<byte[]>> entries = outsideIncoming
+                    ? indexContext.outsideIncoming(request.getStart(), request.getEnd(), () -> read(chunkSize))
+                    : read(chunkSize);
+            if (entries == null) {
+                done = true;
+                return new ResultResponse<>(request.getOpCode(), request.getId(), OpStatus.RETRY_LATER);
+            }
+            remaining -= entries.size();
+            done = (entries.size() < chunkSize) || (remaining == 0);
+            if (!entries.isEmpty()) {
+                lastKey = entries.get(entries.size() - 1).getKey();
+            }
+
+            byte status = done ? OpStatus.SUCCESS : OpStatus.PARTIAL;
+            ResultResponse<long[], byte[]> chunk = new ResultResponse<>(request.getOpCode(), request.getId(), status,
+                    createList(entries, includeKeys, includeValues));
+            chunk.setCompactKeys(request.isCompactKeys());
+            return chunk;
+        }
+
+        private List<PhEntry<byte[]>> read(int chunkSize) {
+            return (tree().size() == 0) ? new ArrayList<PhEntry<byte[]>>()
+                    : ContinuationQuery.next(tree(), request.getStart(), request.getEnd(), lastKey, chunkSize, filter);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,56 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware;
+
+import java.util.Iterator;
+
+import ch.ethz.globis.distindex.operation.OpStatus;
+import ch.ethz.globis.distindex.operation.response.BaseResponse;
+import ch.ethz.globis.distindex.operation.response.ResponseCode;
+import ch.ethz.globis.distindex.operation.response.ResultResponse;
+
+/**
+ * A result response sent as a sequence of chunks, each encoded in its own frame with the request id of
+ * the response. Every chunk but the last one has the status {@link OpStatus#PARTIAL}.
+ *
+ * The chunks are only computed when they are about to be written, so the entries of a large result
+ * are never all held in memory.
+ *
+ * @param <K>                       The type of the key.
+ * @param <V>                       The type of the value.
+ */
+class StreamedResponse<K, V> extends BaseResponse {
+
+    private final Iterator<ResultResponse<K, V>> chunks;
+
+    StreamedResponse(byte opCode, int requestId, Iterator<ResultResponse<K, V>> chunks) {
+        super(ResponseCode.RESULT, opCode, requestId, OpStatus.SUCCESS);
+        this.chunks = chunks;
+    }
+
+    Iterator<ResultResponse<K, V>> getChunks() {
+        return chunks;
+    }
+}
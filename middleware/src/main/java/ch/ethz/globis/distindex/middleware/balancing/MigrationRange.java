@@ -0,0 +1,195 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware.balancing;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.distindex.concurrency.PhTreeSharded;
+import ch.ethz.globis.distindex.util.ContinuationQuery;
+import ch.ethz.globis.distindex.util.MultidimUtil;
+import ch.ethz.globis.distindex.util.ZRangeFilter;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+
+/**
+ * A range of consecutive keys in z-order, moved from the tree of a host to another host.
+ *
+ * The range only stores its bounds. Its entries are read from the tree in chunks, each chunk being
+ * queried after the last key of the previous one, so the entries of the range are never held in
+ * memory all at once.
+ */
+class MigrationRange {
+
+    /** The key preceding the range, or null if the range starts with the first key of the tree. */
+    private final long[] after;
+
+    /** The last key of the range, or null if the range ends with the last key of the tree. */
+    private final long[] last;
+
+    private final boolean empty;
+
+    private MigrationRange(long[] after, long[] last, boolean empty) {
+        this.after = after;
+        this.last = last;
+        this.empty = empty;
+    }
+
+    /**
+     * @return                              The range containing all of the keys.
+     */
+    static MigrationRange all() {
+        return new MigrationRange(null, null, false);
+    }
+
+    /**
+     * Plan the move of the first or the last entries of the tree.
+     *
+     * The bound of the range is the key with the rank of the split. It is found by walking the keys
+     * of the tree in z-order, one chunk at a time, so only a chunk of entries is held in memory. The
+     * walk reads up to rank entries, or only those of a single shard if the tree is sharded, so the
+     * split should be planned before the writes are paused.
+     *
+     * @param tree                          The tree.
+     * @param moveToRight                   Whether the last entries are moved, rather than the first ones.
+     * @param entriesToMove                 The number of entries to move.
+     * @param chunkSize                     The number of entries read from the tree at once.
+     * @return                              The range of the moved entries.
+     */
+    static MigrationRange split(PhTree<byte[]> tree, boolean moveToRight, int entriesToMove, int chunkSize) {
+        if (entriesToMove <= 0) {
+            return new MigrationRange(null, null, true);
+        }
+        if (moveToRight) {
+            long[] lastStaying = keyAtRank(tree, tree.size() - entriesToMove - 1, chunkSize);
+            return new MigrationRange(lastStaying, null, false);
+        }
+        long[] lastMoved = keyAtRank(tree, entriesToMove - 1, chunkSize);
+        return new MigrationRange(null, lastMoved, lastMoved == null);
+    }
+
+    /**
+     * @return                              The range of the keys preceding this range.
+     */
+    MigrationRange preceding() {
+        if (empty || after == null) {
+            return new MigrationRange(null, null, true);
+        }
+        return new MigrationRange(null, after, false);
+    }
+
+    long[] getAfter() {
+        return after;
+    }
+
+    long[] getLast() {
+        return last;
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * @return                              The filter accepting the keys of the range.
+     */
+    ZRangeFilter filter() {
+        return new ZRangeFilter(after, last);
+    }
+
+    /**
+     * Iterate over the entries of the range, in chunks of at most chunkSize entries.
+     *
+     * A chunk is only read from the tree when the previous one was consumed, so the entries of the
+     * previous chunk can be removed from the tree before the next one is read.
+     *
+     * @param tree                          The tree.
+     * @param chunkSize                     The maximum number of entries of a chunk.
+     * @return                              The chunks, in z-order.
+     */
+    Iterator<IndexEntryList<long[], byte[]>> chunks(final PhTree<byte[]> tree, final int chunkSize) {
+        return new Iterator<IndexEntryList<long[], byte[]>>() {
+
+            private long[] previous = after;
+            private IndexEntryList<long[], byte[]> next = null;
+            private boolean done = empty;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !done) {
+                    next = read();
+                }
+                return next != null;
+            }
+
+            @Override
+            public IndexEntryList<long[], byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                IndexEntryList<long[], byte[]> chunk = next;
+                next = null;
+                return chunk;
+            }
+
+            private IndexEntryList<long[], byte[]> read() {
+                int dims = tree.getDim();
+                List<PhEntry<byte[]>> results = ContinuationQuery.next(tree,
+                        ContinuationQuery.fullMin(dims), ContinuationQuery.fullMax(dims), previous, chunkSize);
+                done = results.size() < chunkSize;
+                IndexEntryList<long[], byte[]> chunk = new IndexEntryList<>(results.size());
+                for (PhEntry<byte[]> entry : results) {
+                    if (last != null && MultidimUtil.zCompare(entry.getKey(), last) > 0) {
+                        done = true;
+                        break;
+                    }
+                    chunk.add(entry.getKey(), entry.getValue());
+                }
+                if (chunk.isEmpty()) {
+                    done = true;
+                    return null;
+                }
+                previous = chunk.get(chunk.size() - 1).getKey();
+                return chunk;
+            }
+        };
+    }
+
+    /**
+     * Find the key with the given rank in z-order. A sharded tree skips the shards preceding the key by
+     * their sizes, otherwise the keys preceding the key are read from the start of the tree.
+     *
+     * @return                              The key, the last key of the tree if the tree holds fewer
+     *                                      keys, or null if the rank is negative or the tree is empty.
+     */
+    private static long[] keyAtRank(PhTree<byte[]> tree, int rank, int chunkSize) {
+        if (tree instanceof PhTreeSharded) {
+            return ((PhTreeSharded<byte[]>) tree).keyAtRank(rank, chunkSize);
+        }
+        return ContinuationQuery.keyAtRank(tree, rank, chunkSize);
+    }
+}
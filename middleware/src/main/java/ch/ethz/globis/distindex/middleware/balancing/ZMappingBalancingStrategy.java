@@ -24,6 +24,14 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.distindex.middleware.balancing;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,26 +43,26 @@ import ch.ethz.globis.disindex.codec.field.MultiLongEncoderDecoder;
 import ch.ethz.globis.disindex.codec.field.SerializingEncoderDecoder;
 import ch.ethz.globis.disindex.codec.io.ClientRequestDispatcher;
 import ch.ethz.globis.disindex.codec.io.RequestDispatcher;
-import ch.ethz.globis.disindex.codec.io.TCPClient;
+import ch.ethz.globis.disindex.codec.io.NettyTCPClient;
 import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.mapping.KeyMapping;
 import ch.ethz.globis.distindex.mapping.zorder.ZMapping;
 import ch.ethz.globis.distindex.middleware.IndexContext;
+import ch.ethz.globis.distindex.middleware.MigrationLog;
 import ch.ethz.globis.distindex.operation.OpStatus;
 import ch.ethz.globis.distindex.operation.request.CommitBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteAllBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.InitBalancingRequest;
-import ch.ethz.globis.distindex.operation.request.PutBalancingRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllBalancingRequest;
 import ch.ethz.globis.distindex.operation.request.Requests;
 import ch.ethz.globis.distindex.operation.request.RollbackBalancingRequest;
 import ch.ethz.globis.distindex.operation.response.BaseResponse;
 import ch.ethz.globis.distindex.operation.response.Response;
 import ch.ethz.globis.distindex.orchestration.ClusterService;
 import ch.ethz.globis.distindex.orchestration.ZKClusterService;
-import ch.ethz.globis.distindex.util.MultidimUtil;
-import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.distindex.util.ContinuationQuery;
 import ch.ethz.globis.phtree.PhTree;
-import ch.ethz.globis.phtree.PhTree.PhIterator;
 
 public class ZMappingBalancingStrategy implements BalancingStrategy {
 
@@ -64,8 +72,17 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
     /** The in-memory index context */
     private IndexContext indexContext;
 
+    /** The maximum number of entries sent in a single balancing request. */
+    static final int MIGRATION_CHUNK_SIZE = 4096;
+
+    /** The maximum number of balancing requests sent to the receiver without waiting for the reply. */
+    static final int MIGRATION_WINDOW = 4;
+
+    /** The maximum number of rounds in which the writes done during a move are replayed before pausing them. */
+    static final int MAX_REPLAY_ROUNDS = 8;
+
     /** The request dispatcher */
-    private RequestDispatcher requestDispatcher;
+    private RequestDispatcher<long[], byte[]> requestDispatcher;
 
     private Requests<long[], byte[]> requests;
 
@@ -74,7 +91,7 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         RequestEncoder requestEncoder = new ByteRequestEncoder<>(new MultiLongEncoderDecoder(), new SerializingEncoderDecoder<>());
         ResponseDecoder<long[], byte[]> responseDecoder = new ByteResponseDecoder<>(new MultiLongEncoderDecoder(), new SerializingEncoderDecoder<byte[]>());
         this.requests = new Requests<>(indexContext.getClusterService());
-        this.requestDispatcher = new ClientRequestDispatcher<>(new TCPClient(), requestEncoder, responseDecoder);
+        this.requestDispatcher = new ClientRequestDispatcher<>(new NettyTCPClient(1), requestEncoder, responseDecoder);
     }
 
     @Override
@@ -153,11 +170,17 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         if (!canBalance) {
             throw new UnsupportedOperationException("Cannot balance to the right neighbour.");
         }
-        IndexEntryList<long[], byte[]> entries = getAllEntries();
-        sendEntries(entries, freeHostId);
-        int newVersion = updateMappingRemoveToFree(currentHostId, freeHostId);
-        commitBalancing(currentHostId, freeHostId, newVersion);
-        removeEntries(entries);
+        MigrationLog migration = startMigration();
+        try {
+            MigrationRange range = MigrationRange.all();
+            sendRange(range, freeHostId);
+            replayWrites(migration, freeHostId);
+            int newVersion = updateMappingRemoveToFree(currentHostId, freeHostId);
+            commitBalancing(currentHostId, freeHostId, newVersion);
+            removeRange(range);
+        } finally {
+            indexContext.setMigrationLog(null);
+        }
     }
 
     private int updateMappingRemoveToFree(String currentHostId, String freeHostId) {
@@ -172,11 +195,17 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         if (!canBalance) {
             throw new UnsupportedOperationException("Cannot balance to the left neighbour.");
         }
-        IndexEntryList<long[], byte[]> entries = getAllEntries();
-        sendEntries(entries, leftHostId);
-        int newVersion = updateMappingRemoveToLeft(currentHostId, leftHostId);
-        commitBalancing(currentHostId, leftHostId, newVersion);
-        removeEntries(entries);
+        MigrationLog migration = startMigration();
+        try {
+            MigrationRange range = MigrationRange.all();
+            sendRange(range, leftHostId);
+            replayWrites(migration, leftHostId);
+            int newVersion = updateMappingRemoveToLeft(currentHostId, leftHostId);
+            commitBalancing(currentHostId, leftHostId, newVersion);
+            removeRange(range);
+        } finally {
+            indexContext.setMigrationLog(null);
+        }
     }
 
     private int updateMappingRemoveToLeft(String currentHostId, String leftHostId) {
@@ -191,11 +220,17 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         if (!canBalance) {
             throw new UnsupportedOperationException("Cannot balance to the right neighbour.");
         }
-        IndexEntryList<long[], byte[]> entries = getAllEntries();
-        sendEntries(entries, rightHostId);
-        int newVersion = updateMappingRemoveToRight(currentHostId);
-        commitBalancing(currentHostId, rightHostId, newVersion);
-        removeEntries(entries);
+        MigrationLog migration = startMigration();
+        try {
+            MigrationRange range = MigrationRange.all();
+            sendRange(range, rightHostId);
+            replayWrites(migration, rightHostId);
+            int newVersion = updateMappingRemoveToRight(currentHostId);
+            commitBalancing(currentHostId, rightHostId, newVersion);
+            removeRange(range);
+        } finally {
+            indexContext.setMigrationLog(null);
+        }
     }
 
     private int updateMappingRemoveToRight(String currentHostId) {
@@ -217,28 +252,47 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
             //ToDo should at least try to balance to the right one or the left one
             throw new UnsupportedOperationException("Cannot balance to the left and right neighbours.");
         }
-        IndexEntryList<long[], byte[]> entriesRight = getEntriesForSplitting(true);
-        sendEntries(entriesRight, rightHostId);
-        removeEntries(entriesRight);
-        IndexEntryList<long[], byte[]> entries = getAllEntries();
-        sendEntries(entries, leftHostId);
-        int newVersion = updateMapping(currentHostId, leftHostId, entries);
-        commitBalancing(currentHostId, rightHostId, newVersion);
-        commitBalancing(currentHostId, leftHostId, newVersion);
-        removeEntries(entries);
+        //the split is planned while the writes are still accepted, the writes done meanwhile are moved
+        //with the range holding their keys
+        MigrationRange rightRange = MigrationRange.split(indexContext.getTree(), true, nrEntriesRight, MIGRATION_CHUNK_SIZE);
+        MigrationRange leftRange = rightRange.preceding();
+        //the writes are only recorded for a single range, so they are refused for the whole move
+        MigrationLog migration = startMigration();
+        migration.pause();
+        try {
+            sendRange(rightRange, rightHostId);
+            sendRange(leftRange, leftHostId);
+            int newVersion = updateMapping(currentHostId, leftHostId, leftRange.getLast());
+            commitBalancing(currentHostId, rightHostId, newVersion);
+            commitBalancing(currentHostId, leftHostId, newVersion);
+            removeRange(rightRange);
+            removeRange(leftRange);
+        } finally {
+            indexContext.setMigrationLog(null);
+        }
     }
 
     /**
      * Perform the balancing with currentHostId as the id of the initiator host and
      * receiverHostId as the id of the receiver host.
      *
+     * Half of the entries are moved, the first half if the receiver is the left neighbour and the
+     * second half otherwise. The writes are accepted while the entries are moved, the writes done
+     * on the moving range being replayed on the receiver before the mapping is updated.
      */
     private void doBalancing(BalancingInfo info) {
         LOG.info("Host {} attempts balancing to host {} with mapping version " +
                         getClusterService().getMapping().getVersion(),
                         indexContext.getHostId(), info.getReceiverHostId());
-        IndexEntryList<long[], byte[]> entries = getEntriesForSplitting(info.isMoveToRight());
-        moveEntries(entries, info);
+        PhTree<byte[]> tree = indexContext.getTree();
+        int entriesToMove = tree.size() / 2;
+        MigrationRange range = MigrationRange.split(tree, info.isMoveToRight(), entriesToMove, MIGRATION_CHUNK_SIZE);
+        MigrationLog migration = startMigration();
+        try {
+            moveEntries(range, entriesToMove, info, migration);
+        } finally {
+            indexContext.setMigrationLog(null);
+        }
     }
 
     //TODO remove? TZ
@@ -248,22 +302,91 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
 //    }
 
     /**
-     * Move the entries received as an argument from the current host to the host with the id
-     * stored in the variable receiverHostId.
+     * Move the entries of the range received as an argument from the current host to the host with
+     * the id stored in the variable receiverHostId.
      *
-     * @param entries
+     * @param range                             The range of the moved entries.
+     * @param entriesToMove                     The number of entries in the range.
      * @param info                              The balancing information linked to this host.
+     * @param migration                         The log of the writes done since the migration started.
      */
-    private void moveEntries(IndexEntryList<long[], byte[]> entries, BalancingInfo info) {
+    private void moveEntries(MigrationRange range, int entriesToMove, BalancingInfo info, MigrationLog migration) {
         String receiverHostId = info.getReceiverHostId();
 
-        boolean canBalance = initBalancing(entries.size(), receiverHostId);
+        boolean canBalance = initBalancing(entriesToMove, receiverHostId);
         if (canBalance) {
-            sendEntries(entries, receiverHostId);
-            updateMapping(info, entries);
+            migration.setRange(range.getAfter(), range.getLast());
+            int entriesMoved = sendRange(range, receiverHostId);
+            if (entriesMoved == 0) {
+                //the mapping is not changed, so the writes done on the range stay on this host
+                migration.pause();
+            } else {
+                replayWrites(migration, receiverHostId);
+            }
+            updateMapping(info, range, entriesMoved);
 
             commitBalancing(info);
-            removeEntries(entries);
+            if (entriesMoved != 0) {
+                removeRange(range);
+            }
+        }
+    }
+
+    private MigrationLog startMigration() {
+        MigrationLog migration = new MigrationLog();
+        indexContext.setMigrationLog(migration);
+        return migration;
+    }
+
+    /**
+     * Send to the receiver the writes done on the moving range since its entries were read.
+     *
+     * The writes are replayed in rounds while they are still accepted, until few enough writes are
+     * left. The writes are then paused for the last round, so that the receiver holds all of the
+     * entries of the range once this method returns. They stay paused until the migration log is
+     * discarded, once the mapping was updated.
+     *
+     * @param migration                         The log of the writes done since the entries were read.
+     * @param receiverHostId                    The receiving host.
+     */
+    private void replayWrites(MigrationLog migration, String receiverHostId) {
+        IndexEntryList<long[], byte[]> writes = migration.drain();
+        for (int round = 0; round < MAX_REPLAY_ROUNDS && writes.size() > MIGRATION_CHUNK_SIZE; round++) {
+            sendWrites(writes, receiverHostId);
+            writes = migration.drain();
+        }
+        migration.pause();
+        writes.addAll(migration.drain());
+        sendWrites(writes, receiverHostId);
+    }
+
+    /**
+     * Replay the writes in order: the consecutive insertions are sent as chunks of entries and the
+     * consecutive deletions as lists of keys.
+     */
+    private void sendWrites(IndexEntryList<long[], byte[]> writes, String receiverHostId) {
+        IndexEntryList<long[], byte[]> puts = new IndexEntryList<>();
+        List<long[]> deletes = new ArrayList<>();
+        for (IndexEntry<long[], byte[]> write : writes) {
+            if (write.getValue() == null) {
+                if (!puts.isEmpty()) {
+                    sendEntries(puts, receiverHostId);
+                    puts = new IndexEntryList<>();
+                }
+                deletes.add(write.getKey());
+            } else {
+                if (!deletes.isEmpty()) {
+                    deleteEntries(deletes, receiverHostId);
+                    deletes = new ArrayList<>();
+                }
+                puts.add(write.getKey(), write.getValue());
+            }
+        }
+        if (!puts.isEmpty()) {
+            sendEntries(puts, receiverHostId);
+        }
+        if (!deletes.isEmpty()) {
+            deleteEntries(deletes, receiverHostId);
         }
     }
 
@@ -318,8 +441,7 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
 //        }
 //    }
 
-    private int updateMapping(String currentHostId, String leftHostId, IndexEntryList<long[], byte[]> entries) {
-        long[] newKeyForLeft = entries.get(entries.size() - 1).getKey();
+    private int updateMapping(String currentHostId, String leftHostId, long[] newKeyForLeft) {
         ZKClusterService cluster = getClusterService();
         cluster.setIntervalEndAndDelete(leftHostId, newKeyForLeft, currentHostId);
         return cluster.getMapping().getVersion();
@@ -330,8 +452,7 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
      * was moved to the receiver host.
      *
      */
-    private void updateMapping(BalancingInfo info, IndexEntryList<long[], byte[]> entries) {
-        int entriesMoved = entries.size();
+    private void updateMapping(BalancingInfo info, MigrationRange range, int entriesMoved) {
         String currentHostId = info.getInitiatorHostId();
         String receiverHostId = info.getReceiverHostId();
         String freeTargetHost = info.isReceiverFreeHost() ? receiverHostId : null;
@@ -344,18 +465,17 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         cluster.setSize(currentHostId, indexContext.getTree().size());
 
         ZMapping zmap = (ZMapping) mapping;
-        int depth = indexContext.getTree().getBitDepth();
         long[] key;
         String host;
         if (entriesMoved != 0) {
             //ToDo need to perform the changes to the mapping atomically, i.e replacing a host, etc need to make transactions for that
             if (movedToRight) {
                 LOG.info("{} is balancing {} entries to the right interval.", currentHostId, entriesMoved);
-                key = MultidimUtil.previous(entries.get(0).getKey(), depth);
+                key = range.getAfter();
                 host = currentHostId;
             } else {
                 LOG.info("{} is balancing {} entries to the left interval.", currentHostId, entriesMoved);
-                key = entries.get(entriesMoved - 1).getKey();
+                key = range.getLast();
                 host = receiverHostId;
             }
             newVersion = cluster.setIntervalEnd(host, key, freeTargetHost);
@@ -370,35 +490,114 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
     }
 
     /**
-     * Remove the re-balanced entries to the new node.
+     * Remove the entries of a range moved to another host, in chunks following each other in z-order.
      *
-     * @param entries
+     * @param range
      */
-    private void removeEntries(IndexEntryList<long[], byte[]> entries) {
-        PhTree<byte[]> tree = indexContext.getTree();
-
-        for (IndexEntry<long[], byte[]> entry : entries) {
-            tree.remove(entry.getKey());
+    private void removeRange(MigrationRange range) {
+        if (range.isEmpty()) {
+            return;
         }
+        int dims = indexContext.getTree().getDim();
+        indexContext.removeRange(ContinuationQuery.fullMin(dims), ContinuationQuery.fullMax(dims), range.filter());
     }
 
+    /**
+     * Send the entries of the range received as an argument to the host, reading them from the tree
+     * one chunk at a time.
+     *
+     * @param range
+     * @param receiverHostId
+     * @return                                  The number of entries sent.
+     */
+    private int sendRange(MigrationRange range, String receiverHostId) {
+        return sendChunks(range.chunks(indexContext.getTree(), MIGRATION_CHUNK_SIZE), receiverHostId);
+    }
 
     /**
-     * Send the entries received as an argument to the host;
+     * Send the entries received as an argument to the host, in chunks of at most
+     * {@link #MIGRATION_CHUNK_SIZE} entries.
+     *
      * @param entries
      * @param receiverHostId
      */
     private void sendEntries(IndexEntryList<long[], byte[]> entries, String receiverHostId) {
+        List<IndexEntryList<long[], byte[]>> chunks = new ArrayList<>();
+        for (int from = 0; from < entries.size(); from += MIGRATION_CHUNK_SIZE) {
+            int to = Math.min(from + MIGRATION_CHUNK_SIZE, entries.size());
+            IndexEntryList<long[], byte[]> chunk = new IndexEntryList<>(to - from);
+            chunk.addAll(entries.subList(from, to));
+            chunks.add(chunk);
+        }
+        sendChunks(chunks.iterator(), receiverHostId);
+    }
+
+    /**
+     * Send the chunks of entries received as an argument to the host.
+     *
+     * Up to {@link #MIGRATION_WINDOW} chunks are in flight at the same time, so the receiver applies a
+     * chunk while the next ones are being transferred. The receiver handles the chunks in the order
+     * they were sent, as they share the same connection.
+     *
+     * @param chunks
+     * @param receiverHostId
+     * @return                                  The number of entries sent.
+     */
+    private int sendChunks(Iterator<IndexEntryList<long[], byte[]>> chunks, String receiverHostId) {
+        Deque<CompletableFuture<BaseResponse>> inFlight = new ArrayDeque<>();
+        int entriesSent = 0;
+        try {
+            while (chunks.hasNext()) {
+                if (inFlight.size() == MIGRATION_WINDOW) {
+                    checkAccepted(inFlight.poll(), receiverHostId);
+                }
+                IndexEntryList<long[], byte[]> chunk = chunks.next();
+                PutAllBalancingRequest<long[]> request = requests.newPutAllBalancing(chunk);
+                inFlight.add(requestDispatcher.sendAsync(receiverHostId, request, BaseResponse.class));
+                entriesSent += chunk.size();
+            }
+            while (!inFlight.isEmpty()) {
+                checkAccepted(inFlight.poll(), receiverHostId);
+            }
+            return entriesSent;
+        } finally {
+            //let the chunks still in flight complete before the balancing is rolled back
+            for (CompletableFuture<BaseResponse> pending : inFlight) {
+                try {
+                    pending.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (ExecutionException e) {
+                    LOG.debug("Balancing chunk failed after an earlier failure.", e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove from the receiver the keys deleted on this host after their entries were sent.
+     */
+    private void deleteEntries(List<long[]> keys, String receiverHostId) {
+        DeleteAllBalancingRequest<long[]> request = requests.newDeleteAllBalancing(keys);
+        checkAccepted(requestDispatcher.sendAsync(receiverHostId, request, BaseResponse.class), receiverHostId);
+    }
+
+    private void checkAccepted(CompletableFuture<BaseResponse> future, String receiverHostId) {
         String currentHostId = indexContext.getHostId();
-        PutBalancingRequest<long[]> request;
         Response response;
-        for (IndexEntry<long[], byte[]> entry : entries) {
-            request = requests.newPutBalancing(entry.getKey(), entry.getValue());
-            response = requestDispatcher.send(receiverHostId, request, BaseResponse.class);
-            if (response.getStatus() != OpStatus.SUCCESS) {
-                String message = String.format("[%s] Receiving host %s did not accept entry during balancing", currentHostId, receiverHostId);
-                throw new RuntimeException(message);
-            }
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while sending entries during balancing", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(String.format("[%s] Failed to send entries to host %s during balancing",
+                    currentHostId, receiverHostId), e.getCause());
+        }
+        if (response == null || response.getStatus() != OpStatus.SUCCESS) {
+            String message = String.format("[%s] Receiving host %s did not accept entry during balancing", currentHostId, receiverHostId);
+            throw new RuntimeException(message);
         }
     }
 
@@ -457,58 +656,6 @@ public class ZMappingBalancingStrategy implements BalancingStrategy {
         }
     }
 
-    /**
-     * Get a list of entries that will be sent to the other host to perform the re-balancing.
-     * @return
-     */
-    private IndexEntryList<long[], byte[]> getEntriesForSplitting(boolean movedToRight) {
-        PhTree<byte[]> phTree = indexContext.getTree();
-        int treeSize = phTree.size();
-        int entriesToMove = treeSize / 2;
-
-        IndexEntryList<long[], byte[]> entries = new IndexEntryList<>();
-
-        PhIterator<byte[]> it = phTree.queryExtent();
-        if (!movedToRight) {
-            for (int i = 0; i < entriesToMove; i++) {
-                PhEntry<byte[]> e = it.nextEntry();
-                entries.add(e.getKey(), e.getValue());
-            }
-            while (it.hasNext()) {
-                it.next();
-            }
-        } else {
-            for (int i = 0; i < treeSize - entriesToMove; i++) {
-                if (it.hasNext()) {
-                    it.next();
-                }
-            }
-            while (it.hasNext()) {
-                PhEntry<byte[]> e = it.nextEntry();
-                entries.add(e.getKey(), e.getValue());
-            }
-        }
-
-        return entries;
-    }
-
-    private IndexEntryList<long[], byte[]> getAllEntries() {
-        PhTree<byte[]> phTree = indexContext.getTree();
-
-        IndexEntryList<long[], byte[]> entries = new IndexEntryList<>();
-
-        PhIterator<byte[]> it = phTree.queryExtent();
-        while (it.hasNext()) {
-            PhEntry<byte[]> e = it.nextEntry();
-            entries.add(e.getKey(), e.getValue());
-        }
-
-        return entries;
-    }
-
-    /**
-     * @return                                  The current key-host mapping.
-     */
     private ZMapping getMapping() {
         return (ZMapping) getClusterService().getMapping();
     }
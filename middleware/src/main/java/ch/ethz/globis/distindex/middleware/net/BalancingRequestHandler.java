@@ -33,6 +33,10 @@ public interface BalancingRequestHandler<K> {
 
     public Response handlePut(PutBalancingRequest<K> request);
 
+    public Response handlePutAll(PutAllBalancingRequest<K> request);
+
+    public Response handleDeleteAll(DeleteAllBalancingRequest<K> request);
+
     public Response handleCommit(CommitBalancingRequest request);
 
     public Response handleRollback(RollbackBalancingRequest request);
@@ -37,11 +37,18 @@ import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Distributed Index Server implemented using Netty.io
  */
@@ -49,6 +56,9 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
 
     private static final Logger LOG = LoggerFactory.getLogger(IndexMiddleware.class);
 
+    /** The number of requests waiting for a request thread, above which the requests run on the thread queueing them. */
+    public static final int REQUEST_QUEUE_CAPACITY = 1024;
+
     /** Wether the host joins as free or not. */
     private boolean joinedAsFree = false;
 
@@ -70,6 +80,15 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
     /** The thread pool dealing with handling the data received */
     private EventLoopGroup workerGroup;
 
+    /** The number of threads executing the requests, 0 if the requests are executed on the worker threads. */
+    private int nrRequestThreads;
+
+    /** The thread pool executing the requests, if any. */
+    private ExecutorService requestExecutor;
+
+    /** The maximum size of a request message, in bytes. */
+    private int maxFrameLength = MiddlewareMessageDecoder.DEFAULT_MAX_FRAME_LENGTH;
+
     /** The cluster service used to notify */
     private ClusterService<K> clusterService;
 
@@ -81,12 +100,25 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
     		ClusterService<K> clusterService, 
     		IOHandler<K, V> handler,
     		BalancingDaemon balancingDaemon) {
+        this(indexContext, clusterService, handler, balancingDaemon, 0);
+    }
+
+    /**
+     * @param nrRequestThreads              The number of threads executing the requests. If 0, the requests
+     *                                      are executed by the threads receiving them.
+     */
+    public IndexMiddleware(IndexContext indexContext,
+            ClusterService<K> clusterService,
+            IOHandler<K, V> handler,
+            BalancingDaemon balancingDaemon,
+            int nrRequestThreads) {
         this.clusterService = clusterService;
         this.indexContext = indexContext;
         this.port = indexContext.getPort();
         this.host = indexContext.getHost();
         this.handler = handler;
         this.balancingDaemon = balancingDaemon;
+        this.nrRequestThreads = nrRequestThreads;
     }
 
     @Override
@@ -94,6 +126,13 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
 
         bossGroup = new NioEventLoopGroup();
         workerGroup = new NioEventLoopGroup();
+        if (nrRequestThreads > 0) {
+            //the channels stop reading while too many of their requests are pending, the queue is bounded
+            //as well in case many channels fill it at the same time
+            requestExecutor = new ThreadPoolExecutor(nrRequestThreads, nrRequestThreads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(REQUEST_QUEUE_CAPACITY),
+                    new DefaultThreadFactory("request-" + port, true), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
 
         balancingDaemon.run();
         try {
@@ -137,6 +176,7 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
         clusterService.disconnect();
         balancingDaemon.close();
         closeEventLoops();
+        handler.close();
         LOG.info("Shutting down middleware {} {} ", host, port);
     }
 
@@ -185,8 +225,9 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new MiddlewareMessageDecoder(), 
-                        		new MiddlewareChannelHandler<K, V>(handler) {});
+                        ch.pipeline().addLast(new FlushConsolidationHandler(),
+                                new MiddlewareMessageDecoder(maxFrameLength),
+                        		new MiddlewareChannelHandler<K, V>(handler, requestExecutor) {});
                     }
                 });
         return b;
@@ -195,6 +236,9 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
     private void closeEventLoops() {
         bossGroup.shutdownGracefully();
         workerGroup.shutdownGracefully();
+        if (requestExecutor != null) {
+            requestExecutor.shutdown();
+        }
     }
 
     private String getHostId() {
@@ -209,6 +253,20 @@ public class IndexMiddleware<K, V>  implements Middleware, Runnable {
         return port;
     }
 
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    /**
+     * Set the maximum size of a request message. A client sending a larger message is disconnected.
+     * Needs to be set before the middleware is started.
+     *
+     * @param maxFrameLength                The maximum size of a request message, in bytes.
+     */
+    public void setMaxFrameLength(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
     public boolean isJoinedAsFree() {
         return joinedAsFree;
     }
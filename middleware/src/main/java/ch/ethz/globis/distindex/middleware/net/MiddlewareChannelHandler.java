@@ -25,18 +25,46 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package ch.ethz.globis.distindex.middleware.net;
 
 import ch.ethz.globis.distindex.middleware.IOHandler;
+import ch.ethz.globis.distindex.operation.OpCode;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Handles the incoming data on the channel opened by a client.
  *
+ * If an executor is provided, the requests are handled by the executor rather than by the event loop
+ * of the channel, so that a long running request does not delay the other channels served by the same
+ * event loop. The requests received on the channel are then ordered as follows: a read-only request
+ * runs after all of the previously received updates completed, possibly concurrently with other
+ * read-only requests, while any other request runs after all of the previously received requests
+ * completed. A streamed response only completes once its last frame was written, so an update received
+ * after a streamed read never changes the tree while the stream is still reading it. Without an executor,
+ * a streamed response that waits for the channel to become writable is not ordered against the requests
+ * received after it.
+ *
+ * A channel stops reading once {@link #MAX_PENDING_REQUESTS} of its requests are waiting or running on
+ * the executor, and reads again once half of them completed, so a client pipelining requests faster than
+ * they are handled does not make the middleware buffer them without limit.
+ *
+ * The frames of a streamed response are computed and written by the thread handling the request, as long
+ * as the channel is writable. Once the outbound buffer of the channel fills up, the stream is suspended and
+ * it is resumed, on the same executor, when the channel becomes writable again. A slow client therefore
+ * does not make the middleware buffer the whole result, nor read the tree on the event loop.
+ *
  * @param <K>
  * @param <V>
  */
@@ -44,10 +72,33 @@ public abstract class MiddlewareChannelHandler<K, V> extends ChannelInboundHandl
 
     private static final Logger LOG = LoggerFactory.getLogger(MiddlewareChannelHandler.class);
 
+    /** The number of pending requests of a channel above which the channel stops reading. */
+    public static final int MAX_PENDING_REQUESTS = 256;
+
     private IOHandler<K, V> ioHandler;
 
+    /** The executor handling the requests, or null if they are handled on the event loop. */
+    private final Executor executor;
+
+    /** Completes once the last update received on the channel, and all the requests before it, completed. */
+    private CompletableFuture<Void> lastUpdate = CompletableFuture.completedFuture(null);
+
+    /** The read-only requests received since the last update that were not yet completed. */
+    private final List<CompletableFuture<Void>> pendingReads = new ArrayList<>();
+
+    /** The requests received on the channel and handed to the executor that did not yet complete. */
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    /** The streamed responses waiting for the channel to become writable. */
+    private final Queue<Runnable> suspendedStreams = new ConcurrentLinkedQueue<>();
+
     protected MiddlewareChannelHandler(IOHandler<K, V> ioHandler) {
+        this(ioHandler, null);
+    }
+
+    protected MiddlewareChannelHandler(IOHandler<K, V> ioHandler, Executor executor) {
         this.ioHandler = ioHandler;
+        this.executor = executor;
     }
 
     @Override
@@ -55,33 +106,207 @@ public abstract class MiddlewareChannelHandler<K, V> extends ChannelInboundHandl
         super.channelActive(ctx);
     }
 
+    /**
+     * Handle a single request message. When the message is handled on the event loop, the response is
+     * only written to the channel, the flush is done once all of the messages decoded from the current
+     * read were handled.
+     */
+    @Override
+    public void channelRead(final ChannelHandlerContext ctx, Object msg) throws Exception {
+        final ByteBuf buf = (ByteBuf) msg;
+        if (executor == null) {
+            handle(ctx, buf, false);
+            return;
+        }
+        if (pendingRequests.incrementAndGet() >= MAX_PENDING_REQUESTS) {
+            ctx.channel().config().setAutoRead(false);
+        }
+        Supplier<CompletableFuture<Void>> task =
+                () -> handle(ctx, buf, true).whenComplete((ignored, error) -> completed(ctx));
+        if (isReadOnly(buf.getByte(buf.readerIndex()))) {
+            removeCompleted(pendingReads);
+            pendingReads.add(runAfter(lastUpdate, task));
+        } else {
+            pendingReads.add(lastUpdate);
+            CompletableFuture<Void> previous =
+                    CompletableFuture.allOf(pendingReads.toArray(new CompletableFuture[pendingReads.size()]));
+            lastUpdate = runAfter(previous, task);
+            pendingReads.clear();
+        }
+    }
+
+    /**
+     * Let the channel read again once half of the pending requests that stopped it completed.
+     */
+    private void completed(ChannelHandlerContext ctx) {
+        if (pendingRequests.decrementAndGet() == MAX_PENDING_REQUESTS / 2) {
+            ctx.channel().config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Run the task on the executor once the previous stage completed, whether normally or not, so that a
+     * failed request does not prevent the requests received after it from running. The returned stage
+     * completes once the response of the task was written.
+     */
+    private CompletableFuture<Void> runAfter(CompletableFuture<Void> previous, Supplier<CompletableFuture<Void>> task) {
+        return previous.handle((ignored, error) -> (Void) null).thenComposeAsync(ignored -> task.get(), executor);
+    }
+
+    /**
+     * Handle a request and write its response. Any error is answered with a failure response, so that
+     * the client waiting for the response is not left hanging, and the request buffer is always released.
+     *
+     * @return                              A future completed once the response, or the last frame of a
+     *                                      streamed response, was written.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Void> handle(ChannelHandlerContext ctx, ByteBuf buf, boolean flush) {
+        ByteBuffer request = buf.nioBuffer();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            //the response already contains the size header, the two are written together
+            //as the responses can be written from several threads.
+            Object message;
+            try {
+                message = ioHandler.handleMessage(clientHost(ctx), request, ctx.alloc());
+            } catch (Throwable t) {
+                LOG.error("Error handling request", t);
+                message = ioHandler.handleFailure(request, ctx.alloc());
+            }
+            if (message instanceof IOHandler.ResponseFrames) {
+                stream(ctx, (IOHandler<K, V>.ResponseFrames) message, done);
+                return done;
+            } else if (flush) {
+                ctx.writeAndFlush(message);
+            } else {
+                ctx.write(message);
+            }
+        } catch (Throwable t) {
+            LOG.error("Error writing response", t);
+        } finally {
+            buf.release();
+        }
+        done.complete(null);
+        return done;
+    }
+
+    /**
+     * Write the frames of a streamed response while the channel is writable. Otherwise, the remaining
+     * frames are written once the channel becomes writable again. The future is completed once the last
+     * frame was written, or once the stream ended because of an error or a closed channel.
+     */
+    private void stream(ChannelHandlerContext ctx, IOHandler<K, V>.ResponseFrames frames, CompletableFuture<Void> done) {
+        try {
+            while (ctx.channel().isWritable()) {
+                ByteBuf frame = frames.nextFrame(ctx.alloc());
+                if (frame == null) {
+                    done.complete(null);
+                    return;
+                }
+                ctx.writeAndFlush(frame);
+            }
+        } catch (Throwable t) {
+            LOG.error("Error writing response", t);
+            done.complete(null);
+            return;
+        }
+        if (!ctx.channel().isActive()) {
+            done.complete(null);
+            return;
+        }
+        suspendedStreams.add(() -> stream(ctx, frames, done));
+        //the channel might have become writable, or closed, before the stream was suspended
+        if (ctx.channel().isWritable() || !ctx.channel().isActive()) {
+            resumeStreams(ctx);
+        }
+    }
+
+    private void resumeStreams(ChannelHandlerContext ctx) {
+        Executor streamExecutor = (executor == null) ? ctx.executor() : executor;
+        Runnable stream;
+        while ((stream = suspendedStreams.poll()) != null) {
+            streamExecutor.execute(stream);
+        }
+    }
+
+    /**
+     * The remote address is null once the channel was closed, in which case the address is reported as "null".
+     */
+    private static String clientHost(ChannelHandlerContext ctx) {
+        return String.valueOf(ctx.channel().remoteAddress());
+    }
+
+    /**
+     * Check if a request only reads the index, in which case it can be handled concurrently with the other
+     * read-only requests received on the same channel. Iterator batches are not considered read-only, as the
+     * batches of the same iterator have to be returned in order.
+     *
+     * @param opCode                        The op code of the request.
+     * @return                              True if the request does not modify the index.
+     */
+    private static boolean isReadOnly(byte opCode) {
+        switch (opCode) {
+            case OpCode.GET:
+            case OpCode.GET_ALL:
+            case OpCode.GET_RANGE:
+            case OpCode.GET_RANGE_FILTER:
+            case OpCode.COUNT_RANGE:
+            case OpCode.GET_KNN:
+            case OpCode.GET_SIZE:
+            case OpCode.GET_DIM:
+            case OpCode.GET_DEPTH:
+            case OpCode.CONTAINS:
+            case OpCode.STATS:
+            case OpCode.TO_STRING:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void removeCompleted(List<CompletableFuture<Void>> futures) {
+        Iterator<CompletableFuture<Void>> it = futures.iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+    }
+
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        ByteBuf buf = (ByteBuf) msg;
-        String clientHost = ctx.channel().remoteAddress().toString();
-        ByteBuffer response = ioHandler.handle(clientHost, buf.nioBuffer());
-        ByteBuf nettyBuf = Unpooled.wrappedBuffer(response);
-        ByteBuf sizeBuf = Unpooled.copyInt(nettyBuf.readableBytes());
-
-        ctx.write(sizeBuf);
-        ctx.write(nettyBuf);
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
         ctx.flush();
-        buf.release();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            resumeStreams(ctx);
+        }
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        String clientHost = ctx.channel().remoteAddress().toString();
+        //the suspended streams end at once on the closed channel, which lets the requests waiting for them run
+        resumeStreams(ctx);
+        String clientHost = clientHost(ctx);
         LOG.debug("Client " + clientHost + " disconnected.");
         ioHandler.cleanup(clientHost);
         super.channelInactive(ctx);
     }
 
+    /**
+     * The connection is closed on any error, including a message exceeding the maximum frame length,
+     * since the stream of messages received on the channel can no longer be trusted.
+     */
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
-        String clientHost = ctx.channel().remoteAddress().toString();
-        LOG.debug("Client " + clientHost + " disconnected.");
+        String clientHost = clientHost(ctx);
+        LOG.warn("Closing the connection to client " + clientHost + ".", cause);
         ioHandler.cleanup(clientHost);
-        super.exceptionCaught(ctx, cause);
+        ctx.close();
     }
 }
\ No newline at end of file
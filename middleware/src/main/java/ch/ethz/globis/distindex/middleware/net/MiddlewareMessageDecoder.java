@@ -24,44 +24,33 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.distindex.middleware.net;
 
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ByteToMessageDecoder;
-
-import java.util.List;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
 /**
  * Buffers the byte chunks received from the client until a full message was received.
  *
- * When this happens, the ByteBuf containing that message is send to the channel handler.
+ * When this happens, the ByteBuf containing that message is send to the channel handler. Each
+ * message is preceded by a 4 byte header holding its size, which is stripped from the message. A client
+ * can send several messages without waiting for the responses, so the accumulated chunks may contain
+ * more than one message.
+ *
+ * A message announcing a size larger than the maximum frame length is rejected with a
+ * {@link io.netty.handler.codec.TooLongFrameException} and its bytes are discarded, so that a corrupt
+ * size header cannot make the server buffer an unbounded amount of data.
  */
-public class MiddlewareMessageDecoder extends ByteToMessageDecoder{
+public class MiddlewareMessageDecoder extends LengthFieldBasedFrameDecoder {
 
-    private int bytesToRead = -1;
+    /** The default maximum size of a message, in bytes. */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    public MiddlewareMessageDecoder() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
 
     /**
-     * Checks whether the bytes accumulated in the in Buffer constitute a full message sent
-     * from the client. If that is the case, the message is copied to the out list and the
-     * next handler is notified.
-     *
-     * @param ctx                           The Netty context associated with the channel.
-     * @param in                            A Netty managed buffer that holds the accumulated received chunks.
-     * @param out                           The list of objects to be passed to the next handler.
-     * @throws Exception
+     * @param maxFrameLength                The maximum size of a message, in bytes, excluding the size header.
      */
-    @Override
-    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
-        if (in.readableBytes() < 4) {
-            //need to know exactly how many bytes to read
-            return;
-        }
-        if (bytesToRead == -1) {
-            bytesToRead = in.readInt();
-        }
-
-        if (in.readableBytes() == bytesToRead) {
-            out.add(in.readBytes(in.readableBytes()));
-            bytesToRead = -1;
-        }
+    public MiddlewareMessageDecoder(int maxFrameLength) {
+        super(maxFrameLength, 0, 4, 0, 4);
     }
 }
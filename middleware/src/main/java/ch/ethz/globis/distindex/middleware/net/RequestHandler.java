@@ -26,13 +26,17 @@ package ch.ethz.globis.distindex.middleware.net;
 
 import ch.ethz.globis.distindex.operation.request.BaseRequest;
 import ch.ethz.globis.distindex.operation.request.ContainsRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteAllRequest;
+import ch.ethz.globis.distindex.operation.request.DeleteRangeRequest;
 import ch.ethz.globis.distindex.operation.request.DeleteRequest;
+import ch.ethz.globis.distindex.operation.request.GetAllRequest;
 import ch.ethz.globis.distindex.operation.request.GetIteratorBatchRequest;
 import ch.ethz.globis.distindex.operation.request.GetKNNRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeFilterMapperRequest;
 import ch.ethz.globis.distindex.operation.request.GetRangeRequest;
 import ch.ethz.globis.distindex.operation.request.GetRequest;
 import ch.ethz.globis.distindex.operation.request.MapRequest;
+import ch.ethz.globis.distindex.operation.request.PutAllRequest;
 import ch.ethz.globis.distindex.operation.request.PutRequest;
 import ch.ethz.globis.distindex.operation.request.UpdateKeyRequest;
 import ch.ethz.globis.distindex.operation.response.Response;
@@ -45,6 +49,8 @@ public interface RequestHandler<K, V> {
 
     public Response handleGetRange(GetRangeRequest<K> request);
 
+    public Response handleCountRange(GetRangeRequest<K> request);
+
     public Response handleGetKNN(GetKNNRequest<K> request);
 
     public Response handleGetIteratorBatch(String clientHost, GetIteratorBatchRequest<K> request);
@@ -53,6 +59,14 @@ public interface RequestHandler<K, V> {
 
     public Response handleDelete(DeleteRequest<K> request);
 
+    public Response handlePutAll(PutAllRequest<K, V> request);
+
+    public Response handleGetAll(GetAllRequest<K> request);
+
+    public Response handleDeleteAll(DeleteAllRequest<K> request);
+
+    public Response handleDeleteRange(DeleteRangeRequest<K> request);
+
     public Response handleGetSize(BaseRequest request);
 
     public Response handleGetDim(BaseRequest request);
@@ -69,6 +83,11 @@ public interface RequestHandler<K, V> {
 
     public void cleanup(String clientHost);
 
+    /**
+     * Release the resources held by the handler, once the middleware is shut down.
+     */
+    public void close();
+
     public Response handleUpdateKey(UpdateKeyRequest<K> request);
 
     public Response handleGetRangeFilter(GetRangeFilterMapperRequest<K> request);
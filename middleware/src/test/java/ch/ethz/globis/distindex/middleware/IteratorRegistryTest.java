@@ -0,0 +1,89 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class IteratorRegistryTest {
+
+    @Test
+    public void testLeaseExpires() throws InterruptedException {
+        IteratorRegistry<String> registry = new IteratorRegistry<>(10L, 10);
+        String id = registry.open("client");
+        registry.release("client", id, "iterator");
+        assertEquals(1, registry.getOpenIterators());
+
+        Thread.sleep(20);
+        assertEquals(1, registry.reap());
+        assertNull(registry.checkOut(id));
+        assertEquals(0, registry.getOpenIterators());
+        assertEquals(1, registry.getExpiredIterators());
+    }
+
+    @Test
+    public void testCheckedOutIteratorIsNotReaped() throws InterruptedException {
+        IteratorRegistry<String> registry = new IteratorRegistry<>(10L, 10);
+        String id = registry.open("client");
+        registry.release("client", id, "iterator");
+        assertEquals("iterator", registry.checkOut(id));
+
+        Thread.sleep(20);
+        assertEquals(0, registry.reap());
+        registry.release("client", id, "iterator");
+        assertEquals("iterator", registry.checkOut(id));
+    }
+
+    @Test
+    public void testClientLimit() {
+        IteratorRegistry<String> registry = new IteratorRegistry<>(60000L, 2);
+        assertNotNull(registry.open("client"));
+        String id = registry.open("client");
+        assertNotNull(id);
+        assertNull(registry.open("client"));
+        assertNotNull(registry.open("other"));
+        assertEquals(1, registry.getRejectedIterators());
+
+        registry.close("client", id);
+        assertNotNull(registry.open("client"));
+    }
+
+    @Test
+    public void testCloseAll() {
+        IteratorRegistry<String> registry = new IteratorRegistry<>(60000L, 10);
+        String first = registry.open("client");
+        String second = registry.open("client");
+        registry.release("client", first, "first");
+        registry.release("client", second, "second");
+
+        registry.closeAll("client");
+        assertNull(registry.checkOut(first));
+        assertNull(registry.checkOut(second));
+        assertEquals(0, registry.getOpenIterators());
+    }
+}
@@ -0,0 +1,90 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware;
+
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.phtree.PhTree;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MigrationLogTest {
+
+    @Test
+    public void testRecordsWritesInRange() {
+        MigrationLog log = new MigrationLog();
+        log.recordPut(new long[] { 1, 1 }, new byte[] { 1 });
+        log.recordPut(new long[] { 8, 8 }, new byte[] { 2 });
+        log.setRange(new long[] { 4, 4 }, null);
+
+        log.recordDelete(new long[] { 8, 8 });
+        log.recordDelete(new long[] { 2, 2 });
+        log.recordPut(new long[] { 5, 4 }, new byte[] { 3 });
+
+        IndexEntryList<long[], byte[]> writes = log.drain();
+        assertEquals(3, writes.size());
+        assertArrayEquals(new long[] { 8, 8 }, writes.get(0).getKey());
+        assertArrayEquals(new byte[] { 2 }, writes.get(0).getValue());
+        assertArrayEquals(new long[] { 8, 8 }, writes.get(1).getKey());
+        assertNull(writes.get(1).getValue());
+        assertArrayEquals(new long[] { 5, 4 }, writes.get(2).getKey());
+        assertTrue(log.drain().isEmpty());
+    }
+
+    @Test
+    public void testRecordsAppliedWrites() {
+        MigrationLog log = new MigrationLog();
+        PhTree<byte[]> tree = PhTree.create(2);
+        assertNull(log.put(tree, new long[] { 1, 1 }, new byte[] { 1 }));
+        assertArrayEquals(new byte[] { 1 }, log.update(tree, new long[] { 1, 1 }, new long[] { 2, 2 }));
+        assertNull(log.remove(tree, new long[] { 1, 1 }));
+        assertArrayEquals(new byte[] { 1 }, log.remove(tree, new long[] { 2, 2 }));
+
+        IndexEntryList<long[], byte[]> writes = log.drain();
+        assertEquals(4, writes.size());
+        assertArrayEquals(new long[] { 1, 1 }, writes.get(0).getKey());
+        assertArrayEquals(new long[] { 1, 1 }, writes.get(1).getKey());
+        assertNull(writes.get(1).getValue());
+        assertArrayEquals(new long[] { 2, 2 }, writes.get(2).getKey());
+        assertArrayEquals(new byte[] { 1 }, writes.get(2).getValue());
+        assertArrayEquals(new long[] { 2, 2 }, writes.get(3).getKey());
+        assertNull(writes.get(3).getValue());
+        assertEquals(0, tree.size());
+    }
+
+    @Test
+    public void testPauseRefusesWrites() {
+        MigrationLog log = new MigrationLog();
+        assertTrue(log.beginWrite());
+        log.endWrite();
+
+        log.pause();
+        assertFalse(log.beginWrite());
+    }
+}
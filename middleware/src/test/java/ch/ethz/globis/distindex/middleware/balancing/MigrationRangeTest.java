@@ -0,0 +1,119 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware.balancing;
+
+import ch.ethz.globis.distindex.api.IndexEntry;
+import ch.ethz.globis.distindex.api.IndexEntryList;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MigrationRangeTest {
+
+    @Test
+    public void testSplitMovesHalfOfTheKeys() {
+        PhTree<byte[]> tree = createTree(1000);
+        List<long[]> keys = keys(tree);
+
+        MigrationRange right = MigrationRange.split(tree, true, 500, 17);
+        assertKeys(keys.subList(500, 1000), read(right, tree));
+        assertKeys(keys.subList(0, 500), read(right.preceding(), tree));
+
+        MigrationRange left = MigrationRange.split(tree, false, 300, 17);
+        assertKeys(keys.subList(0, 300), read(left, tree));
+        assertArrayEquals(keys.get(299), left.getLast());
+    }
+
+    @Test
+    public void testNothingToMove() {
+        PhTree<byte[]> tree = createTree(10);
+
+        MigrationRange range = MigrationRange.split(tree, true, 0, 4);
+        assertTrue(range.isEmpty());
+        assertFalse(range.chunks(tree, 4).hasNext());
+        assertTrue(range.preceding().isEmpty());
+    }
+
+    @Test
+    public void testChunksAreReadLazily() {
+        PhTree<byte[]> tree = createTree(100);
+
+        Iterator<IndexEntryList<long[], byte[]>> chunks = MigrationRange.all().chunks(tree, 8);
+        while (chunks.hasNext()) {
+            IndexEntryList<long[], byte[]> chunk = chunks.next();
+            assertTrue(chunk.size() <= 8);
+            for (IndexEntry<long[], byte[]> entry : chunk) {
+                tree.remove(entry.getKey());
+            }
+        }
+        assertEquals(0, tree.size());
+    }
+
+    private PhTree<byte[]> createTree(int size) {
+        Random random = new Random(42);
+        PhTree<byte[]> tree = PhTree.create(2);
+        while (tree.size() < size) {
+            tree.put(new long[] { random.nextInt(2000) - 1000, random.nextInt(2000) - 1000 }, new byte[0]);
+        }
+        return tree;
+    }
+
+    private List<long[]> keys(PhTree<byte[]> tree) {
+        List<long[]> keys = new ArrayList<>();
+        PhIterator<byte[]> it = tree.queryExtent();
+        while (it.hasNext()) {
+            keys.add(it.nextKey());
+        }
+        return keys;
+    }
+
+    private List<long[]> read(MigrationRange range, PhTree<byte[]> tree) {
+        List<long[]> keys = new ArrayList<>();
+        Iterator<IndexEntryList<long[], byte[]>> chunks = range.chunks(tree, 17);
+        while (chunks.hasNext()) {
+            for (IndexEntry<long[], byte[]> entry : chunks.next()) {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys;
+    }
+
+    private void assertKeys(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+}
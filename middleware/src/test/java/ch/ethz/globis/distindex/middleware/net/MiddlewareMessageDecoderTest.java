@@ -0,0 +1,77 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.middleware.net;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class MiddlewareMessageDecoderTest {
+
+    @Test
+    public void testSeveralMessagesInOneChunk() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MiddlewareMessageDecoder(16));
+        ByteBuf in = Unpooled.buffer();
+        in.writeInt(2).writeByte(1).writeByte(2);
+        in.writeInt(1).writeByte(3);
+        in.writeInt(3).writeByte(4);
+        channel.writeInbound(in);
+
+        assertMessage(channel.<ByteBuf>readInbound(), 1, 2);
+        assertMessage(channel.<ByteBuf>readInbound(), 3);
+        assertNull(channel.readInbound());
+
+        channel.writeInbound(Unpooled.buffer().writeByte(5).writeByte(6));
+        assertMessage(channel.<ByteBuf>readInbound(), 4, 5, 6);
+        channel.finish();
+    }
+
+    @Test
+    public void testMessageTooLong() {
+        EmbeddedChannel channel = new EmbeddedChannel(new MiddlewareMessageDecoder(16));
+        try {
+            channel.writeInbound(Unpooled.buffer().writeInt(Integer.MAX_VALUE).writeByte(1));
+            fail("A message larger than the maximum frame length should be rejected.");
+        } catch (TooLongFrameException e) {
+            //expected
+        }
+        assertNull(channel.readInbound());
+        channel.finish();
+    }
+
+    private static void assertMessage(ByteBuf message, int... bytes) {
+        assertEquals(bytes.length, message.readableBytes());
+        for (int b : bytes) {
+            assertEquals(b, message.readByte());
+        }
+        message.release();
+    }
+}
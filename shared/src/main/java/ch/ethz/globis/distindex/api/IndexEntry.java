@@ -54,15 +54,19 @@ public class IndexEntry<K, V> {
         if (!(o instanceof IndexEntry)) return false;
 
         IndexEntry<?,?> that = (IndexEntry<?,?>) o;
+        K key = getKey();
+        V value = getValue();
 
-        if (key != null ? !key.equals(that.key) : that.key != null) return false;
-        if (value != null ? !value.equals(that.value) : that.value != null) return false;
+        if (key != null ? !key.equals(that.getKey()) : that.getKey() != null) return false;
+        if (value != null ? !value.equals(that.getValue()) : that.getValue() != null) return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
+        K key = getKey();
+        V value = getValue();
         int result = key != null ? key.hashCode() : 0;
         result = 31 * result + (value != null ? value.hashCode() : 0);
         return result;
@@ -71,8 +75,8 @@ public class IndexEntry<K, V> {
     @Override
     public String toString() {
         return "IndexEntry{" +
-                "key=" + key +
-                ", value=" + value +
+                "key=" + getKey() +
+                ", value=" + getValue() +
                 '}';
     }
 }
\ No newline at end of file
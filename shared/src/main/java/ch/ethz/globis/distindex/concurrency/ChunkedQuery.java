@@ -0,0 +1,181 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import ch.ethz.globis.distindex.util.ContinuationQuery;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+
+/**
+ * Iterator over the entries of a range, which reads the tree in chunks of bounded size.
+ *
+ * Every chunk holds the entries following the last key read, in z-order, and is read under the lock of
+ * the tree, which is released between two chunks. Creating the iterator does not access the tree and at
+ * most one chunk is held in memory, so writers are only blocked while a chunk is read.
+ *
+ * The iterator is weakly consistent: the entries are returned in z-order, every entry that stays in the
+ * range during the whole iteration is returned exactly once, while an entry added or removed during the
+ * iteration is returned only if the update happened before the chunk containing it was read.
+ *
+ * Removing an entry through the iterator removes it from the tree.
+ *
+ * @param <T>                       The type of the values.
+ */
+class ChunkedQuery<T> implements PhExtent<T>, PhQuery<T> {
+
+    /** The default number of entries read at once. */
+    static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /**
+     * Reads at most maxResults entries inside the range [min, max] that follow a key in z-order and are
+     * accepted by a filter.
+     */
+    interface ChunkReader<T> {
+
+        List<PhEntry<T>> read(long[] min, long[] max, long[] after, int maxResults, PhFilter filter);
+    }
+
+    private final PhTree<T> tree;
+    private final ChunkReader<T> reader;
+    private final PhFilter filter;
+    private final int chunkSize;
+
+    private long[] min;
+    private long[] max;
+
+    private List<PhEntry<T>> chunk;
+    private int next;
+    private boolean lastChunk;
+
+    /** The last key read from the tree, from which the next chunk is read. */
+    private long[] after;
+
+    /** The last entry returned, which is removed by {@link #remove()}. */
+    private PhEntry<T> last;
+
+    /**
+     * @param tree                  The tree, used to remove entries.
+     * @param reader                Reads the chunks from the tree.
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param filter                The filter applied to the entries, or null to return all of them.
+     */
+    ChunkedQuery(PhTree<T> tree, ChunkReader<T> reader, long[] min, long[] max, PhFilter filter) {
+        this(tree, reader, min, max, filter, DEFAULT_CHUNK_SIZE);
+    }
+
+    ChunkedQuery(PhTree<T> tree, ChunkReader<T> reader, long[] min, long[] max, PhFilter filter, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("The chunk size needs to be positive.");
+        }
+        this.tree = tree;
+        this.reader = reader;
+        this.filter = filter;
+        this.chunkSize = chunkSize;
+        restart(min, max);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next >= chunk.size()) {
+            if (lastChunk) {
+                return false;
+            }
+            chunk = reader.read(min, max, after, chunkSize, filter);
+            next = 0;
+            lastChunk = chunk.size() < chunkSize;
+            if (!chunk.isEmpty()) {
+                after = chunk.get(chunk.size() - 1).getKey();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public PhEntry<T> nextEntry() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = chunk.get(next++);
+        return last;
+    }
+
+    @Override
+    public PhEntry<T> nextEntryReuse() {
+        return nextEntry();
+    }
+
+    @Override
+    public long[] nextKey() {
+        return nextEntry().getKey();
+    }
+
+    @Override
+    public T nextValue() {
+        return nextEntry().getValue();
+    }
+
+    @Override
+    public T next() {
+        return nextValue();
+    }
+
+    @Override
+    public void remove() {
+        if (last == null) {
+            throw new IllegalStateException();
+        }
+        tree.remove(last.getKey());
+        last = null;
+    }
+
+    @Override
+    public PhExtent<T> reset() {
+        restart(ContinuationQuery.fullMin(min.length), ContinuationQuery.fullMax(max.length));
+        return this;
+    }
+
+    @Override
+    public void reset(long[] min, long[] max) {
+        restart(min, max);
+    }
+
+    private void restart(long[] min, long[] max) {
+        this.min = min;
+        this.max = max;
+        this.chunk = Collections.emptyList();
+        this.next = 0;
+        this.lastChunk = false;
+        this.after = null;
+        this.last = null;
+    }
+}
@@ -0,0 +1,415 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+import ch.ethz.globis.distindex.util.ContinuationQuery;
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhFilterDistance;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.PhMapper;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * A concurrent PH-tree, guarded by a read/write lock.
+ *
+ * Point queries, range queries and nearest neighbour queries share the read lock, so they run in
+ * parallel with each other, and only updates are exclusive. The size, dimension and depth are read
+ * optimistically, without taking the lock at all.
+ *
+ * The iterators returned by {@link #queryExtent()}, {@link #query(long[], long[])} and the range
+ * queries read the tree in chunks of bounded size, each chunk under the read lock, and do not hold the
+ * lock while they are consumed. They are weakly consistent, see {@link ChunkedQuery}. The iterators
+ * returned by the nearest neighbour queries iterate over the at most nMin entries collected under the
+ * read lock when the query was created. Removing an entry through an iterator removes it from the tree.
+ *
+ * @param <T>                       The type of the values.
+ */
+public class PhTreeRW<T> implements PhTree<T> {
+
+    private final PhTree<T> p;
+
+    private final StampedLock lock = new StampedLock();
+
+    private PhTreeRW(PhTree<T> tree) {
+        this.p = tree;
+    }
+
+    public static <T> PhTreeRW<T> create(int dims) {
+        return new PhTreeRW<>(PhTree.<T>create(dims));
+    }
+
+    /**
+     * Wrap an existing tree. The tree should not be accessed directly afterwards.
+     *
+     * @param tree                  The tree to wrap.
+     * @return                      The concurrent tree.
+     */
+    public static <T> PhTreeRW<T> wrap(PhTree<T> tree) {
+        return new PhTreeRW<>(tree);
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.tryOptimisticRead();
+        int size = p.size();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                size = p.size();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int getDim() {
+        long stamp = lock.tryOptimisticRead();
+        int dim = p.getDim();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                dim = p.getDim();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return dim;
+    }
+
+    @Override
+    public int getBitDepth() {
+        long stamp = lock.tryOptimisticRead();
+        int depth = p.getBitDepth();
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                depth = p.getBitDepth();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public PhTreeStats getStats() {
+        long stamp = lock.readLock();
+        try {
+            return p.getStats();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean contains(long... key) {
+        long stamp = lock.readLock();
+        try {
+            return p.contains(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public T get(long... key) {
+        long stamp = lock.readLock();
+        try {
+            return p.get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public T put(long[] key, T value) {
+        long stamp = lock.writeLock();
+        try {
+            return p.put(key, value);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public T remove(long... key) {
+        long stamp = lock.writeLock();
+        try {
+            return p.remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public T update(long[] oldKey, long[] newKey) {
+        long stamp = lock.writeLock();
+        try {
+            return p.update(oldKey, newKey);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        long stamp = lock.writeLock();
+        try {
+            p.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String toStringPlain() {
+        long stamp = lock.readLock();
+        try {
+            return p.toStringPlain();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String toStringTree() {
+        long stamp = lock.readLock();
+        try {
+            return p.toStringTree();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public PhExtent<T> queryExtent() {
+        int dims = getDim();
+        return new ChunkedQuery<>(this, this::queryAfter, ContinuationQuery.fullMin(dims),
+                ContinuationQuery.fullMax(dims), null);
+    }
+
+    @Override
+    public PhQuery<T> query(long[] min, long[] max) {
+        return new ChunkedQuery<>(this, this::queryAfter, min, max, null);
+    }
+
+    @Override
+    public PhKnnQuery<T> nearestNeighbour(int nMin, long... key) {
+        return new SnapshotIterator<>(this, collectKnn(nMin, null, null, key));
+    }
+
+    @Override
+    public PhKnnQuery<T> nearestNeighbour(int nMin, PhDistance dist, PhFilter dims, long... key) {
+        return new SnapshotIterator<>(this, collectKnn(nMin, dist, dims, key));
+    }
+
+    @Override
+    public PhRangeQuery<T> rangeQuery(double dist, long... center) {
+        return rangeQuery(dist, null, center);
+    }
+
+    /**
+     * The entries inside the bounding box of the query are read in chunks, like for
+     * {@link #query(long[], long[])}, and filtered by their distance to the center.
+     */
+    @Override
+    public PhRangeQuery<T> rangeQuery(double dist, PhDistance optionalDist, long... center) {
+        PhDistance measure = (optionalDist == null) ? new PhDistanceL() : optionalDist;
+        PhFilterDistance filter = new PhFilterDistance();
+        int dims = getDim();
+        ChunkedQuery<T> query = new ChunkedQuery<>(this, this::queryAfter, ContinuationQuery.fullMin(dims),
+                ContinuationQuery.fullMax(dims), filter);
+        PhRangeQuery<T> rangeQuery = new PhRangeQuery<>(query, this, measure, filter);
+        rangeQuery.reset(dist, center);
+        return rangeQuery;
+    }
+
+    @Override
+    public List<PhEntry<T>> queryAll(long[] min, long[] max) {
+        long stamp = lock.readLock();
+        try {
+            return p.queryAll(min, max);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public <R> List<R> queryAll(long[] min, long[] max, int maxResults, PhFilter filter, PhMapper<T, R> mapper) {
+        long stamp = lock.readLock();
+        try {
+            return p.queryAll(min, max, maxResults, filter, mapper);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Return at most maxResults entries inside the range [min, max] that follow a key in z-order and are
+     * accepted by the filter. The entries are read under a single acquisition of the read lock.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param after                 The key preceding the entries, or null to start from the beginning.
+     * @param maxResults            The maximum number of entries returned.
+     * @param filter                The filter, or null to accept all of the entries.
+     * @return                      The entries, in z-order.
+     */
+    public List<PhEntry<T>> queryAfter(long[] min, long[] max, long[] after, int maxResults, PhFilter filter) {
+        long stamp = lock.readLock();
+        try {
+            return ContinuationQuery.next(p, min, max, after, maxResults, filter);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Remove all of the entries inside the range [min, max] that are accepted by the filter.
+     *
+     * The entries are removed in chunks, see {@link #removeAfter(long[], long[], long[], int, PhFilter)},
+     * so the write lock is released between the chunks and the removed keys are not collected.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param filter                The filter, or null to remove all of the entries of the range.
+     * @return                      The number of removed entries.
+     */
+    public int removeRange(long[] min, long[] max, PhFilter filter) {
+        int removed = 0;
+        long[] after = null;
+        while (true) {
+            List<long[]> chunk = removeAfter(min, max, after, ChunkedQuery.DEFAULT_CHUNK_SIZE, filter);
+            removed += chunk.size();
+            if (chunk.size() < ChunkedQuery.DEFAULT_CHUNK_SIZE) {
+                return removed;
+            }
+            after = chunk.get(chunk.size() - 1);
+        }
+    }
+
+    /**
+     * Remove at most maxResults entries inside the range [min, max] that follow a key in z-order and are
+     * accepted by the filter. The entries are found and removed under a single acquisition of the write lock.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param after                 The key preceding the entries, or null to start from the beginning.
+     * @param maxResults            The maximum number of entries removed.
+     * @param filter                The filter, or null to accept all of the entries.
+     * @return                      The removed keys, in z-order.
+     */
+    public List<long[]> removeAfter(long[] min, long[] max, long[] after, int maxResults, PhFilter filter) {
+        long stamp = lock.writeLock();
+        try {
+            List<PhEntry<T>> entries = ContinuationQuery.next(p, min, max, after, maxResults, filter);
+            List<long[]> keys = new ArrayList<>(entries.size());
+            for (PhEntry<T> entry : entries) {
+                p.remove(entry.getKey());
+                keys.add(entry.getKey());
+            }
+            return keys;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Count the entries inside the range [min, max], iterating the tree directly under the read lock,
+     * without collecting the entries.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @return                      The number of entries inside the range.
+     */
+    public int countRange(long[] min, long[] max) {
+        long stamp = lock.readLock();
+        try {
+            int count = 0;
+            PhQuery<T> it = p.query(min, max);
+            while (it.hasNext()) {
+                it.nextKey();
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private List<PhEntry<T>> collectKnn(int nMin, PhDistance dist, PhFilter dims, long... key) {
+        long stamp = lock.readLock();
+        try {
+            if (dist == null && dims == null) {
+                return collect(p.nearestNeighbour(nMin, key));
+            }
+            return collect(p.nearestNeighbour(nMin, dist, dims, key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static <T> List<PhEntry<T>> collect(PhIterator<T> it) {
+        return SnapshotIterator.collect(it);
+    }
+
+    /*
+     * Used by trees composed of several locked trees, which need to hold the locks of more than one tree
+     * at once. The lock is not reentrant, so the wrapped tree has to be accessed directly while it is held.
+     */
+
+    long lockRead() {
+        return lock.readLock();
+    }
+
+    void unlockRead(long stamp) {
+        lock.unlockRead(stamp);
+    }
+
+    long lockWrite() {
+        return lock.writeLock();
+    }
+
+    void unlockWrite(long stamp) {
+        lock.unlockWrite(stamp);
+    }
+
+    /**
+     * @return                      The wrapped tree, which may only be accessed while holding the lock.
+     */
+    PhTree<T> unguarded() {
+        return p;
+    }
+}
@@ -0,0 +1,569 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+import ch.ethz.globis.distindex.util.ContinuationQuery;
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhFilterDistance;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.PhMapper;
+import ch.ethz.globis.phtree.util.PhTreeStats;
+
+/**
+ * A PH-tree split into a power of two sub-trees, the shards, by the leading bits of the z-value of the keys.
+ *
+ * Every shard is guarded by its own read/write lock, so updates of keys in different shards run in parallel.
+ * Point operations are routed to the shard of the key. Queries are sent in parallel to all shards that
+ * intersect the query range and the results are merged. As the shards hold consecutive parts of the
+ * z-order, the results of range queries are concatenated in shard order and keep the z-order of the
+ * keys.
+ *
+ * Range and extent queries read the entries in chunks of bounded size, see {@link ChunkedQuery}. A chunk
+ * keeps the read lock of every shard it read from until it is complete, and updates moving an entry
+ * between two shards hold the write locks of both, so every chunk is consistent across the shards.
+ * Locks are always acquired in shard order. No lock is held between two chunks, so writers are only
+ * blocked while a chunk is read.
+ *
+ * The shards are only balanced if the leading bits of the keys are well distributed.
+ *
+ * @param <T>                       The type of the values.
+ */
+public class PhTreeSharded<T> implements PhTree<T> {
+
+    private final List<PhTreeRW<T>> shards;
+
+    /** The number of leading z-value bits used to select a shard. */
+    private final int shardBits;
+
+    private final int dims;
+
+    /** The executor running the queries on the individual shards. */
+    private final Executor executor;
+
+    private PhTreeSharded(int dims, int shardBits, Executor executor) {
+        this.dims = dims;
+        this.shardBits = shardBits;
+        this.executor = executor;
+        int nrShards = 1 << shardBits;
+        List<PhTreeRW<T>> trees = new ArrayList<>(nrShards);
+        for (int i = 0; i < nrShards; i++) {
+            trees.add(PhTreeRW.<T>create(dims));
+        }
+        this.shards = Collections.unmodifiableList(trees);
+    }
+
+    /**
+     * Create a new sharded tree.
+     *
+     * @param dims                  The number of dimensions.
+     * @param nrShards              The number of shards, rounded down to a power of two.
+     * @return                      The new tree.
+     */
+    public static <T> PhTreeSharded<T> create(int dims, int nrShards) {
+        return create(dims, nrShards, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a new sharded tree.
+     *
+     * @param dims                  The number of dimensions.
+     * @param nrShards              The number of shards, rounded down to a power of two.
+     * @param executor              The executor running the queries on the shards.
+     * @return                      The new tree.
+     */
+    public static <T> PhTreeSharded<T> create(int dims, int nrShards, Executor executor) {
+        if (nrShards < 1) {
+            throw new IllegalArgumentException("The number of shards needs to be positive.");
+        }
+        int shardBits = Math.min(Integer.numberOfTrailingZeros(Integer.highestOneBit(nrShards)), dims * 64);
+        return new PhTreeSharded<>(dims, shardBits, executor);
+    }
+
+    public int getNrShards() {
+        return shards.size();
+    }
+
+    /**
+     * Compute the shard of a key, given by the first bits of its z-value. At every bit position of the
+     * z-value, the bit of dimension 0 comes first.
+     *
+     * @param key                   The key.
+     * @return                      The index of the shard holding the key.
+     */
+    int shardOf(long[] key) {
+        int shard = 0;
+        for (int i = 0; i < shardBits; i++) {
+            int dim = i % dims;
+            int bit = 63 - i / dims;
+            shard = (shard << 1) | (int) ((key[dim] >>> bit) & 1L);
+        }
+        return shard;
+    }
+
+    private PhTreeRW<T> shard(long[] key) {
+        return shards.get(shardOf(key));
+    }
+
+    /**
+     * Check whether the box given by min and max can contain keys of a shard. The prefix of the shard
+     * fixes the leading bits of some dimensions, which restricts these dimensions to a range of values.
+     */
+    private boolean intersects(int shard, long[] min, long[] max) {
+        for (int dim = 0; dim < dims && dim < shardBits; dim++) {
+            long lower = 0;
+            long upper = -1L;
+            for (int i = dim; i < shardBits; i += dims) {
+                int bit = 63 - i / dims;
+                long prefixBit = (shard >>> (shardBits - 1 - i)) & 1L;
+                if (prefixBit == 0) {
+                    upper &= ~(1L << bit);
+                } else {
+                    lower |= 1L << bit;
+                }
+            }
+            // the sign bit is always fixed, so the range is contiguous for signed comparisons
+            if (lower > max[dim] || upper < min[dim]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<PhTreeRW<T>> intersecting(long[] min, long[] max) {
+        List<PhTreeRW<T>> result = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (intersects(i, min, max)) {
+                result.add(shards.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Run an operation on the shards received as an argument, in parallel if there is more than one,
+     * and concatenate the results in shard order.
+     */
+    private <R> List<R> fanOut(List<PhTreeRW<T>> targets, final Function<PhTree<T>, List<R>> operation) {
+        if (targets.size() == 1) {
+            return operation.apply(targets.get(0));
+        }
+        List<CompletableFuture<List<R>>> futures = new ArrayList<>(targets.size());
+        for (final PhTreeRW<T> target : targets) {
+            futures.add(CompletableFuture.supplyAsync(() -> operation.apply(target), executor));
+        }
+        List<R> results = new ArrayList<>();
+        for (CompletableFuture<List<R>> future : futures) {
+            results.addAll(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Find the key with the given rank in z-order. The shards preceding the one holding the key are
+     * skipped using their sizes, so only the keys of that shard preceding the key are read.
+     *
+     * @param rank                  The rank of the key.
+     * @param chunkSize             The number of entries read from the shard at once.
+     * @return                      The key, the last key of the tree if the tree holds fewer keys,
+     *                              or null if the rank is negative or the tree is empty.
+     */
+    public long[] keyAtRank(int rank, int chunkSize) {
+        if (rank < 0) {
+            return null;
+        }
+        PhTreeRW<T> lastShard = null;
+        int skipped = 0;
+        for (PhTreeRW<T> shard : shards) {
+            int size = shard.size();
+            if (size == 0) {
+                continue;
+            }
+            if (rank < skipped + size) {
+                return ContinuationQuery.keyAtRank(shard, rank - skipped, chunkSize);
+            }
+            skipped += size;
+            lastShard = shard;
+        }
+        return (lastShard == null) ? null : ContinuationQuery.keyAtRank(lastShard, Integer.MAX_VALUE, chunkSize);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (PhTreeRW<T> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * The counters of the non-empty shards are summed up, while the total depth is averaged over them,
+     * in the same way as the statistics of several hosts are combined by the client.
+     */
+    @Override
+    public PhTreeStats getStats() {
+        PhTreeStats global = new PhTreeStats();
+        int nonEmpty = 0;
+        for (PhTreeRW<T> shard : shards) {
+            if (shard.size() == 0) {
+                continue;
+            }
+            PhTreeStats current = shard.getStats();
+            global.nAHC += current.nAHC;
+            global.nNodes += current.nNodes;
+            global.nNT += current.nNT;
+            global.nNtNodes += current.nNtNodes;
+            global.nTotalChildren += current.nTotalChildren;
+            global.size += current.size;
+            for (int i = 0; i < global.q_nPostFixN.length; i++) {
+                global.q_nPostFixN[i] += current.q_nPostFixN[i];
+            }
+            global.q_totalDepth += current.q_totalDepth;
+            nonEmpty++;
+        }
+        if (nonEmpty > 0) {
+            global.q_totalDepth /= nonEmpty;
+        }
+        return global;
+    }
+
+    @Override
+    public T put(long[] key, T value) {
+        return shard(key).put(key, value);
+    }
+
+    @Override
+    public boolean contains(long... key) {
+        return shard(key).contains(key);
+    }
+
+    @Override
+    public T get(long... key) {
+        return shard(key).get(key);
+    }
+
+    @Override
+    public T remove(long... key) {
+        return shard(key).remove(key);
+    }
+
+    /**
+     * If the keys belong to different shards, the entry is removed from one shard and added to the other
+     * one while holding the write locks of both.
+     */
+    @Override
+    public T update(long[] oldKey, long[] newKey) {
+        PhTreeRW<T> oldShard = shard(oldKey);
+        PhTreeRW<T> newShard = shard(newKey);
+        if (oldShard == newShard) {
+            return oldShard.update(oldKey, newKey);
+        }
+        boolean oldFirst = shardOf(oldKey) < shardOf(newKey);
+        PhTreeRW<T> first = oldFirst ? oldShard : newShard;
+        PhTreeRW<T> second = oldFirst ? newShard : oldShard;
+        long firstStamp = first.lockWrite();
+        try {
+            long secondStamp = second.lockWrite();
+            try {
+                T value = oldShard.unguarded().remove(oldKey);
+                if (value != null) {
+                    newShard.unguarded().put(newKey, value);
+                }
+                return value;
+            } finally {
+                second.unlockWrite(secondStamp);
+            }
+        } finally {
+            first.unlockWrite(firstStamp);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (PhTreeRW<T> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public String toStringPlain() {
+        StringBuilder str = new StringBuilder();
+        for (PhTreeRW<T> shard : shards) {
+            str.append(shard.toStringPlain());
+        }
+        return str.toString();
+    }
+
+    @Override
+    public String toStringTree() {
+        StringBuilder str = new StringBuilder();
+        for (int i = 0; i < shards.size(); i++) {
+            str.append("Shard ").append(i).append(":\n");
+            str.append(shards.get(i).toStringTree());
+        }
+        return str.toString();
+    }
+
+    @Override
+    public PhExtent<T> queryExtent() {
+        return new ChunkedQuery<>(this, this::queryAfter, ContinuationQuery.fullMin(dims),
+                ContinuationQuery.fullMax(dims), null);
+    }
+
+    @Override
+    public PhQuery<T> query(final long[] min, final long[] max) {
+        return new ChunkedQuery<>(this, this::queryAfter, min, max, null);
+    }
+
+    /**
+     * Return at most maxResults entries inside the range [min, max] that follow a key in z-order and are
+     * accepted by the filter.
+     *
+     * The shards are read in order, starting from the shard of the key. The read lock of every shard
+     * read from is held until all of the entries are read, so the entries are consistent across the
+     * shards.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param after                 The key preceding the entries, or null to start from the beginning.
+     * @param maxResults            The maximum number of entries returned.
+     * @param filter                The filter, or null to accept all of the entries.
+     * @return                      The entries, in z-order.
+     */
+    public List<PhEntry<T>> queryAfter(long[] min, long[] max, long[] after, int maxResults, PhFilter filter) {
+        List<PhEntry<T>> results = new ArrayList<>();
+        int first = (after == null) ? 0 : shardOf(after);
+        long[] stamps = new long[shards.size()];
+        int locked = 0;
+        try {
+            for (int i = first; i < shards.size() && results.size() < maxResults; i++) {
+                if (!intersects(i, min, max)) {
+                    continue;
+                }
+                PhTreeRW<T> shard = shards.get(i);
+                stamps[i] = shard.lockRead();
+                locked = i + 1;
+                results.addAll(ContinuationQuery.next(shard.unguarded(), min, max, (i == first) ? after : null,
+                        maxResults - results.size(), filter));
+            }
+            return results;
+        } finally {
+            for (int i = first; i < locked; i++) {
+                if (stamps[i] != 0) {
+                    shards.get(i).unlockRead(stamps[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all of the entries inside the range [min, max] that are accepted by the filter. The
+     * intersecting shards are cleared in parallel, each one in chunks, releasing its write lock between
+     * the chunks.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param filter                The filter, or null to remove all of the entries of the range.
+     * @return                      The number of removed entries.
+     */
+    public int removeRange(final long[] min, final long[] max, final PhFilter filter) {
+        int removed = 0;
+        for (int shardRemoved : fanOut(intersecting(min, max),
+                (PhTree<T> shard) -> Collections.singletonList(((PhTreeRW<T>) shard).removeRange(min, max, filter)))) {
+            removed += shardRemoved;
+        }
+        return removed;
+    }
+
+    /**
+     * Remove at most maxResults entries inside the range [min, max] that follow a key in z-order and are
+     * accepted by the filter.
+     *
+     * The shards are cleared in order, starting from the shard of the key. Unlike a read, a removal does
+     * not need to be consistent across the shards, so every shard is locked on its own.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @param after                 The key preceding the entries, or null to start from the beginning.
+     * @param maxResults            The maximum number of entries removed.
+     * @param filter                The filter, or null to accept all of the entries.
+     * @return                      The removed keys, in z-order.
+     */
+    public List<long[]> removeAfter(long[] min, long[] max, long[] after, int maxResults, PhFilter filter) {
+        List<long[]> removed = new ArrayList<>();
+        int first = (after == null) ? 0 : shardOf(after);
+        for (int i = first; i < shards.size() && removed.size() < maxResults; i++) {
+            if (intersects(i, min, max)) {
+                removed.addAll(shards.get(i).removeAfter(min, max, (i == first) ? after : null,
+                        maxResults - removed.size(), filter));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Count the entries inside the range [min, max]. The intersecting shards are counted in parallel.
+     *
+     * @param min                   The lower corner of the range.
+     * @param max                   The upper corner of the range.
+     * @return                      The number of entries inside the range.
+     */
+    public int countRange(final long[] min, final long[] max) {
+        int count = 0;
+        for (int shardCount : fanOut(intersecting(min, max),
+                (PhTree<T> shard) -> Collections.singletonList(((PhTreeRW<T>) shard).countRange(min, max)))) {
+            count += shardCount;
+        }
+        return count;
+    }
+
+    @Override
+    public int getDim() {
+        return dims;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return shards.get(0).getBitDepth();
+    }
+
+    @Override
+    public PhKnnQuery<T> nearestNeighbour(int nMin, long... key) {
+        return nearestNeighbour(nMin, null, null, key);
+    }
+
+    /**
+     * Every shard returns its own nearest neighbours, of which the closest nMin are kept.
+     */
+    @Override
+    public PhKnnQuery<T> nearestNeighbour(final int nMin, PhDistance dist, final PhFilter dims, final long... key) {
+        final PhDistance measure = (dist == null) ? new PhDistanceL() : dist;
+        List<PhEntry<T>> candidates = fanOut(shards,
+                (PhTree<T> shard) -> SnapshotIterator.collect(shard.nearestNeighbour(nMin, measure, dims, key)));
+        Collections.sort(candidates, new Comparator<PhEntry<T>>() {
+            @Override
+            public int compare(PhEntry<T> e1, PhEntry<T> e2) {
+                return Double.compare(measure.dist(key, e1.getKey()), measure.dist(key, e2.getKey()));
+            }
+        });
+        if (candidates.size() > nMin) {
+            candidates = candidates.subList(0, nMin);
+        }
+        return new SnapshotIterator<>(this, candidates);
+    }
+
+    @Override
+    public PhRangeQuery<T> rangeQuery(double dist, long... center) {
+        return rangeQuery(dist, null, center);
+    }
+
+    /**
+     * The range query runs in parallel on the shards intersecting the bounding box of the query, each
+     * shard reading its entries in chunks. The results are merged and sorted by their distance to the
+     * center.
+     */
+    @Override
+    public PhRangeQuery<T> rangeQuery(double dist, PhDistance optionalDist, long... center) {
+        PhDistance measure = (optionalDist == null) ? new PhDistanceL() : optionalDist;
+        CenterFilter filter = new CenterFilter();
+        PhRangeQuery<T> rangeQuery = new PhRangeQuery<>(new DistanceOrderedQuery(filter), this, measure, filter);
+        rangeQuery.reset(dist, center);
+        return rangeQuery;
+    }
+
+    /**
+     * The query over the bounding box of a range query. Resetting it to a new box runs the range query
+     * on the shards again.
+     */
+    private class DistanceOrderedQuery extends SnapshotIterator<T> {
+
+        private final CenterFilter filter;
+
+        private DistanceOrderedQuery(CenterFilter filter) {
+            super(PhTreeSharded.this, new ArrayList<PhEntry<T>>());
+            this.filter = filter;
+        }
+
+        @Override
+        public void reset(final long[] min, final long[] max) {
+            List<PhEntry<T>> entries = fanOut(intersecting(min, max), (PhTree<T> shard) -> SnapshotIterator.collect(
+                    new ChunkedQuery<>(shard, ((PhTreeRW<T>) shard)::queryAfter, min, max, filter)));
+            Collections.sort(entries, Comparator.comparingDouble((PhEntry<T> e) -> filter.distance(e.getKey())));
+            restart(entries);
+        }
+    }
+
+    /**
+     * A distance filter that keeps the center and the distance function of the range query, so that the
+     * results can be sorted by their distance to the center.
+     */
+    private static class CenterFilter extends PhFilterDistance {
+
+        private static final long serialVersionUID = 1L;
+
+        private long[] center;
+        private PhDistance measure;
+
+        @Override
+        public void set(long[] center, PhDistance measure, double maxDist) {
+            super.set(center, measure, maxDist);
+            this.center = center;
+            this.measure = measure;
+        }
+
+        private double distance(long[] key) {
+            return measure.dist(center, key);
+        }
+    }
+
+    @Override
+    public List<PhEntry<T>> queryAll(final long[] min, final long[] max) {
+        return fanOut(intersecting(min, max), (PhTree<T> shard) -> shard.queryAll(min, max));
+    }
+
+    @Override
+    public <R> List<R> queryAll(final long[] min, final long[] max, final int maxResults,
+                                final PhFilter filter, final PhMapper<T, R> mapper) {
+        List<R> results = fanOut(intersecting(min, max),
+                (PhTree<T> shard) -> shard.queryAll(min, max, maxResults, filter, mapper));
+        if (maxResults > 0 && results.size() > maxResults) {
+            results = new ArrayList<>(results.subList(0, maxResults));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhExtent;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import ch.ethz.globis.phtree.PhTree.PhKnnQuery;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+
+/**
+ * Iterator over the entries collected by a query, which does not access the tree while it is consumed.
+ *
+ * Resetting the iterator runs the query again on the tree and removing an entry removes it from the tree.
+ *
+ * @param <T>                       The type of the values.
+ */
+class SnapshotIterator<T> implements PhExtent<T>, PhQuery<T>, PhKnnQuery<T> {
+
+    private final PhTree<T> tree;
+    private List<PhEntry<T>> entries;
+    private int next = 0;
+    private PhEntry<T> last;
+
+    SnapshotIterator(PhTree<T> tree, List<PhEntry<T>> entries) {
+        this.tree = tree;
+        this.entries = entries;
+    }
+
+    /**
+     * Collect the remaining entries of an iterator.
+     *
+     * @param it                    The iterator.
+     * @return                      The remaining entries.
+     */
+    static <T> List<PhEntry<T>> collect(PhIterator<T> it) {
+        if (it instanceof SnapshotIterator) {
+            SnapshotIterator<T> snapshot = (SnapshotIterator<T>) it;
+            return snapshot.entries.subList(snapshot.next, snapshot.entries.size());
+        }
+        List<PhEntry<T>> entries = new ArrayList<>();
+        while (it.hasNext()) {
+            entries.add(it.nextEntry());
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next < entries.size();
+    }
+
+    @Override
+    public PhEntry<T> nextEntry() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        last = entries.get(next++);
+        return last;
+    }
+
+    @Override
+    public PhEntry<T> nextEntryReuse() {
+        return nextEntry();
+    }
+
+    @Override
+    public long[] nextKey() {
+        return nextEntry().getKey();
+    }
+
+    @Override
+    public T nextValue() {
+        return nextEntry().getValue();
+    }
+
+    @Override
+    public T next() {
+        return nextValue();
+    }
+
+    @Override
+    public void remove() {
+        if (last == null) {
+            throw new IllegalStateException();
+        }
+        tree.remove(last.getKey());
+        last = null;
+    }
+
+    @Override
+    public PhExtent<T> reset() {
+        restart(collect(tree.queryExtent()));
+        return this;
+    }
+
+    @Override
+    public void reset(long[] min, long[] max) {
+        restart(collect(tree.query(min, max)));
+    }
+
+    @Override
+    public PhKnnQuery<T> reset(int nMin, PhDistance dist, long... center) {
+        restart(collect(tree.nearestNeighbour(nMin, dist, null, center)));
+        return this;
+    }
+
+    void restart(List<PhEntry<T>> entries) {
+        this.entries = entries;
+        this.next = 0;
+        this.last = null;
+    }
+}
@@ -29,6 +29,9 @@ public class OpCode {
     public static final byte CREATE_INDEX = 1;
     public static final byte PUT = 10;
     public static final byte DELETE = 11;
+    public static final byte PUT_ALL = 12;
+    public static final byte DELETE_ALL = 13;
+    public static final byte DELETE_RANGE = 14;
     public static final byte GET = 20;
     public static final byte GET_RANGE = 21;
     public static final byte GET_KNN = 22;
@@ -38,15 +41,19 @@ public class OpCode {
     public static final byte GET_DEPTH = 26;
     public static final byte CLOSE_ITERATOR = 27;
     public static final byte CONTAINS = 28;
+    public static final byte GET_ALL = 29;
 
     public static final byte BALANCE_INIT = 30;
     public static final byte BALANCE_PUT = 31;
     public static final byte BALANCE_COMMIT = 32;
     public static final byte BALANCE_ROLLBACK = 33;
+    public static final byte BALANCE_PUT_ALL = 34;
+    public static final byte BALANCE_DELETE_ALL = 35;
 
     public static final byte STATS = 41;
     public static final byte TO_STRING = 42;
  
     public static final byte UPDATE_KEY = 46;
     public static final byte GET_RANGE_FILTER = 47;
+    public static final byte COUNT_RANGE = 48;
 }
\ No newline at end of file
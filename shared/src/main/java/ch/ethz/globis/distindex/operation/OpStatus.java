@@ -29,4 +29,8 @@ public class OpStatus {
     public static final byte SUCCESS = 0;
     public static final byte FAILURE = -1;
     public static final byte OUTDATED_VERSION = 1;
+    /** The response is continued by further responses with the same request id. */
+    public static final byte PARTIAL = 2;
+    /** The request overlaps entries being moved between hosts and should be sent again after a delay. */
+    public static final byte RETRY_LATER = 3;
 }
\ No newline at end of file
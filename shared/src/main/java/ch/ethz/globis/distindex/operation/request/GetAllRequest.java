@@ -0,0 +1,46 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.operation.request;
+
+import java.util.List;
+
+/**
+ * Request to retrieve the values of multiple keys from the index of a single remote host.
+ *
+ * @param <K>                       The type of the key.
+ */
+public class GetAllRequest<K> extends BaseRequest {
+
+    private List<K> keys;
+
+    public GetAllRequest(int id, byte opCode, String indexId, int mappingVersion, List<K> keys) {
+        super(id, opCode, indexId, mappingVersion);
+        this.keys = keys;
+    }
+
+    public List<K> getKeys() {
+        return keys;
+    }
+}
@@ -26,6 +26,12 @@ package ch.ethz.globis.distindex.operation.request;
 
 public class GetIteratorBatchRequest<K> extends BaseRequest {
 
+    /**
+     * The iterator id returned for a stateless batch when more entries might follow on the same host.
+     * No iterator is kept by the server, the next batch is requested using the last key of this batch.
+     */
+    public static final String STATELESS_ITERATOR = "stateless";
+
     /** The id of the iterator the requested batch belongs to. */
     String iteratorId;
 
@@ -41,6 +47,15 @@ public class GetIteratorBatchRequest<K> extends BaseRequest {
     /** The end of the query range, if the iterator is ranged.*/
     private K end;
 
+    /** Whether the client accepts the keys of the batch in the compact, delta encoded format. */
+    private boolean compactKeys = false;
+
+    /** Whether the batch is computed from the continuation key, without a server side iterator. */
+    private boolean stateless = false;
+
+    /** The key after which the stateless batch starts, in z-order, or null to start from the beginning. */
+    private K continuationKey;
+
     public GetIteratorBatchRequest(int id, byte opCode, String indexId, int mappingVersion, String iteratorId, int batchSize) {
         super(id, opCode, indexId, mappingVersion);
         this.iteratorId = iteratorId;
@@ -57,6 +72,21 @@ public class GetIteratorBatchRequest<K> extends BaseRequest {
         this.ranged = true;
     }
 
+    /**
+     * Create a stateless batch request, returning the entries following the continuation key.
+     * The request is ranged only if the start and end of the range are set.
+     */
+    public GetIteratorBatchRequest(int id, byte opCode, String indexId, int mappingVersion, int batchSize, K continuationKey, K start, K end) {
+        super(id, opCode, indexId, mappingVersion);
+        this.iteratorId = "";
+        this.batchSize = batchSize;
+        this.start = start;
+        this.end = end;
+        this.ranged = (start != null) && (end != null);
+        this.stateless = true;
+        this.continuationKey = continuationKey;
+    }
+
     public String getIteratorId() {
         return iteratorId;
     }
@@ -76,4 +106,28 @@ public class GetIteratorBatchRequest<K> extends BaseRequest {
     public K getEnd() {
         return end;
     }
-}
\ No newline at end of file
+
+    public boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public boolean isStateless() {
+        return stateless;
+    }
+
+    public void setStateless(boolean stateless) {
+        this.stateless = stateless;
+    }
+
+    public K getContinuationKey() {
+        return continuationKey;
+    }
+
+    public void setContinuationKey(K continuationKey) {
+        this.continuationKey = continuationKey;
+    }
+}
@@ -30,6 +30,12 @@ public class GetRangeRequest<K> extends BaseRequest {
     private K end;
     private double distance = -1;
 
+    /** Whether the client accepts the keys of the result in the compact, delta encoded format. */
+    private boolean compactKeys = false;
+
+    /** Whether the client accepts the result as a sequence of partial responses. */
+    private boolean streamed = false;
+
     public GetRangeRequest(int id, byte opCode, String indexId, int mappingVersion, K start, K end) {
         super(id, opCode, indexId, mappingVersion);
         this.start = start;
@@ -54,4 +60,20 @@ public class GetRangeRequest<K> extends BaseRequest {
     public double getDistance() {
         return distance;
     }
-}
\ No newline at end of file
+
+    public boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    public void setStreamed(boolean streamed) {
+        this.streamed = streamed;
+    }
+}
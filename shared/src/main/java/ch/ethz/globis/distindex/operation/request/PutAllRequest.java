@@ -0,0 +1,47 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.operation.request;
+
+import ch.ethz.globis.distindex.api.IndexEntryList;
+
+/**
+ * Request to insert multiple entries into the index of a single remote host.
+ *
+ * @param <K>                       The type of the key.
+ * @param <V>                       The type of the value.
+ */
+public class PutAllRequest<K, V> extends BaseRequest {
+
+    private IndexEntryList<K, V> entries;
+
+    public PutAllRequest(int id, byte opCode, String indexId, int mappingVersion, IndexEntryList<K, V> entries) {
+        super(id, opCode, indexId, mappingVersion);
+        this.entries = entries;
+    }
+
+    public IndexEntryList<K, V> getEntries() {
+        return entries;
+    }
+}
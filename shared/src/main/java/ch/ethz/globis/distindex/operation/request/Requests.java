@@ -24,12 +24,14 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package ch.ethz.globis.distindex.operation.request;
 
+import ch.ethz.globis.distindex.api.IndexEntryList;
 import ch.ethz.globis.distindex.mapping.KeyMapping;
 import ch.ethz.globis.distindex.operation.OpCode;
 import ch.ethz.globis.distindex.orchestration.ClusterService;
 import ch.ethz.globis.phtree.PhFilter;
 import ch.ethz.globis.phtree.util.PhMapper;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,10 +43,24 @@ public class Requests<K, V> {
 
     private ClusterService<K> clusterService;
 
+    /** Whether the range and iterator requests ask for the compact encoding of the result keys. */
+    private volatile boolean compactKeys = false;
+
+    /** Whether the range results can be received as a sequence of partial responses. */
+    private volatile boolean streamedRanges = false;
+
     public Requests(ClusterService<K> clusterService) {
         this.clusterService = clusterService;
     }
 
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public void setStreamedRanges(boolean streamedRanges) {
+        this.streamedRanges = streamedRanges;
+    }
+
     public GetRequest<K> newGet(K key) {
         return new GetRequest<>(nextId(), OpCode.GET, PLACEHOLDER, mappingVersion(), key);
     }
@@ -53,12 +69,38 @@ public class Requests<K, V> {
         return new PutRequest<>(nextId(), OpCode.PUT, PLACEHOLDER, mappingVersion(), key, value);
     }
 
+    public PutAllRequest<K, V> newPutAll(IndexEntryList<K, V> entries) {
+        return new PutAllRequest<>(nextId(), OpCode.PUT_ALL, PLACEHOLDER, mappingVersion(), entries);
+    }
+
+    public GetAllRequest<K> newGetAll(List<K> keys) {
+        return new GetAllRequest<>(nextId(), OpCode.GET_ALL, PLACEHOLDER, mappingVersion(), keys);
+    }
+
+    public DeleteAllRequest<K> newDeleteAll(List<K> keys) {
+        return new DeleteAllRequest<>(nextId(), OpCode.DELETE_ALL, PLACEHOLDER, mappingVersion(), keys);
+    }
+
+    public DeleteRangeRequest<K> newDeleteRange(K start, K end) {
+        return new DeleteRangeRequest<>(nextId(), OpCode.DELETE_RANGE, PLACEHOLDER, mappingVersion(), start, end);
+    }
+
     public GetRangeRequest<K> newGetRange(K start, K end) {
-        return new GetRangeRequest<>(nextId(), OpCode.GET_RANGE, PLACEHOLDER, mappingVersion(), start, end);
+        GetRangeRequest<K> request = new GetRangeRequest<>(nextId(), OpCode.GET_RANGE, PLACEHOLDER, mappingVersion(), start, end);
+        request.setCompactKeys(compactKeys);
+        request.setStreamed(streamedRanges);
+        return request;
     }
 
     public GetRangeRequest<K> newGetRange(K start, K end, double distance) {
-        return new GetRangeRequest<>(nextId(), OpCode.GET_RANGE, PLACEHOLDER, mappingVersion(), start, end, distance);
+        GetRangeRequest<K> request = new GetRangeRequest<>(nextId(), OpCode.GET_RANGE, PLACEHOLDER, mappingVersion(), start, end, distance);
+        request.setCompactKeys(compactKeys);
+        request.setStreamed(streamedRanges);
+        return request;
+    }
+
+    public GetRangeRequest<K> newCountRange(K start, K end) {
+        return new GetRangeRequest<>(nextId(), OpCode.COUNT_RANGE, PLACEHOLDER, mappingVersion(), start, end);
     }
 
     public GetKNNRequest<K> newGetKNN(K key, int k) {
@@ -66,11 +108,21 @@ public class Requests<K, V> {
     }
 
     public GetIteratorBatchRequest<K> newGetBatch(String iteratorId, int size) {
-        return new GetIteratorBatchRequest<>(nextId(), OpCode.GET_BATCH, PLACEHOLDER, mappingVersion(), iteratorId, size);
+        GetIteratorBatchRequest<K> request = new GetIteratorBatchRequest<>(nextId(), OpCode.GET_BATCH, PLACEHOLDER, mappingVersion(), iteratorId, size);
+        request.setCompactKeys(compactKeys);
+        return request;
     }
 
     public GetIteratorBatchRequest<K> newGetBatch(String iteratorId, int size, K start, K end) {
-        return new GetIteratorBatchRequest<>(nextId(), OpCode.GET_BATCH, PLACEHOLDER, mappingVersion(), iteratorId, size, start, end);
+        GetIteratorBatchRequest<K> request = new GetIteratorBatchRequest<>(nextId(), OpCode.GET_BATCH, PLACEHOLDER, mappingVersion(), iteratorId, size, start, end);
+        request.setCompactKeys(compactKeys);
+        return request;
+    }
+
+    public GetIteratorBatchRequest<K> newGetBatchAfter(int size, K continuationKey, K start, K end) {
+        GetIteratorBatchRequest<K> request = new GetIteratorBatchRequest<>(nextId(), OpCode.GET_BATCH, PLACEHOLDER, mappingVersion(), size, continuationKey, start, end);
+        request.setCompactKeys(compactKeys);
+        return request;
     }
 
     public DeleteRequest<K> newDelete(K key) {
@@ -109,6 +161,14 @@ public class Requests<K, V> {
         return new PutBalancingRequest<>(nextId(), OpCode.BALANCE_PUT, PLACEHOLDER, mappingVersion(), key, value);
     }
 
+    public PutAllBalancingRequest<K> newPutAllBalancing(IndexEntryList<K, byte[]> entries) {
+        return new PutAllBalancingRequest<>(nextId(), OpCode.BALANCE_PUT_ALL, PLACEHOLDER, mappingVersion(), entries);
+    }
+
+    public DeleteAllBalancingRequest<K> newDeleteAllBalancing(List<K> keys) {
+        return new DeleteAllBalancingRequest<>(nextId(), OpCode.BALANCE_DELETE_ALL, PLACEHOLDER, mappingVersion(), keys);
+    }
+
     public CommitBalancingRequest newCommitBalancing() {
         return new CommitBalancingRequest(nextId(), OpCode.BALANCE_COMMIT, PLACEHOLDER, mappingVersion());
     }
@@ -143,6 +203,9 @@ public class Requests<K, V> {
     }
 
     public <R> GetRangeFilterMapperRequest<K> newGetRangeFilterMaper(K min, K max, int maxResults, PhFilter filter, PhMapper<V, R> mapper) {
-        return new GetRangeFilterMapperRequest<>(nextId(), OpCode.GET_RANGE_FILTER, PLACEHOLDER, mappingVersion(), min, max, maxResults, filter, mapper);
+        GetRangeFilterMapperRequest<K> request = new GetRangeFilterMapperRequest<>(nextId(), OpCode.GET_RANGE_FILTER, PLACEHOLDER, mappingVersion(), min, max, maxResults, filter, mapper);
+        request.setCompactKeys(compactKeys);
+        request.setStreamed(streamedRanges);
+        return request;
     }
 }
\ No newline at end of file
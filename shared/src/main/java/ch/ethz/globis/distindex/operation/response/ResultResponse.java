@@ -34,6 +34,12 @@ public class ResultResponse<K, V> extends BaseResponse {
 
     private IndexEntryList<K, V> entries;
 
+    /** Whether the keys should be delta encoded when the response is sent. Not part of the content. */
+    private boolean compactKeys = false;
+
+    /** The number of bytes the response was decoded from, or 0. Not part of the content. */
+    private int encodedSize = 0;
+
     public ResultResponse() {}
 
     public ResultResponse(byte opCode, int requestId, byte status, IndexEntryList<K, V> entries) {
@@ -67,6 +73,22 @@ public class ResultResponse<K, V> extends BaseResponse {
         return entries;
     }
 
+    public boolean isCompactKeys() {
+        return compactKeys;
+    }
+
+    public void setCompactKeys(boolean compactKeys) {
+        this.compactKeys = compactKeys;
+    }
+
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    public void setEncodedSize(int encodedSize) {
+        this.encodedSize = encodedSize;
+    }
+
     public IndexEntry<K, V> singleEntry() {
         return (entries == null ) ? null : entries.get(0);
     }
@@ -0,0 +1,184 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhFilter;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.util.PhMapper;
+
+/**
+ * Computes the batches of a stateless iterator, or the chunks of an iterator reading the tree in parts.
+ *
+ * A batch contains the entries following a continuation key in z-order, which is the order in which
+ * the PhTree returns the results of a query. The z-values greater than the continuation key are
+ * covered by a sequence of boxes, one for each z-bit that is 0 in the continuation key: the bits
+ * before it are those of the key, the bit itself is 1 and the following bits are free. The boxes are
+ * queried from the one closest to the key, so only the entries of the batch are read from the tree.
+ */
+public class ContinuationQuery {
+
+    /**
+     * Return at most maxResults entries inside the range [min, max] that follow the continuation key.
+     *
+     * @param tree                          The tree to query.
+     * @param min                           The lower corner of the range.
+     * @param max                           The upper corner of the range.
+     * @param after                         The continuation key, or null to start from the beginning.
+     * @param maxResults                    The maximum number of entries returned.
+     * @return                              The entries, in z-order.
+     */
+    public static <T> List<PhEntry<T>> next(PhTree<T> tree, long[] min, long[] max, long[] after, int maxResults) {
+        return next(tree, min, max, after, maxResults, null);
+    }
+
+    /**
+     * Return at most maxResults entries inside the range [min, max] that follow the continuation key
+     * and are accepted by the filter.
+     *
+     * @param filter                        The filter, or null to accept all the entries.
+     */
+    public static <T> List<PhEntry<T>> next(PhTree<T> tree, long[] min, long[] max, long[] after, int maxResults,
+                                            PhFilter filter) {
+        if (maxResults <= 0) {
+            return new ArrayList<>();
+        }
+        if (after == null) {
+            return tree.queryAll(min, max, maxResults, filter, PhMapper.<T>PVENTRY());
+        }
+
+        int dims = after.length;
+        List<PhEntry<T>> results = new ArrayList<>();
+        long[] lower = new long[dims];
+        long[] upper = new long[dims];
+        for (int pos = 64 * dims - 1; pos >= 0 && results.size() < maxResults; pos--) {
+            int dim = pos % dims;
+            int bit = 63 - pos / dims;
+            if (((after[dim] >>> bit) & 1L) != 0) {
+                continue;
+            }
+            box(after, pos, lower, upper);
+            if (intersect(lower, upper, min, max)) {
+                results.addAll(tree.queryAll(lower, upper, maxResults - results.size(), filter, PhMapper.<T>PVENTRY()));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Find the key with the given rank in z-order, by reading the keys of the tree one chunk at a time
+     * from the first one. Reading up to the key costs as much as a query returning rank entries, although
+     * only a chunk of entries is held in memory. The tree does not keep the number of entries below its
+     * nodes, so the key cannot be found by descending the tree instead.
+     *
+     * @param tree                          The tree.
+     * @param rank                          The rank of the key.
+     * @param chunkSize                     The number of entries read from the tree at once.
+     * @return                              The key, the last key of the tree if the tree holds fewer
+     *                                      keys, or null if the rank is negative or the tree is empty.
+     */
+    public static <T> long[] keyAtRank(PhTree<T> tree, int rank, int chunkSize) {
+        if (rank < 0) {
+            return null;
+        }
+        int dims = tree.getDim();
+        long[] min = fullMin(dims);
+        long[] max = fullMax(dims);
+        long[] previous = null;
+        int skipped = 0;
+        while (true) {
+            List<PhEntry<T>> chunk = next(tree, min, max, previous, chunkSize);
+            if (chunk.isEmpty()) {
+                return previous;
+            }
+            if (rank < skipped + chunk.size()) {
+                return chunk.get(rank - skipped).getKey();
+            }
+            skipped += chunk.size();
+            previous = chunk.get(chunk.size() - 1).getKey();
+        }
+    }
+
+    /**
+     * Return the full range of a tree with the given number of dimensions.
+     */
+    public static long[] fullMin(int dims) {
+        long[] min = new long[dims];
+        Arrays.fill(min, Long.MIN_VALUE);
+        return min;
+    }
+
+    public static long[] fullMax(int dims) {
+        long[] max = new long[dims];
+        Arrays.fill(max, Long.MAX_VALUE);
+        return max;
+    }
+
+    /**
+     * Compute the box containing the z-values that share the z-bits of the key before the position pos
+     * and have the bit at position pos set.
+     */
+    private static void box(long[] key, int pos, long[] lower, long[] upper) {
+        int dims = key.length;
+        for (int d = 0; d < dims; d++) {
+            int fixedBits = (pos > d) ? (pos - d - 1) / dims + 1 : 0;
+            if (d == pos % dims) {
+                fixedBits++;
+            }
+            if (fixedBits == 0) {
+                // the sign bit is free, so the box spans the whole signed range of the dimension
+                lower[d] = Long.MIN_VALUE;
+                upper[d] = Long.MAX_VALUE;
+                continue;
+            }
+            long mask = -1L << (64 - fixedBits);
+            lower[d] = key[d] & mask;
+            if (d == pos % dims) {
+                lower[d] |= 1L << (63 - pos / dims);
+            }
+            upper[d] = lower[d] | ~mask;
+        }
+    }
+
+    /**
+     * Intersect the box with the range [min, max], in place.
+     *
+     * @return                              False if the intersection is empty.
+     */
+    private static boolean intersect(long[] lower, long[] upper, long[] min, long[] max) {
+        for (int d = 0; d < lower.length; d++) {
+            lower[d] = Math.max(lower[d], min[d]);
+            upper[d] = Math.min(upper[d], max[d]);
+            if (lower[d] > upper[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -239,6 +239,35 @@ public class MultidimUtil {
 		return tree;
 	}
 
+	/**
+	 * Compare two keys in the order in which the PhTree returns them, which is the z-order of the
+	 * raw bits of the keys, the first dimension holding the most significant bit of each level.
+	 *
+	 * @param a					The first key.
+	 * @param b					The second key.
+	 * @return					A negative value, zero or a positive value if the first key is
+	 * 							before, equal to or after the second key.
+	 */
+	public static int zCompare(long[] a, long[] b) {
+		int highestBit = -1;
+		int highestDim = -1;
+		for (int d = 0; d < a.length; d++) {
+			long diff = a[d] ^ b[d];
+			if (diff == 0) {
+				continue;
+			}
+			int bit = 63 - Long.numberOfLeadingZeros(diff);
+			if (bit > highestBit) {
+				highestBit = bit;
+				highestDim = d;
+			}
+		}
+		if (highestDim < 0) {
+			return 0;
+		}
+		return (((a[highestDim] >>> highestBit) & 1L) != 0) ? 1 : -1;
+	}
+
 	public static long computeDistance(long[] a, long[] b) {
 		long dist = 0;
 		for (int i = 0; i < a.length; i++) {
@@ -296,4 +325,46 @@ public class MultidimUtil {
 		}
 		return nextKey;
 	}
+
+	/**
+	 * Split the range [min, max] into two ranges, such that all keys of the first range precede
+	 * all keys of the second one in z-order. The split is done at the most significant z-bit
+	 * that is not shared by all keys of the range.
+	 *
+	 * @param min			The lower corner of the range.
+	 * @param max			The upper corner of the range.
+	 * @return				The lower and upper corners of the first range, followed by those of
+	 * 						the second range, or null if the range holds a single key.
+	 */
+	public static long[][] zSplit(long[] min, long[] max) {
+		int splitDim = -1;
+		int splitBit = -1;
+		for (int d = 0; d < min.length; d++) {
+			long diff = min[d] ^ max[d];
+			int bit = 63 - Long.numberOfLeadingZeros(diff);
+			if (diff != 0 && bit > splitBit) {
+				splitDim = d;
+				splitBit = bit;
+			}
+		}
+		if (splitDim < 0) {
+			return null;
+		}
+		long[] lowerMax = Arrays.copyOf(max, max.length);
+		long[] upperMin = Arrays.copyOf(min, min.length);
+		if (splitBit == 63) {
+			//the keys with the sign bit set, the negative ones, come last in z-order
+			lowerMax[splitDim] = max[splitDim];
+			upperMin[splitDim] = min[splitDim];
+			long[] lowerMin = Arrays.copyOf(min, min.length);
+			lowerMin[splitDim] = 0;
+			long[] upperMax = Arrays.copyOf(max, max.length);
+			upperMax[splitDim] = -1;
+			return new long[][] { lowerMin, lowerMax, upperMin, upperMax };
+		}
+		long prefix = min[splitDim] & (-1L << (splitBit + 1));
+		lowerMax[splitDim] = prefix | ((1L << splitBit) - 1);
+		upperMin[splitDim] = prefix | (1L << splitBit);
+		return new long[][] { min, lowerMax, upperMin, max };
+	}
 }
@@ -76,6 +76,23 @@ public class SerializerUtil {
         return obj;
     }
 
+    /**
+     * Deserialize an object from a portion of a byte array, without copying that portion first.
+     *
+     * @param data                  The array containing the serialized object.
+     * @param offset                The offset of the serialized object.
+     * @param length                The number of bytes of the serialized object.
+     * @return                      The deserialized object.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T deserialize(byte[] data, int offset, int length) {
+        Kryo kryo = kryos.get();
+        Input input = new Input(data, offset, length);
+        T obj = (T) kryo.readClassAndObject(input);
+        input.close();
+        return obj;
+    }
+
     public byte[] serializeDefault(Serializable object) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         byte[] data;
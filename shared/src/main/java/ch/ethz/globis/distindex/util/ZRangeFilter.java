@@ -0,0 +1,73 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.util;
+
+import ch.ethz.globis.phtree.PhFilter;
+
+/**
+ * A filter accepting the keys of an interval of the z-order, which is the order in which the PhTree
+ * returns the keys.
+ *
+ * The keys sharing a prefix form a box whose lower corner is the first of its keys in z-order and whose
+ * upper corner is the last one. The sub-trees whose box lies outside of the interval are skipped, so a
+ * query using this filter only visits the nodes overlapping the interval.
+ */
+public class ZRangeFilter implements PhFilter {
+
+	private static final long serialVersionUID = 1L;
+
+	/** The key preceding the interval, or null if the interval is not bounded below. */
+	private final long[] after;
+
+	/** The last key of the interval, or null if the interval is not bounded above. */
+	private final long[] last;
+
+	public ZRangeFilter(long[] after, long[] last) {
+		this.after = after;
+		this.last = last;
+	}
+
+	@Override
+	public boolean isValid(long[] key) {
+		return (after == null || MultidimUtil.zCompare(key, after) > 0)
+				&& (last == null || MultidimUtil.zCompare(key, last) <= 0);
+	}
+
+	@Override
+	public boolean isValid(int bitsToIgnore, long[] prefix) {
+		if (bitsToIgnore >= 64) {
+			return true;
+		}
+		long mask = -1L << bitsToIgnore;
+		long[] lower = new long[prefix.length];
+		long[] upper = new long[prefix.length];
+		for (int d = 0; d < prefix.length; d++) {
+			lower[d] = prefix[d] & mask;
+			upper[d] = lower[d] | ~mask;
+		}
+		return (after == null || MultidimUtil.zCompare(upper, after) > 0)
+				&& (last == null || MultidimUtil.zCompare(lower, last) <= 0);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhTreeRWTest {
+
+    @Test
+    public void testIteratorIsWeaklyConsistent() {
+        PhTreeRW<Integer> tree = PhTreeRW.create(2);
+        int size = 4 * ChunkedQuery.DEFAULT_CHUNK_SIZE;
+        for (int i = 0; i < size; i++) {
+            tree.put(new long[] {i, i}, i);
+        }
+
+        PhIterator<Integer> it = tree.queryExtent();
+        Set<Integer> seen = new HashSet<>();
+        seen.add(it.nextValue());
+        for (int i = 1; i < size; i += 2) {
+            tree.remove(i, i);
+        }
+
+        int removedSeen = 0;
+        while (it.hasNext()) {
+            int value = it.nextValue();
+            assertTrue(seen.add(value));
+            if (value % 2 == 1) {
+                removedSeen++;
+            }
+        }
+        for (int i = 0; i < size; i += 2) {
+            assertTrue(seen.contains(i));
+        }
+        // only the removed entries of the chunk read before the removal are returned
+        assertTrue(removedSeen < ChunkedQuery.DEFAULT_CHUNK_SIZE);
+        assertEquals(size / 2, tree.size());
+    }
+
+    @Test
+    public void testRangeQuery() {
+        Random random = new Random(1);
+        PhTree<Integer> expected = PhTree.create(2);
+        PhTreeRW<Integer> tree = PhTreeRW.create(2);
+        for (int i = 0; i < 1000; i++) {
+            long[] key = {random.nextInt(1000), random.nextInt(1000)};
+            expected.put(key, i);
+            tree.put(key, i);
+        }
+
+        PhRangeQuery<Integer> expectedQuery = expected.rangeQuery(100, 500, 500);
+        PhRangeQuery<Integer> query = tree.rangeQuery(100, 500, 500);
+        while (expectedQuery.hasNext()) {
+            assertArrayEquals(expectedQuery.nextKey(), query.nextKey());
+        }
+        assertFalse(query.hasNext());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        PhTreeRW<Integer> tree = PhTreeRW.create(2);
+        for (int i = 0; i < 10; i++) {
+            tree.put(new long[] {i, i}, i);
+        }
+        PhIterator<Integer> it = tree.query(new long[] {0, 0}, new long[] {4, 4});
+        while (it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        assertEquals(5, tree.size());
+        assertFalse(tree.contains(0, 0));
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final PhTreeRW<Integer> tree = PhTreeRW.create(2);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<?> writer = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        tree.put(new long[] {i, -i}, i);
+                    }
+                }
+            });
+            Future<?> reader = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        PhIterator<Integer> it = tree.queryExtent();
+                        while (it.hasNext()) {
+                            it.nextEntry();
+                        }
+                        tree.get(i, -i);
+                    }
+                }
+            });
+            writer.get(10, TimeUnit.SECONDS);
+            reader.get(10, TimeUnit.SECONDS);
+            assertEquals(10000, tree.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.concurrency;
+
+import ch.ethz.globis.distindex.util.ContinuationQuery;
+import ch.ethz.globis.distindex.util.ZRangeFilter;
+import ch.ethz.globis.phtree.PhDistance;
+import ch.ethz.globis.phtree.PhDistanceL;
+import ch.ethz.globis.phtree.PhRangeQuery;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PhTreeShardedTest {
+
+    @Test
+    public void testKeyAtRank() {
+        Random random = new Random(7);
+        PhTree<Integer> expected = PhTree.create(2);
+        PhTreeSharded<Integer> tree = PhTreeSharded.create(2, 4);
+        for (int i = 0; i < 500; i++) {
+            long[] key = { random.nextLong(), random.nextLong() };
+            expected.put(key, i);
+            tree.put(key, i);
+        }
+        for (int rank : new int[] { 0, 1, 99, 250, 499 }) {
+            assertArrayEquals(ContinuationQuery.keyAtRank(expected, rank, 16), tree.keyAtRank(rank, 16));
+        }
+        assertArrayEquals(ContinuationQuery.keyAtRank(expected, 499, 16), tree.keyAtRank(1000, 16));
+        assertNull(tree.keyAtRank(-1, 16));
+        assertNull(PhTreeSharded.<Integer>create(2, 4).keyAtRank(0, 16));
+    }
+
+    @Test
+    public void testSameResultsAsSingleTree() {
+        Random random = new Random(42);
+        PhTree<Integer> expected = PhTree.create(3);
+        PhTreeSharded<Integer> tree = PhTreeSharded.create(3, 8);
+        assertEquals(8, tree.getNrShards());
+
+        for (int i = 0; i < 1000; i++) {
+            long[] key = { random.nextLong(), random.nextLong(), random.nextInt() };
+            expected.put(key, i);
+            tree.put(key, i);
+        }
+        assertEquals(expected.size(), tree.size());
+        assertEquals(expected.getStats().size, tree.getStats().size);
+
+        assertSameOrder(expected.queryExtent(), tree.queryExtent());
+
+        long[] min = { -(1L << 62), Long.MIN_VALUE, -1000 };
+        long[] max = { 1L << 61, 0, Integer.MAX_VALUE };
+        assertSameOrder(expected.query(min, max), tree.query(min, max));
+        assertEquals(expected.queryAll(min, max).size(), tree.queryAll(min, max).size());
+
+        long[] center = { 0, 0, 0 };
+        PhDistance dist = new PhDistanceL();
+        PhIterator<Integer> expectedKnn = expected.nearestNeighbour(5, center);
+        PhIterator<Integer> knn = tree.nearestNeighbour(5, center);
+        while (expectedKnn.hasNext()) {
+            assertEquals(dist.dist(center, expectedKnn.nextKey()), dist.dist(center, knn.nextKey()), 0.0);
+        }
+        assertFalse(knn.hasNext());
+    }
+
+    @Test
+    public void testRangeQuerySortedByDistance() {
+        Random random = new Random(3);
+        PhTree<Integer> expected = PhTree.create(2);
+        PhTreeSharded<Integer> tree = PhTreeSharded.create(2, 4);
+        for (int i = 0; i < 1000; i++) {
+            long[] key = { random.nextInt(2000) - 1000, random.nextInt(2000) - 1000 };
+            expected.put(key, i);
+            tree.put(key, i);
+        }
+
+        long[] center = { 10, -20 };
+        int count = 0;
+        PhRangeQuery<Integer> expectedQuery = expected.rangeQuery(300, center);
+        while (expectedQuery.hasNext()) {
+            expectedQuery.nextKey();
+            count++;
+        }
+
+        PhDistance dist = new PhDistanceL();
+        PhRangeQuery<Integer> query = tree.rangeQuery(300, center);
+        double previous = 0;
+        for (int i = 0; i < count; i++) {
+            long[] key = query.nextKey();
+            double distance = dist.dist(center, key);
+            assertTrue(distance <= 300 && distance >= previous);
+            assertTrue(expected.contains(key));
+            previous = distance;
+        }
+        assertFalse(query.hasNext());
+    }
+
+    @Test
+    public void testRemoveRangeOfZInterval() {
+        Random random = new Random(42);
+        PhTreeSharded<Integer> tree = PhTreeSharded.create(2, 4);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(new long[] { random.nextLong(), random.nextLong() }, i);
+        }
+        List<long[]> keys = new ArrayList<>();
+        PhIterator<Integer> it = tree.queryExtent();
+        while (it.hasNext()) {
+            keys.add(it.nextKey());
+        }
+        long[] min = { Long.MIN_VALUE, Long.MIN_VALUE };
+        long[] max = { Long.MAX_VALUE, Long.MAX_VALUE };
+
+        assertEquals(keys.size() - 600, tree.removeRange(min, max, new ZRangeFilter(keys.get(599), null)));
+        assertEquals(600, tree.size());
+
+        List<long[]> removed = tree.removeAfter(min, max, null, 60, new ZRangeFilter(null, keys.get(99)));
+        assertEquals(60, removed.size());
+        for (int i = 0; i < removed.size(); i++) {
+            assertArrayEquals(keys.get(i), removed.get(i));
+        }
+        assertEquals(40, tree.removeRange(min, max, new ZRangeFilter(null, keys.get(99))));
+        assertEquals(500, tree.size());
+        assertArrayEquals(keys.get(100), tree.queryExtent().nextKey());
+        assertArrayEquals(keys.get(599), ContinuationQuery.keyAtRank(tree, 499, 64));
+    }
+
+    @Test
+    public void testUpdateAcrossShards() {
+        PhTreeSharded<Integer> tree = PhTreeSharded.create(2, 4);
+        long[] oldKey = { 1, 1 };
+        long[] newKey = { -1, -1 };
+        tree.put(oldKey, 1);
+
+        assertEquals(Integer.valueOf(1), tree.update(oldKey, newKey));
+        assertFalse(tree.contains(oldKey));
+        assertEquals(Integer.valueOf(1), tree.get(newKey));
+        assertEquals(1, tree.size());
+    }
+
+    @Test
+    public void testChunkConsistentWithMovingEntries() throws Exception {
+        final PhTreeSharded<Integer> tree = PhTreeSharded.create(2, 4);
+        // all of the entries are read as a single chunk, which is consistent across the shards
+        final int size = ChunkedQuery.DEFAULT_CHUNK_SIZE / 2;
+        for (int i = 0; i < size; i++) {
+            tree.put(new long[] {i, i}, i);
+        }
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int round = 0; round < 100; round++) {
+                        for (int i = 0; i < size; i++) {
+                            long sign = (round % 2 == 0) ? 1 : -1;
+                            tree.update(new long[] {sign * i, sign * i}, new long[] {-sign * i, -sign * i});
+                        }
+                    }
+                }
+            });
+            while (!writer.isDone()) {
+                PhIterator<Integer> it = tree.queryExtent();
+                int count = 0;
+                while (it.hasNext()) {
+                    it.nextEntry();
+                    count++;
+                }
+                assertEquals(size, count);
+            }
+            writer.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void assertSameOrder(PhIterator<Integer> expected, PhIterator<Integer> actual) {
+        while (expected.hasNext()) {
+            assertArrayEquals(expected.nextKey(), actual.nextKey());
+        }
+        assertFalse(actual.hasNext());
+    }
+}
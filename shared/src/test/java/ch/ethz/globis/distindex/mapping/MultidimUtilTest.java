@@ -25,6 +25,9 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package ch.ethz.globis.distindex.mapping;
 
 import ch.ethz.globis.distindex.util.MultidimUtil;
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhIterator;
 import org.junit.Test;
 
 import java.util.ArrayList;
@@ -34,6 +37,8 @@ import java.util.Random;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class MultidimUtilTest {
 
@@ -117,6 +122,56 @@ public class MultidimUtilTest {
         assertArrayEquals(new long[]{Long.MAX_VALUE, Long.MAX_VALUE}, MultidimUtil.previous(key, size));
     }
 
+    @Test
+    public void testZSplitPreservesOrder() {
+        Random random = new Random(11);
+        PhTree<Object> tree = PhTree.create(2);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(new long[] { random.nextInt(2000) - 1000, random.nextInt(2000) - 1000 }, i);
+        }
+        long[] min = { -700, -300 };
+        long[] max = { 900, 200 };
+
+        long[][] ranges = MultidimUtil.zSplit(min, max);
+        List<long[]> split = new ArrayList<>();
+        for (PhEntry<Object> e : tree.queryAll(ranges[0], ranges[1])) {
+            split.add(e.getKey());
+        }
+        for (PhEntry<Object> e : tree.queryAll(ranges[2], ranges[3])) {
+            split.add(e.getKey());
+        }
+        List<long[]> expected = new ArrayList<>();
+        for (PhEntry<Object> e : tree.queryAll(min, max)) {
+            expected.add(e.getKey());
+        }
+        equalsList(expected, split);
+
+        ranges = MultidimUtil.zSplit(new long[] { 16, 3 }, new long[] { 31, 3 });
+        assertArrayEquals(new long[] { 23, 3 }, ranges[1]);
+        assertArrayEquals(new long[] { 24, 3 }, ranges[2]);
+        assertNull(MultidimUtil.zSplit(max, max));
+    }
+
+    @Test
+    public void testZCompareFollowsTreeOrder() {
+        Random random = new Random(13);
+        PhTree<Object> tree = PhTree.create(3);
+        for (int i = 0; i < 1000; i++) {
+            tree.put(new long[] { random.nextInt(2000) - 1000, random.nextInt(2000) - 1000, random.nextLong() }, i);
+        }
+        long[] previous = null;
+        PhIterator<Object> it = tree.queryExtent();
+        while (it.hasNext()) {
+            long[] key = it.nextKey();
+            if (previous != null) {
+                assertTrue(MultidimUtil.zCompare(previous, key) < 0);
+                assertTrue(MultidimUtil.zCompare(key, previous) > 0);
+            }
+            assertEquals(0, MultidimUtil.zCompare(key, key.clone()));
+            previous = key;
+        }
+    }
+
     private void equalsList(List<long[]> a, List<long[]> b) {
         assertEquals(a.size(), b.size());
         for (int i = 0; i < a.size(); i++) {
@@ -50,6 +50,15 @@ public class SerializerUtilTest {
         assertNull(serializer.deserialize(data));
     }
 
+    @Test
+    public void testDeserializeFromOffset() {
+        SerializerUtil serializer = SerializerUtil.getInstance();
+        byte[] data = serializer.serialize("Hello, world");
+        byte[] padded = new byte[data.length + 7];
+        System.arraycopy(data, 0, padded, 5, data.length);
+        assertEquals("Hello, world", serializer.deserialize(padded, 5, data.length));
+    }
+
     @Test
     public void testSerializeDefaultNull() throws IOException, ClassNotFoundException {
         SerializerUtil serializer = SerializerUtil.getInstance();
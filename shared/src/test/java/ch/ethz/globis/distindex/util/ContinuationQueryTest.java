@@ -0,0 +1,79 @@
+/*
+This file is part of PH-Tree:
+A multi-dimensional indexing and storage structure.
+
+Copyright (C) 2011-2015
+Eidgenössische Technische Hochschule Zürich (ETH Zurich)
+Institute for Information Systems
+GlobIS Group
+Bogdan Vancea, Tilmann Zaeschke
+zaeschke@inf.ethz.ch or zoodb@gmx.de
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package ch.ethz.globis.distindex.util;
+
+import ch.ethz.globis.phtree.PhEntry;
+import ch.ethz.globis.phtree.PhTree;
+import ch.ethz.globis.phtree.PhTree.PhQuery;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ContinuationQueryTest {
+
+    @Test
+    public void testBatchesFollowQueryOrder() {
+        Random random = new Random(7);
+        PhTree<byte[]> tree = PhTree.create(2);
+        for (int i = 0; i < 2000; i++) {
+            tree.put(new long[] { random.nextInt(2000) - 1000, random.nextInt(2000) - 1000 }, new byte[] { (byte) i });
+        }
+        long[] min = { -500, -800 };
+        long[] max = { 700, 300 };
+
+        PhQuery<byte[]> expected = tree.query(min, max);
+        long[] after = null;
+        List<PhEntry<byte[]>> batch;
+        do {
+            batch = ContinuationQuery.next(tree, min, max, after, 17);
+            for (PhEntry<byte[]> entry : batch) {
+                assertArrayEquals(expected.nextKey(), entry.getKey());
+                after = entry.getKey();
+            }
+        } while (batch.size() == 17);
+        assertFalse(expected.hasNext());
+    }
+
+    @Test
+    public void testFullRange() {
+        PhTree<byte[]> tree = PhTree.create(3);
+        tree.put(new long[] { Long.MIN_VALUE, 0, 5 }, new byte[0]);
+        tree.put(new long[] { -1, Long.MAX_VALUE, 5 }, new byte[0]);
+        tree.put(new long[] { 1, 1, 1 }, new byte[0]);
+
+        long[] min = ContinuationQuery.fullMin(3);
+        long[] max = ContinuationQuery.fullMax(3);
+        List<PhEntry<byte[]>> first = ContinuationQuery.next(tree, min, max, null, 2);
+        assertEquals(2, first.size());
+        List<PhEntry<byte[]>> rest = ContinuationQuery.next(tree, min, max, first.get(1).getKey(), 2);
+        assertEquals(1, rest.size());
+        assertEquals(0, ContinuationQuery.next(tree, min, max, rest.get(0).getKey(), 2).size());
+    }
+}
@@ -39,11 +39,15 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runners.Parameterized;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import ch.ethz.globis.distindex.api.IndexEntry;
 import ch.ethz.globis.distindex.api.IndexEntryList;
@@ -178,6 +182,22 @@ public class TestDistPhTreeProxyParameterized extends BaseParameterizedTest {
         assertEqualsEntryLists(expected, actual);
     }
 
+    @Test
+    public void testCountAndDeleteRange() throws Exception {
+        phTree.create(2, 64);
+
+        IndexEntryList<long[], String> expected = setupTestTreeForRangeQueriesAndReturnExpectedResult();
+        long[] start = {9, 9};
+        long[] end = {11, 11};
+        int size = phTree.size();
+
+        assertEquals(expected.size(), phTree.countRange(start, end));
+        assertEquals(expected.size(), phTree.deleteRange(start, end));
+        assertEquals(0, phTree.countRange(start, end));
+        assertEquals(0, phTree.getRange(start, end).size());
+        assertEquals(size - expected.size(), phTree.size());
+    }
+
     @Test
     public void testGetRange2Mid() throws Exception {
         phTree.create(2, 64);
@@ -341,6 +361,63 @@ public class TestDistPhTreeProxyParameterized extends BaseParameterizedTest {
         }
     }
 
+    @Test
+    public void testQueryPublisher() throws Exception {
+        phTree.create(2, 64);
+
+        Random random = new Random();
+        for (int i = 0; i < 500; i++) {
+            phTree.put(new long[]{random.nextLong(), random.nextLong()}, String.valueOf(i));
+        }
+        long[] start = { Long.MIN_VALUE, 0 };
+        long[] end = { 0, Long.MAX_VALUE };
+        List<PhEntry<String>> expected = phTree.queryAll(start, end);
+
+        final List<PhEntry<String>> received = new ArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        phTree.queryPublisher(start, end).subscribe(new Subscriber<PhEntry<String>>() {
+
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(7);
+            }
+
+            @Override
+            public void onNext(PhEntry<String> entry) {
+                received.add(entry);
+                if (received.size() % 7 == 0) {
+                    subscription.request(7);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                completed.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        assertTrue(completed.await(30, TimeUnit.SECONDS));
+        assertEquals(expected.size(), received.size());
+        List<long[]> expectedKeys = new ArrayList<>();
+        List<long[]> receivedKeys = new ArrayList<>();
+        for (int i = 0; i < expected.size(); i++) {
+            expectedKeys.add(expected.get(i).getKey());
+            receivedKeys.add(received.get(i).getKey());
+        }
+        expectedKeys = MultidimUtil.sort(expectedKeys);
+        receivedKeys = MultidimUtil.sort(receivedKeys);
+        for (int i = 0; i < expectedKeys.size(); i++) {
+            assertArrayEquals(expectedKeys.get(i), receivedKeys.get(i));
+        }
+    }
+
     @Test
     public void testRandomKNNBug() {
         phTree.create(2, 64);